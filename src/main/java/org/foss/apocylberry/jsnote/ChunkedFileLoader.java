@@ -0,0 +1,253 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.Timer;
+import javax.swing.UIManager;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DocumentFilter;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams a file into a document a chunk at a time.
+ *
+ * A background thread decodes the file into chunks, and a Swing Timer appends
+ * them on the EDT in time-boxed slices. The first chunk is small so the top of
+ * the file appears at once. Each slice is allowed at least as long as the EDT
+ * spent elsewhere since the previous one: the layout and painting that follow an
+ * append grow with the document, so a fixed slice would make the load quadratic.
+ * Edits are refused until loading ends, because the loader always appends at the
+ * end of the document.
+ *
+ * Decoding is strict, so a file that isn't valid in the given encoding fails
+ * with a CharacterCodingException rather than loading with replacement chars.
+ * Line ends are normalized to '\n' as DefaultEditorKit.read does.
+ */
+public class ChunkedFileLoader {
+
+    /** Receives load events on the EDT. */
+    public interface Callback {
+        void progress(int percent);
+        void finished();
+        void failed(IOException ex);
+        void cancelled();
+    }
+
+    private static final int FIRST_CHUNK_CHARS = 16 * 1024;
+    private static final int MAX_CHUNK_CHARS = 256 * 1024;
+    private static final int QUEUED_CHUNKS = 8;
+    private static final long MIN_SLICE_NANOS = 15_000_000L;
+    private static final int TIMER_DELAY_MS = 10;
+
+    private static final class Chunk {
+        final String text;
+        final long bytePosition;
+
+        Chunk(String text, long bytePosition) {
+            this.text = text;
+            this.bytePosition = bytePosition;
+        }
+    }
+
+    private static final Object END = new Object();
+
+    private final File file;
+    private final TextEncoding encoding;
+    private final AbstractDocument doc;
+    private final Callback callback;
+    private final long fileSize;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    private final Timer timer;
+    private Thread readerThread;
+    private DocumentFilter previousFilter;
+    private volatile boolean cancelled = false;
+    private volatile long bytesRead = 0;
+    private boolean appending = false;
+    private boolean done = false;
+    private int lastPercent = -1;
+    private long lastSliceEnd = 0;
+
+    public ChunkedFileLoader(File file, TextEncoding encoding, AbstractDocument doc, Callback callback) {
+        this.file = file;
+        this.encoding = encoding;
+        this.doc = doc;
+        this.callback = callback;
+        this.fileSize = file.length();
+        this.timer = new Timer(TIMER_DELAY_MS, e -> appendSlice());
+        this.timer.setCoalesce(true);
+    }
+
+    /** Start loading. Call on the EDT, with the document already emptied. */
+    public void start() {
+        previousFilter = doc.getDocumentFilter();
+        doc.setDocumentFilter(new LoadingFilter());
+        readerThread = new Thread(this::read, "FileLoader");
+        readerThread.setPriority(Thread.NORM_PRIORITY);
+        readerThread.start();
+        timer.start();
+    }
+
+    /** Stop loading and leave whatever was appended so far in the document. */
+    public void cancel() {
+        if (done) {
+            return;
+        }
+        cancelled = true;
+        readerThread.interrupt();
+        finish();
+        callback.cancelled();
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    // --- Background thread ---
+
+    private void read() {
+        try (Reader in = encoding.newReader(new CountingInputStream(Files.newInputStream(file.toPath())))) {
+            char[] buffer = new char[MAX_CHUNK_CHARS];
+            int chunkSize = FIRST_CHUNK_CHARS;
+            while (!cancelled) {
+                int n = fill(in, buffer, chunkSize);
+                if (n <= 0) {
+                    break;
+                }
+                queue.put(new Chunk(new String(buffer, 0, n), bytesRead));
+                chunkSize = Math.min(chunkSize * 4, MAX_CHUNK_CHARS);
+            }
+            queue.put(END);
+        } catch (IOException ex) {
+            if (!cancelled) {
+                try {
+                    queue.put(ex);
+                } catch (InterruptedException ignored) {
+                    // Cancelled while reporting
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Cancelled
+        }
+    }
+
+    private static int fill(Reader in, char[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRead += n;
+            }
+            return n;
+        }
+    }
+
+    // --- EDT ---
+
+    private void appendSlice() {
+        if (done) {
+            return;
+        }
+        long now = System.nanoTime();
+        long slice = lastSliceEnd == 0 ? MIN_SLICE_NANOS : Math.max(MIN_SLICE_NANOS, now - lastSliceEnd);
+        long deadline = now + slice;
+        long position = -1;
+        do {
+            Object item = queue.poll();
+            if (item == null) {
+                break;
+            }
+            if (item == END) {
+                finish();
+                callback.finished();
+                return;
+            }
+            if (item instanceof IOException) {
+                finish();
+                callback.failed((IOException) item);
+                return;
+            }
+            Chunk chunk = (Chunk) item;
+            try {
+                appending = true;
+                doc.insertString(doc.getLength(), chunk.text, null);
+            } catch (BadLocationException ex) {
+                // Appending at getLength() is always valid
+                throw new IllegalStateException(ex);
+            } finally {
+                appending = false;
+            }
+            position = chunk.bytePosition;
+        } while (System.nanoTime() < deadline);
+        lastSliceEnd = System.nanoTime();
+
+        if (position >= 0 && fileSize > 0) {
+            int percent = (int) Math.min(100, position * 100 / fileSize);
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                callback.progress(percent);
+            }
+        }
+    }
+
+    private void finish() {
+        done = true;
+        timer.stop();
+        doc.setDocumentFilter(previousFilter);
+    }
+
+    /** Lets the loader's own appends through and refuses everything else. */
+    private class LoadingFilter extends DocumentFilter {
+        @Override
+        public void insertString(FilterBypass fb, int offset, String string, AttributeSet attr)
+                throws BadLocationException {
+            if (appending) {
+                super.insertString(fb, offset, string, attr);
+            } else {
+                UIManager.getLookAndFeel().provideErrorFeedback(null);
+            }
+        }
+
+        @Override
+        public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+            UIManager.getLookAndFeel().provideErrorFeedback(null);
+        }
+
+        @Override
+        public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs)
+                throws BadLocationException {
+            if (appending) {
+                super.replace(fb, offset, length, text, attrs);
+            } else {
+                UIManager.getLookAndFeel().provideErrorFeedback(null);
+            }
+        }
+    }
+}
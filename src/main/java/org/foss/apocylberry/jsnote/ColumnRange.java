@@ -0,0 +1,227 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import java.util.regex.Matcher;
+
+/**
+ * Restricts a search to a range of columns. A match counts only if it lies
+ * wholly between the first and last column of its line or, given a row length
+ * (the LRECL of a fixed-width file), of its row: a line then holds one window
+ * per row of that many chars.
+ *
+ * The search goes from one window straight to the next by way of the
+ * document's line elements, and reads nothing outside them. A regular
+ * expression is run on each window as a region with transparent bounds, the
+ * way {@link RegexSearch} runs it on a block: lookaround sees past the window,
+ * and {@code ^} and {@code $} still mean the ends of the line.
+ */
+public final class ColumnRange {
+    /** Receives matches in document order; returning false stops the search. */
+    public interface MatchConsumer {
+        boolean accept(int start, int end);
+    }
+
+    private static final int WINDOW_BATCH = 256;
+
+    private final int firstColumn; // 1-based, inclusive
+    private final int lastColumn;
+    private final int rowLength; // 0 for one row per line
+
+    public ColumnRange(int firstColumn, int lastColumn, int rowLength) {
+        if (firstColumn < 1 || lastColumn < firstColumn) {
+            throw new IllegalArgumentException("Bad column range " + firstColumn + "-" + lastColumn);
+        }
+        this.firstColumn = firstColumn;
+        this.lastColumn = lastColumn;
+        this.rowLength = Math.max(0, rowLength);
+    }
+
+    public int getFirstColumn() {
+        return firstColumn;
+    }
+
+    public int getLastColumn() {
+        return lastColumn;
+    }
+
+    public int getRowLength() {
+        return rowLength;
+    }
+
+    /**
+     * Pass each match starting in [from, to] that lies inside a window to the
+     * consumer. Literal matches come from {@code search} if it is given, and
+     * don't overlap; otherwise they come from {@code matcher}, which has to be
+     * reading this document.
+     */
+    public void forEachMatch(Document doc, DocumentSearch search, Matcher matcher, int from, int to,
+                             MatchConsumer consumer) {
+        int[] windows = new int[2 * WINDOW_BATCH];
+        int pos = from;
+        for (int count = nextWindows(doc, pos, to, windows); count > 0; count = nextWindows(doc, pos, to, windows)) {
+            for (int i = 0; i < 2 * count; i += 2) {
+                int start = windows[i];
+                int end = windows[i + 1];
+                if (start > to) {
+                    return;
+                }
+                if (search != null) {
+                    int m = search.length();
+                    int lastStart = Math.min(to, end - m);
+                    for (int found = search.find(doc, start, lastStart); found >= 0;
+                         found = search.find(doc, found + m, lastStart)) {
+                        if (!consumer.accept(found, found + m)) {
+                            return;
+                        }
+                    }
+                } else {
+                    matcher.region(start, end).useTransparentBounds(true).useAnchoringBounds(false);
+                    while (matcher.find() && matcher.start() <= to) {
+                        if (!consumer.accept(matcher.start(), matcher.end())) {
+                            return;
+                        }
+                    }
+                }
+            }
+            pos = windows[2 * count - 1];
+        }
+    }
+
+    /** The first match starting at or after {@code from}, as {start, end}, or null. */
+    public int[] findNext(Document doc, DocumentSearch search, Matcher matcher, int from) {
+        int[] found = new int[2];
+        boolean[] any = new boolean[1];
+        forEachMatch(doc, search, matcher, Math.max(0, from), Integer.MAX_VALUE, (start, end) -> {
+            found[0] = start;
+            found[1] = end;
+            any[0] = true;
+            return false;
+        });
+        return any[0] ? found : null;
+    }
+
+    /** The last match starting at or before {@code last}, as {start, end}, or null. */
+    public int[] findPrevious(Document doc, DocumentSearch search, Matcher matcher, int last) {
+        int[] found = new int[2];
+        boolean[] any = new boolean[1];
+        // Windows are short, so each is run forward and the last match kept
+        for (int[] window = previousWindow(doc, last); window != null && !any[0];
+             window = window[0] > 0 ? previousWindow(doc, window[0] - 1) : null) {
+            forEachMatch(doc, search, matcher, window[0], Math.min(last, window[1]), (start, end) -> {
+                found[0] = start;
+                found[1] = end;
+                any[0] = true;
+                return true;
+            });
+        }
+        return any[0] ? found : null;
+    }
+
+    /** Whether [start, end) lies inside a window. */
+    public boolean contains(Document doc, int start, int end) {
+        int[] window = previousWindow(doc, start);
+        return window != null && end <= window[1];
+    }
+
+    /**
+     * Fill {@code out} with the windows that end after {@code pos} and start
+     * no later than {@code to}, in order, as start and end pairs, the first
+     * start moved up to pos if it is before it. Returns how many there were, up
+     * to half the array's length. They are read under one lock, a batch at a
+     * time, rather than one by one.
+     */
+    private int nextWindows(Document doc, int pos, int to, int[] out) {
+        int[] count = new int[1];
+        int capacity = out.length / 2;
+        doc.render(() -> {
+            Element root = doc.getDefaultRootElement();
+            int length = doc.getLength();
+            int lines = root.getElementCount();
+            for (int index = root.getElementIndex(pos); index < lines && count[0] < capacity; index++) {
+                Element line = root.getElement(index);
+                int lineStart = line.getStartOffset();
+                int lineEnd = Math.min(line.getEndOffset() - 1, length);
+                int rowStart = lineStart;
+                if (rowLength > 0 && pos > lineStart) {
+                    // Straight to the row holding pos
+                    rowStart += (Math.min(pos, lineEnd) - lineStart) / rowLength * rowLength;
+                }
+                while (count[0] < capacity) {
+                    int rowEnd = rowEnd(rowStart, lineEnd);
+                    int start = clip(rowStart, firstColumn - 1L, rowEnd);
+                    int end = clip(rowStart, lastColumn, rowEnd);
+                    if (rowStart > to) {
+                        return;
+                    }
+                    if (start < end && end > pos) {
+                        out[2 * count[0]] = Math.max(start, pos);
+                        out[2 * count[0] + 1] = end;
+                        count[0]++;
+                    }
+                    if (rowEnd >= lineEnd) {
+                        break;
+                    }
+                    rowStart = rowEnd;
+                }
+            }
+        });
+        return count[0];
+    }
+
+    /** The last window that starts at or before {@code pos}, as {start, end}, or null. */
+    private int[] previousWindow(Document doc, int pos) {
+        int[][] window = new int[1][];
+        doc.render(() -> {
+            Element root = doc.getDefaultRootElement();
+            int length = doc.getLength();
+            for (int index = root.getElementIndex(Math.min(pos, length)); index >= 0 && window[0] == null;
+                 index--) {
+                Element line = root.getElement(index);
+                int lineStart = line.getStartOffset();
+                int lineEnd = Math.min(line.getEndOffset() - 1, length);
+                int rowStart = lineStart;
+                if (rowLength > 0 && lineEnd > lineStart) {
+                    rowStart += (Math.min(pos, lineEnd - 1) - lineStart) / rowLength * rowLength;
+                }
+                while (rowStart >= lineStart) {
+                    int rowEnd = rowEnd(rowStart, lineEnd);
+                    int start = clip(rowStart, firstColumn - 1L, rowEnd);
+                    int end = clip(rowStart, lastColumn, rowEnd);
+                    if (start < end && start <= pos) {
+                        window[0] = new int[] {start, end};
+                        break;
+                    }
+                    if (rowLength == 0) {
+                        break;
+                    }
+                    rowStart -= rowLength;
+                }
+            }
+        });
+        return window[0];
+    }
+
+    private int rowEnd(int rowStart, int lineEnd) {
+        return rowLength > 0 ? clip(rowStart, rowLength, lineEnd) : lineEnd;
+    }
+
+    /** {@code base + offset}, but no further than {@code limit}; the last column may be Integer.MAX_VALUE. */
+    private static int clip(int base, long offset, int limit) {
+        return (int) Math.min(base + offset, limit);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ColumnRange)) {
+            return false;
+        }
+        ColumnRange other = (ColumnRange) o;
+        return firstColumn == other.firstColumn && lastColumn == other.lastColumn && rowLength == other.rowLength;
+    }
+
+    @Override
+    public int hashCode() {
+        return (firstColumn * 31 + lastColumn) * 31 + rowLength;
+    }
+}
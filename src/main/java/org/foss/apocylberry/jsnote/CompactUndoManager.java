@@ -0,0 +1,1108 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.DocumentFilter;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Unlimited undo history that doesn't keep the document's edit objects.
+ *
+ * A plain insert or remove is kept as a record of primitives: its kind, offset
+ * and length, and where its text starts in an append-only char arena. The text
+ * removed is read just before it goes, by a DocumentFilter this manager puts on
+ * the document; the text inserted is read just after. Undo and redo replay the
+ * record as an ordinary insert or remove. Anything else (a Replace All, the
+ * compound edits of a FixedRecordDocument, a very large remove from a mapped
+ * file) is kept as the edit itself. Entries made between beginGroup and
+ * endGroup are undone as one.
+ *
+ * Typing is kept a word at a time: a one-char insert or remove right next to
+ * the one before extends its record rather than adding another, until a new
+ * word starts, a line ends, the caret goes elsewhere or the typing pauses.
+ *
+ * Once the records and their text take more than the memory budget, the oldest
+ * half is written to a temp file and dropped from memory. The file is a stack
+ * of such chunks: undoing back into one reads it in again and cuts it off the
+ * end of the file. Edit objects count towards the budget too, but can't go to
+ * disk: once they take more than half of it, the oldest are dropped, and the
+ * history before them with them.
+ */
+public class CompactUndoManager extends UndoManager {
+    public static final long DEFAULT_MEMORY_BUDGET = 32L * 1024 * 1024;
+    // What an edit object is taken to hold when it can't say
+    static final int OTHER_EDIT_BYTES = 512;
+
+    /** An edit object that knows roughly how much memory it holds. */
+    public interface SizedEdit extends UndoableEdit {
+        long getMemoryUsed();
+    }
+
+    private static final byte INSERT = 0;
+    private static final byte REMOVE = 1;
+    private static final byte OTHER = 2; // An edit object, kept in others
+    private static final byte KIND = 0x0F;
+    private static final byte JOINED = 0x10; // Undone and redone together with the entry before
+    private static final int RECORD_BYTES = 1 + 4 + 4 + 8 + 8;
+    // Bigger removes from a mapped file keep their own edit, which holds no copy of the text
+    private static final int MAX_MAPPED_RECORD_CHARS = 1 << 20;
+    private static final long TYPING_PAUSE_MS = 1000;
+    private static final int SAVED_MAGIC = 0x4A4E5531; // "JNU1"
+    private static final int MAX_SAVED_CHARS = 1 << 20;
+    private static final int SAVED_CHUNK_ENTRIES = 4096;
+
+    // Entries [first, size) are in memory, entry n at index n - first; [0, first) are spilled
+    private byte[] kinds = new byte[64];
+    private int[] offsets = new int[64];
+    private int[] lengths = new int[64];
+    private long[] textStarts = new long[64]; // Arena position of the entry's text
+    private long[] serials = new long[64];
+    private int first = 0;
+    private int size = 0;
+    private int done = 0; // Entries [0, done) are applied
+    private long nextSerial = 1;
+    private final TreeMap<Integer, UndoableEdit> others = new TreeMap<>();
+    private long othersMemory = 0;
+
+    private char[] arena = new char[1024];
+    private long arenaBase = 0; // Arena position of arena[0]
+    private int arenaLength = 0;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private File spillPath;
+    private RandomAccessFile spillFile;
+    private RandomAccessFile savedFile; // A restored history, until its chunks are read back
+    private final List<Chunk> chunks = new ArrayList<>(); // The entries before first, oldest first
+    private int floor = 0; // Entries before this were lost
+
+    private Document document;
+    private final CaptureFilter filter = new CaptureFilter();
+    private boolean replaying = false;
+    private int groupDepth = 0;
+    private boolean groupStarted; // The open group has its first entry
+    private boolean typing; // The last entry is typing that the next keystroke may extend
+    private long lastTyped;
+    private String removedText; // Read by the filter for the remove about to happen
+    private int removedOffset;
+
+    /** Bytes of records and text to keep in memory before the oldest go to disk. */
+    public synchronized void setMemoryBudget(long bytes) {
+        memoryBudget = Math.max(64 * 1024, bytes);
+        if (memoryUsed() > memoryBudget) {
+            evictOthers();
+            spill();
+        }
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Take edits from {@code doc} from now on. The filter that reads removed
+     * text moves to it; edits already in the history are replayed on it too,
+     * which is right as long as it holds the same text.
+     */
+    public synchronized void watch(Document doc) {
+        if (document instanceof AbstractDocument) {
+            AbstractDocument old = (AbstractDocument) document;
+            if (old.getDocumentFilter() == filter) {
+                old.setDocumentFilter(filter.next);
+            }
+        }
+        document = doc;
+        filter.next = null;
+        if (doc instanceof AbstractDocument) {
+            AbstractDocument abstractDoc = (AbstractDocument) doc;
+            if (abstractDoc.getDocumentFilter() != filter) {
+                filter.next = abstractDoc.getDocumentFilter();
+                abstractDoc.setDocumentFilter(filter);
+            }
+        }
+    }
+
+    /**
+     * Make the entries added until the matching {@link #endGroup} one step.
+     * Groups may nest; only the outermost counts.
+     */
+    public synchronized void beginGroup() {
+        if (groupDepth++ == 0) {
+            groupStarted = false;
+        }
+    }
+
+    public synchronized void endGroup() {
+        groupDepth = Math.max(0, groupDepth - 1);
+    }
+
+    /** Start a new undo step with the next keystroke, as after a save. */
+    public synchronized void breakTyping() {
+        typing = false;
+    }
+
+    /**
+     * The caret is at {@code dot} once an edit is done with. Anywhere but
+     * where typing on would go ends the word.
+     */
+    public synchronized void caretMoved(int dot) {
+        if (typing && size > first) {
+            int last = size - 1 - first;
+            int next = (kinds[last] & KIND) == INSERT ? offsets[last] + lengths[last] : offsets[last];
+            if (dot != next) {
+                typing = false;
+            }
+        }
+    }
+
+    /**
+     * Where the history stands: a number for the entry the next undo would take
+     * back, or null at the start. Undoing and redoing back to a point gives an
+     * equal value again.
+     */
+    public synchronized Object getPosition() {
+        if (done == 0) {
+            return null;
+        }
+        if (done - 1 < first) {
+            return chunks.isEmpty() ? null : chunks.get(chunks.size() - 1).lastSerial;
+        }
+        return serials[done - 1 - first];
+    }
+
+    // --- UndoManager ---
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit edit) {
+        if (replaying) {
+            // The document reporting our own undo or redo
+            return true;
+        }
+        String removed = removedText;
+        int removedAt = removedOffset;
+        removedText = null;
+        truncate();
+        if (edit instanceof AbstractDocument.DefaultDocumentEvent) {
+            AbstractDocument.DefaultDocumentEvent event = (AbstractDocument.DefaultDocumentEvent) edit;
+            int offset = event.getOffset();
+            int length = event.getLength();
+            if (event.getDocument() == document && length > 0 && recordable(document, length)) {
+                if (event.getType() == DocumentEvent.EventType.INSERT) {
+                    try {
+                        String text = document.getText(offset, length);
+                        if (!extendTyping(INSERT, offset, text)) {
+                            append(INSERT, offset, text, null);
+                        }
+                        return true;
+                    } catch (BadLocationException ex) {
+                        // Fall through and keep the event
+                    }
+                } else if (event.getType() == DocumentEvent.EventType.REMOVE
+                           && removed != null && removedAt == offset && removed.length() == length) {
+                    if (!extendTyping(REMOVE, offset, removed)) {
+                        append(REMOVE, offset, removed, null);
+                    }
+                    return true;
+                }
+            }
+        }
+        append(OTHER, 0, null, edit);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean canUndo() {
+        return done > floor;
+    }
+
+    @Override
+    public synchronized boolean canRedo() {
+        return done < size;
+    }
+
+    @Override
+    public synchronized void undo() throws CannotUndoException {
+        if (done <= floor) {
+            throw new CannotUndoException();
+        }
+        typing = false;
+        boolean joined;
+        do {
+            if (done - 1 < first) {
+                reload();
+            }
+            joined = (kinds[done - 1 - first] & JOINED) != 0;
+            apply(done - 1, false);
+            done--;
+        } while (joined && done > floor);
+    }
+
+    @Override
+    public synchronized void redo() throws CannotRedoException {
+        if (done == size) {
+            throw new CannotRedoException();
+        }
+        typing = false;
+        do {
+            apply(done, true);
+            done++;
+        } while (done < size && (kinds[done - first] & JOINED) != 0);
+    }
+
+    @Override
+    public synchronized boolean canUndoOrRedo() {
+        return done == size ? canUndo() : canRedo();
+    }
+
+    @Override
+    public synchronized void undoOrRedo() {
+        if (done == size) {
+            undo();
+        } else {
+            redo();
+        }
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        typing = false;
+        others.clear();
+        othersMemory = 0;
+        chunks.clear();
+        closeSavedFile();
+        floor = 0;
+        first = 0;
+        size = 0;
+        done = 0;
+        arenaBase = 0;
+        arenaLength = 0;
+        if (spillFile != null) {
+            try {
+                spillFile.setLength(0);
+            } catch (IOException ex) {
+                // Later spills go after the old chunks, which nothing points to any more
+            }
+        }
+    }
+
+    /** Count limits don't apply; the history is bounded by the memory budget and the disk. */
+    @Override
+    public synchronized void setLimit(int l) {
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return -1;
+    }
+
+    @Override
+    public synchronized String getUndoPresentationName() {
+        return done > 0 ? UIManager.getString("AbstractUndoableEdit.undoText") + " " + name(done - 1)
+                        : UIManager.getString("AbstractUndoableEdit.undoText");
+    }
+
+    @Override
+    public synchronized String getRedoPresentationName() {
+        return done < size ? UIManager.getString("AbstractUndoableEdit.redoText") + " " + name(done)
+                           : UIManager.getString("AbstractUndoableEdit.redoText");
+    }
+
+    @Override
+    public synchronized String getUndoOrRedoPresentationName() {
+        return done == size ? getUndoPresentationName() : getRedoPresentationName();
+    }
+
+    private String name(int n) {
+        if (n < first) {
+            return "";
+        }
+        switch (kinds[n - first] & KIND) {
+            case INSERT:
+                return UIManager.getString("AbstractDocument.additionText");
+            case REMOVE:
+                return UIManager.getString("AbstractDocument.deletionText");
+            default:
+                return others.get(n).getPresentationName();
+        }
+    }
+
+    // --- History ---
+
+    private void apply(int n, boolean redo) {
+        int i = n - first;
+        if ((kinds[i] & KIND) == OTHER) {
+            UndoableEdit edit = others.get(n);
+            if (redo) {
+                edit.redo();
+            } else {
+                edit.undo();
+            }
+            return;
+        }
+        // Undoing a remove, or redoing an insert, puts the text in
+        boolean insert = ((kinds[i] & KIND) == INSERT) == redo;
+        replaying = true;
+        try {
+            if (insert) {
+                int at = (int) (textStarts[i] - arenaBase);
+                document.insertString(offsets[i], new String(arena, at, lengths[i]), null);
+            } else {
+                document.remove(offsets[i], lengths[i]);
+            }
+        } catch (BadLocationException ex) {
+            if (redo) {
+                throw new CannotRedoException();
+            }
+            throw new CannotUndoException();
+        } finally {
+            replaying = false;
+        }
+    }
+
+    /** Drop the entries that were undone, as a new edit makes them unreachable. */
+    private void truncate() {
+        if (done == size) {
+            return;
+        }
+        dropOthers(others.tailMap(done));
+        if (done > first) {
+            int last = done - 1 - first;
+            arenaLength = (int) (textStarts[last] - arenaBase) + textLength(last);
+        } else {
+            arenaLength = 0;
+        }
+        size = done;
+    }
+
+    private int textLength(int i) {
+        return (kinds[i] & KIND) == OTHER ? 0 : lengths[i];
+    }
+
+    private void append(byte kind, int offset, String text, UndoableEdit edit) {
+        int i = size - first;
+        if (i == kinds.length) {
+            int capacity = i * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            textStarts = Arrays.copyOf(textStarts, capacity);
+            serials = Arrays.copyOf(serials, capacity);
+        }
+        kinds[i] = groupDepth > 0 && groupStarted ? (byte) (kind | JOINED) : kind;
+        groupStarted = groupDepth > 0;
+        offsets[i] = offset;
+        textStarts[i] = arenaBase + arenaLength;
+        serials[i] = nextSerial++;
+        if (text != null) {
+            lengths[i] = text.length();
+            if (arenaLength + text.length() > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + text.length()));
+            }
+            text.getChars(0, text.length(), arena, arenaLength);
+            arenaLength += text.length();
+        } else {
+            lengths[i] = 0;
+            others.put(size, edit);
+            othersMemory += sizeOf(edit);
+        }
+        size++;
+        done = size;
+        typing = text != null && text.length() == 1 && groupDepth == 0;
+        lastTyped = System.currentTimeMillis();
+        if (memoryUsed() > memoryBudget) {
+            evictOthers();
+            spill();
+        }
+    }
+
+    /**
+     * Add a keystroke to the typing record it continues, if there is one: an
+     * insert just after it, or a remove just before (Backspace) or at (Delete)
+     * where it left off.
+     */
+    private boolean extendTyping(byte kind, int offset, String text) {
+        long now = System.currentTimeMillis();
+        if (!typing || text.length() != 1 || groupDepth > 0 || done != size || size == first
+            || now - lastTyped > TYPING_PAUSE_MS) {
+            return false;
+        }
+        int last = size - 1 - first;
+        if ((kinds[last] & KIND) != kind) {
+            return false;
+        }
+        int at = (int) (textStarts[last] - arenaBase);
+        int end = at + lengths[last];
+        char c = text.charAt(0);
+        boolean before; // The char goes ahead of the record's text
+        if (kind == INSERT && offset == offsets[last] + lengths[last]) {
+            before = false;
+        } else if (kind == REMOVE && offset == offsets[last]) {
+            before = false;
+        } else if (kind == REMOVE && offset == offsets[last] - 1) {
+            before = true;
+        } else {
+            return false;
+        }
+        if (before ? wordBreak(c, arena[at]) : wordBreak(arena[end - 1], c)) {
+            return false;
+        }
+
+        if (arenaLength == arena.length) {
+            arena = Arrays.copyOf(arena, arena.length * 2);
+        }
+        // The last entry's text is at the end of the arena
+        if (before) {
+            System.arraycopy(arena, at, arena, at + 1, lengths[last]);
+            arena[at] = c;
+            offsets[last] = offset;
+        } else {
+            arena[end] = c;
+        }
+        arenaLength++;
+        lengths[last]++;
+        // The text is different now, so the position is too
+        serials[last] = nextSerial++;
+        lastTyped = now;
+        return true;
+    }
+
+    /** Whether typing {@code right} just after {@code left} starts a new step. */
+    private static boolean wordBreak(char left, char right) {
+        return left == '\n' || !isWordChar(left) && isWordChar(right);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private long memoryUsed() {
+        return recordMemory() + othersMemory;
+    }
+
+    private long recordMemory() {
+        return (long) (size - first) * RECORD_BYTES + 2L * arenaLength;
+    }
+
+    private static long sizeOf(UndoableEdit edit) {
+        return edit instanceof SizedEdit ? ((SizedEdit) edit).getMemoryUsed() : OTHER_EDIT_BYTES;
+    }
+
+    private void dropOthers(Map<Integer, UndoableEdit> dropped) {
+        for (UndoableEdit edit : dropped.values()) {
+            othersMemory -= sizeOf(edit);
+        }
+        dropped.clear();
+    }
+
+    // --- Edit objects over the budget ---
+
+    /**
+     * Drop the oldest undo steps that hold edit objects, and everything before
+     * them, until the objects left take half the budget at most. The step the
+     * next undo would take back is always kept.
+     */
+    private void evictOthers() {
+        while (othersMemory > memoryBudget / 2 && !others.isEmpty()) {
+            int n = others.firstKey();
+            if (n >= done) {
+                return;
+            }
+            int end = stepEnd(n);
+            if (end >= done) {
+                return;
+            }
+            floor = end;
+            dropOthers(others.headMap(floor));
+        }
+    }
+
+    /** The entry after the undo step that entry {@code n} belongs to. */
+    private int stepEnd(int n) {
+        int end = n + 1;
+        if (end < first) {
+            // On disk: find the chunk it is in, then read on through as many as the step takes
+            int start = first;
+            int c = chunks.size();
+            while (c > 0 && start > end) {
+                c--;
+                start -= chunks.get(c).count;
+            }
+            if (start > end) {
+                return first;
+            }
+            try {
+                for (; end < first; c++) {
+                    Chunk chunk = chunks.get(c);
+                    byte[] chunkKinds = read(chunk).kinds;
+                    while (end < start + chunk.count && (chunkKinds[end - start] & JOINED) != 0) {
+                        end++;
+                    }
+                    if (end < start + chunk.count) {
+                        return end;
+                    }
+                    start += chunk.count;
+                }
+            } catch (IOException ex) {
+                // The older history can't be undone anyway once it can't be read
+                return first;
+            }
+        }
+        while (end < size && (kinds[end - first] & JOINED) != 0) {
+            end++;
+        }
+        return end;
+    }
+
+    // --- Spill file and saved history ---
+
+    /** A run of entries on disk, in the spill file or in a saved history. */
+    private static final class Chunk {
+        RandomAccessFile file;
+        long start;
+        final int bytes;
+        final int count;
+        final int textLength;
+        final long textBase; // Arena position of the text of its first entry
+        final long lastSerial;
+        final boolean deflated;
+        final boolean movable; // No object edits in it, and it doesn't start inside a group
+
+        Chunk(RandomAccessFile file, long start, int bytes, int count, int textLength, long textBase,
+              long lastSerial, boolean deflated, boolean movable) {
+            this.file = file;
+            this.start = start;
+            this.bytes = bytes;
+            this.count = count;
+            this.textLength = textLength;
+            this.textBase = textBase;
+            this.lastSerial = lastSerial;
+            this.deflated = deflated;
+            this.movable = movable;
+        }
+    }
+
+    /** Entries read back from a chunk, their text end to end. */
+    private static final class Entries {
+        final byte[] kinds;
+        final int[] offsets;
+        final int[] lengths;
+        final long[] serials;
+        final StringBuilder text = new StringBuilder();
+
+        Entries(int count) {
+            kinds = new byte[count];
+            offsets = new int[count];
+            lengths = new int[count];
+            serials = new long[count];
+        }
+    }
+
+    /** Write the oldest entries in memory to the spill file until half the budget is left. */
+    private void spill() {
+        int count = 0;
+        long used = recordMemory();
+        while (first + count < done && used > memoryBudget / 2) {
+            used -= RECORD_BYTES + 2L * textLength(count);
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        try {
+            if (spillFile == null) {
+                spillPath = File.createTempFile("jsnote-undo", ".tmp");
+                spillPath.deleteOnExit();
+                spillFile = new RandomAccessFile(spillPath, "rw");
+            }
+            byte[] bytes = encode(0, count, 0);
+            long start = spillFile.length();
+            spillFile.seek(start);
+            spillFile.write(bytes);
+            chunks.add(new Chunk(spillFile, start, bytes.length, count, textBetween(0, count), textStarts[0],
+                serials[count - 1], false, movable(0, count)));
+        } catch (IOException ex) {
+            // Keep it all in memory rather than lose it
+            memoryBudget = Long.MAX_VALUE;
+            return;
+        }
+
+        int keep = size - first - count;
+        int textDropped = count < size - first ? (int) (textStarts[count] - arenaBase) : arenaLength;
+        System.arraycopy(kinds, count, kinds, 0, keep);
+        System.arraycopy(offsets, count, offsets, 0, keep);
+        System.arraycopy(lengths, count, lengths, 0, keep);
+        System.arraycopy(textStarts, count, textStarts, 0, keep);
+        System.arraycopy(serials, count, serials, 0, keep);
+        System.arraycopy(arena, textDropped, arena, 0, arenaLength - textDropped);
+        arenaLength -= textDropped;
+        arenaBase += textDropped;
+        first += count;
+        if (size == first) {
+            typing = false;
+        }
+        // The arrays only grow as entries come in; give back the room of those gone to disk
+        if (arena.length > 2 * Math.max(1024, arenaLength)) {
+            arena = Arrays.copyOf(arena, Math.max(1024, arenaLength + arenaLength / 2));
+        }
+        if (kinds.length > 2 * Math.max(64, keep)) {
+            int capacity = Math.max(64, keep + keep / 2);
+            kinds = Arrays.copyOf(kinds, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            textStarts = Arrays.copyOf(textStarts, capacity);
+            serials = Arrays.copyOf(serials, capacity);
+        }
+    }
+
+    /** Read the last chunk on disk back in, ahead of the entries in memory. */
+    private void reload() {
+        Chunk chunk = chunks.remove(chunks.size() - 1);
+        int count = chunk.count;
+        Entries entries;
+        try {
+            entries = read(chunk);
+            if (chunk.file == spillFile && chunk.start + chunk.bytes == spillFile.length()) {
+                spillFile.setLength(chunk.start);
+            }
+            if (chunk.file == savedFile && chunks.isEmpty()) {
+                closeSavedFile();
+            }
+        } catch (IOException ex) {
+            // The older history is gone; what is in memory still works
+            chunks.clear();
+            closeSavedFile();
+            floor = first;
+            throw new CannotUndoException();
+        }
+
+        int inMemory = size - first;
+        int capacity = Math.max(kinds.length, inMemory + count);
+        byte[] newKinds = Arrays.copyOf(entries.kinds, capacity);
+        int[] newOffsets = Arrays.copyOf(entries.offsets, capacity);
+        int[] newLengths = Arrays.copyOf(entries.lengths, capacity);
+        long[] newSerials = Arrays.copyOf(entries.serials, capacity);
+        long[] newTextStarts = new long[capacity];
+        long textStart = chunk.textBase;
+        for (int i = 0; i < count; i++) {
+            newTextStarts[i] = textStart;
+            textStart += (newKinds[i] & KIND) == OTHER ? 0 : newLengths[i];
+        }
+        System.arraycopy(kinds, 0, newKinds, count, inMemory);
+        System.arraycopy(offsets, 0, newOffsets, count, inMemory);
+        System.arraycopy(lengths, 0, newLengths, count, inMemory);
+        System.arraycopy(textStarts, 0, newTextStarts, count, inMemory);
+        System.arraycopy(serials, 0, newSerials, count, inMemory);
+        kinds = newKinds;
+        offsets = newOffsets;
+        lengths = newLengths;
+        textStarts = newTextStarts;
+        serials = newSerials;
+
+        StringBuilder text = entries.text;
+        char[] newArena = new char[Math.max(arena.length, text.length() + arenaLength)];
+        text.getChars(0, text.length(), newArena, 0);
+        System.arraycopy(arena, 0, newArena, text.length(), arenaLength);
+        arena = newArena;
+        arenaLength += text.length();
+        arenaBase = chunk.textBase;
+        first -= count;
+    }
+
+    /**
+     * The entries at [from, to) in memory, one after another: kind, offset,
+     * length and serial, then the text. Serials are numbered on from
+     * {@code serialBase} instead, if it is not 0.
+     */
+    private byte[] encode(int from, int to, long serialBase) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = from; i < to; i++) {
+            out.writeByte(kinds[i]);
+            out.writeInt(offsets[i]);
+            out.writeInt(lengths[i]);
+            out.writeLong(serialBase != 0 ? serialBase + i - from : serials[i]);
+            int at = (int) (textStarts[i] - arenaBase);
+            for (int c = 0; c < textLength(i); c++) {
+                out.writeChar(arena[at + c]);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entries read(Chunk chunk) throws IOException {
+        return decode(readStored(chunk), chunk);
+    }
+
+    /** A chunk's bytes as they are on disk. */
+    private static byte[] readStored(Chunk chunk) throws IOException {
+        byte[] bytes = new byte[chunk.bytes];
+        chunk.file.seek(chunk.start);
+        chunk.file.readFully(bytes);
+        return bytes;
+    }
+
+    private static Entries decode(byte[] bytes, Chunk chunk) throws IOException {
+        InputStream stream = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(chunk.deflated ? new InflaterInputStream(stream) : stream);
+        Entries entries = new Entries(chunk.count);
+        for (int i = 0; i < chunk.count; i++) {
+            entries.kinds[i] = in.readByte();
+            entries.offsets[i] = in.readInt();
+            entries.lengths[i] = in.readInt();
+            entries.serials[i] = in.readLong();
+            if ((entries.kinds[i] & KIND) != OTHER) {
+                for (int c = 0; c < entries.lengths[i]; c++) {
+                    entries.text.append(in.readChar());
+                }
+            }
+        }
+        return entries;
+    }
+
+    private int textBetween(int from, int to) {
+        int chars = 0;
+        for (int i = from; i < to; i++) {
+            chars += textLength(i);
+        }
+        return chars;
+    }
+
+    /** Whether [from, to) in memory holds only records and doesn't start partway through a group. */
+    private boolean movable(int from, int to) {
+        if (from < to && (kinds[from] & JOINED) != 0) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if ((kinds[i] & KIND) == OTHER) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // --- Saving the history with the file ---
+
+    /**
+     * Write the way back from the text as it is now to {@code target}, for
+     * {@link #restoreHistory} to pick up when the same text is opened again.
+     * {@code key} and {@code fingerprint} name the file and its text. What is
+     * written is the newest stretch of history made up of records alone, with
+     * at most {@link #MAX_SAVED_CHARS} of text; redo is left out. If there is
+     * no such stretch, the target is deleted instead and this returns false.
+     *
+     * Which entries go in is settled here, and those in memory are copied out;
+     * chunks on disk are read, everything is compressed and the file written
+     * on the {@link UndoHistoryStore} writer.
+     */
+    public synchronized boolean saveHistory(Path target, String key, long fingerprint) {
+        // Whole chunks on disk, then entries in memory, as far back as they go
+        int chars = 0;
+        int from = done;
+        while (from > Math.max(first, floor)) {
+            int i = from - 1 - first;
+            if ((kinds[i] & KIND) == OTHER || chars + lengths[i] > MAX_SAVED_CHARS) {
+                break;
+            }
+            chars += lengths[i];
+            from--;
+        }
+        int fromChunk = chunks.size();
+        if (from == first && from > floor) {
+            while (fromChunk > 0 && chunks.get(fromChunk - 1).movable
+                   && chars + chunks.get(fromChunk - 1).textLength <= MAX_SAVED_CHARS) {
+                fromChunk--;
+                chars += chunks.get(fromChunk).textLength;
+            }
+        }
+        if (fromChunk == chunks.size()) {
+            // Don't start inside a group
+            while (from < done && (kinds[from - first] & JOINED) != 0) {
+                from++;
+            }
+        }
+        if (fromChunk == chunks.size() && from == done) {
+            UndoHistoryStore.writeLater(target, Files::deleteIfExists);
+            return false;
+        }
+
+        List<Chunk> onDisk = new ArrayList<>(chunks.subList(fromChunk, chunks.size()));
+        long serial = 1;
+        for (Chunk chunk : onDisk) {
+            serial += chunk.count;
+        }
+        List<byte[]> inMemory = new ArrayList<>();
+        List<long[]> inMemoryRows = new ArrayList<>(); // count, text length
+        try {
+            for (int i = from - first; i < done - first; i += SAVED_CHUNK_ENTRIES) {
+                int end = Math.min(done - first, i + SAVED_CHUNK_ENTRIES);
+                inMemory.add(encode(i, end, serial));
+                inMemoryRows.add(new long[] {end - i, textBetween(i, end)});
+                serial += end - i;
+            }
+        } catch (IOException ex) {
+            // Only written to memory
+            throw new IllegalStateException(ex);
+        }
+        UndoHistoryStore.writeLater(target, path -> writeHistory(path, key, fingerprint, onDisk, inMemory, inMemoryRows));
+        return true;
+    }
+
+    /** The writer's half of {@link #saveHistory}. */
+    private void writeHistory(Path target, String key, long fingerprint, List<Chunk> onDisk, List<byte[]> inMemory,
+                              List<long[]> inMemoryRows) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp.toFile(), "rw")) {
+            out.writeInt(SAVED_MAGIC);
+            out.writeLong(fingerprint);
+            out.writeUTF(key);
+            long tableAt = out.getFilePointer();
+            out.writeLong(0);
+            List<long[]> table = new ArrayList<>(); // start, bytes, count, text length
+            long serial = 1;
+            for (Chunk chunk : onDisk) {
+                byte[] stored;
+                synchronized (this) {
+                    if (!chunks.contains(chunk)) {
+                        // Undone back into since; the history has moved on and will be saved again
+                        throw new IOException("The undo history changed while it was being saved");
+                    }
+                    stored = readStored(chunk);
+                }
+                byte[] bytes = reencode(decode(stored, chunk), serial);
+                table.add(new long[] {out.getFilePointer(), bytes.length, chunk.count, chunk.textLength});
+                out.write(bytes);
+                serial += chunk.count;
+            }
+            for (int c = 0; c < inMemory.size(); c++) {
+                byte[] bytes = deflate(inMemory.get(c));
+                table.add(new long[] {out.getFilePointer(), bytes.length, inMemoryRows.get(c)[0], inMemoryRows.get(c)[1]});
+                out.write(bytes);
+            }
+            long tableStart = out.getFilePointer();
+            out.writeInt(table.size());
+            for (long[] row : table) {
+                out.writeLong(row[0]);
+                out.writeInt((int) row[1]);
+                out.writeInt((int) row[2]);
+                out.writeInt((int) row[3]);
+            }
+            out.seek(tableAt);
+            out.writeLong(tableStart);
+        } catch (IOException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        synchronized (this) {
+            // A history restored from the target may still be reading from it
+            moveSavedChunksToSpillFile();
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Take up a history written by {@link #saveHistory}, if it was written for
+     * this file and text and the history here is empty. Only the table of
+     * chunks is read now; each chunk is read when undo gets back to it.
+     */
+    public synchronized boolean restoreHistory(Path source, String key, long fingerprint) throws IOException {
+        if (size > 0 || !Files.isRegularFile(source)) {
+            return false;
+        }
+        RandomAccessFile in = new RandomAccessFile(source.toFile(), "r");
+        List<Chunk> restored = new ArrayList<>();
+        int count = 0;
+        long textBase = 0;
+        try {
+            if (in.readInt() != SAVED_MAGIC || in.readLong() != fingerprint || !in.readUTF().equals(key)) {
+                in.close();
+                return false;
+            }
+            in.seek(in.readLong());
+            int chunkCount = in.readInt();
+            for (int c = 0; c < chunkCount; c++) {
+                long start = in.readLong();
+                int bytes = in.readInt();
+                int entries = in.readInt();
+                int textLength = in.readInt();
+                count += entries;
+                restored.add(new Chunk(in, start, bytes, entries, textLength, textBase, count, true, true));
+                textBase += textLength;
+            }
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        if (restored.isEmpty()) {
+            in.close();
+            return false;
+        }
+        savedFile = in;
+        chunks.addAll(restored);
+        first = count;
+        size = count;
+        done = count;
+        floor = 0;
+        nextSerial = count + 1;
+        arenaBase = textBase;
+        arenaLength = 0;
+        return true;
+    }
+
+    private byte[] reencode(Entries entries, long serialBase) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(bytes);
+        DataOutputStream out = new DataOutputStream(deflater);
+        int at = 0;
+        for (int i = 0; i < entries.kinds.length; i++) {
+            out.writeByte(entries.kinds[i]);
+            out.writeInt(entries.offsets[i]);
+            out.writeInt(entries.lengths[i]);
+            out.writeLong(serialBase + i);
+            for (int c = 0; c < entries.lengths[i]; c++) {
+                out.writeChar(entries.text.charAt(at++));
+            }
+        }
+        out.flush();
+        deflater.finish();
+        return bytes.toByteArray();
+    }
+
+    /** Copy the chunks still in a restored history's file into the spill file, and let the file go. */
+    private void moveSavedChunksToSpillFile() throws IOException {
+        if (savedFile == null) {
+            return;
+        }
+        for (Chunk chunk : chunks) {
+            if (chunk.file == savedFile) {
+                byte[] bytes = new byte[chunk.bytes];
+                savedFile.seek(chunk.start);
+                savedFile.readFully(bytes);
+                if (spillFile == null) {
+                    spillPath = File.createTempFile("jsnote-undo", ".tmp");
+                    spillPath.deleteOnExit();
+                    spillFile = new RandomAccessFile(spillPath, "rw");
+                }
+                chunk.start = spillFile.length();
+                chunk.file = spillFile;
+                spillFile.seek(chunk.start);
+                spillFile.write(bytes);
+            }
+        }
+        closeSavedFile();
+    }
+
+    private void closeSavedFile() {
+        if (savedFile != null) {
+            try {
+                savedFile.close();
+            } catch (IOException ex) {
+                // Only read from
+            }
+            savedFile = null;
+        }
+    }
+
+    /**
+     * Whether an edit this long is kept as a record. Any other edit of a
+     * document with a line structure has to be too: a document's own edit
+     * puts back the very line elements it took out, which replaying a record
+     * will have replaced with new ones.
+     */
+    private static boolean recordable(Document doc, int length) {
+        return !(doc instanceof MappedDocument) || length <= MAX_MAPPED_RECORD_CHARS;
+    }
+
+    /** Reads the text a remove or replace is about to take out, for the undo record. */
+    private class CaptureFilter extends DocumentFilter {
+        DocumentFilter next; // A filter that was there first, which still has its say
+
+        @Override
+        public void insertString(FilterBypass fb, int offset, String string, AttributeSet attr)
+                throws BadLocationException {
+            if (next != null) {
+                next.insertString(fb, offset, string, attr);
+            } else {
+                super.insertString(fb, offset, string, attr);
+            }
+        }
+
+        @Override
+        public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+            capture(fb.getDocument(), offset, length);
+            if (next != null) {
+                next.remove(fb, offset, length);
+            } else {
+                super.remove(fb, offset, length);
+            }
+        }
+
+        @Override
+        public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs)
+                throws BadLocationException {
+            capture(fb.getDocument(), offset, length);
+            if (next != null) {
+                next.replace(fb, offset, length, text, attrs);
+            } else {
+                super.replace(fb, offset, length, text, attrs);
+            }
+        }
+
+        private void capture(Document doc, int offset, int length) throws BadLocationException {
+            // Called under the document's write lock, like addEdit just after it
+            removedText = null;
+            if (replaying || length <= 0 || !recordable(doc, length) || !listening(doc)) {
+                return;
+            }
+            removedText = doc.getText(offset, length);
+            removedOffset = offset;
+        }
+
+        /** Whether the edit will reach this manager, rather than undo tracking being off. */
+        private boolean listening(Document doc) {
+            if (!(doc instanceof AbstractDocument)) {
+                return false;
+            }
+            for (UndoableEditListener listener : ((AbstractDocument) doc).getUndoableEditListeners()) {
+                if (listener == CompactUndoManager.this) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A range of a Document as a CharSequence, for running java.util.regex over a
+ * document without copying it into a String.
+ *
+ * Chars are copied a block at a time into a buffer of the sequence's own,
+ * under the document's read lock, and served from there until a read falls
+ * outside the block. Every so often the sequence asks {@code cancelled} whether to go
+ * on, and throws CancellationException if not; that is the only way to stop a
+ * Matcher stuck in a pathological pattern. It also throws if the document
+ * shrinks under it. Safe to use off the EDT, since each block is copied
+ * under the document's read lock, but the text may change between blocks: whoever sets
+ * {@code cancelled} should do so when the document is edited.
+ */
+public final class DocumentCharSequence implements CharSequence {
+    private static final int CHECK_INTERVAL = 4096;
+    private static final int BLOCK_CHARS = 16 * 1024;
+
+    private final Document doc;
+    private final int start;
+    private final int end;
+    private final BooleanSupplier cancelled;
+    private final Segment segment = new Segment();
+    private char[] block;
+    // Document offsets covered by block
+    private int loadedStart = 0;
+    private int loadedEnd = 0;
+    private int untilCheck = CHECK_INTERVAL;
+
+    public DocumentCharSequence(Document doc, BooleanSupplier cancelled) {
+        this(doc, 0, doc.getLength(), cancelled);
+    }
+
+    private DocumentCharSequence(Document doc, int start, int end, BooleanSupplier cancelled) {
+        this.doc = doc;
+        this.start = start;
+        this.end = end;
+        this.cancelled = cancelled;
+        segment.setPartialReturn(true);
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (--untilCheck <= 0) {
+            untilCheck = CHECK_INTERVAL;
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+        }
+        int offset = start + index;
+        if (offset < loadedStart || offset >= loadedEnd) {
+            if (index < 0 || offset >= end) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            load(offset);
+        }
+        return block[offset - loadedStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > length() || from > to) {
+            throw new IndexOutOfBoundsException(from + ", " + to);
+        }
+        return new DocumentCharSequence(doc, start + from, start + to, cancelled);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(length());
+        for (int offset = start; offset < end; offset = loadedEnd) {
+            load(offset);
+            text.append(block, 0, loadedEnd - offset);
+        }
+        return text.toString();
+    }
+
+    private void load(int offset) {
+        if (block == null) {
+            block = new char[Math.min(BLOCK_CHARS, length())];
+        }
+        int n = Math.min(block.length, end - offset);
+        boolean[] changed = new boolean[1];
+        doc.render(() -> {
+            try {
+                for (int copied = 0; copied < n; copied += segment.count) {
+                    doc.getText(offset + copied, n - copied, segment);
+                    System.arraycopy(segment.array, segment.offset, block, copied, segment.count);
+                }
+            } catch (BadLocationException ex) {
+                // Shorter than when the search started; its results are stale anyway
+                changed[0] = true;
+            }
+        });
+        if (changed[0]) {
+            throw new CancellationException("Document changed");
+        }
+        loadedStart = offset;
+        loadedEnd = offset + n;
+    }
+}
@@ -0,0 +1,210 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.Random;
+
+/**
+ * Keeps the {@link TextFingerprint} of a document current as it is edited, so
+ * that comparing the text with a saved state or with the file on disk is a
+ * comparison of two longs.
+ *
+ * The text is split into chunks of a few KB, and only each chunk's length and
+ * hash are kept, in a treap ordered by position. Every node also holds the hash
+ * of its subtree, so the document's hash is the root's. An edit rehashes just
+ * the chunks it touches, reading them back from the document, and costs
+ * O(chunk size + log n) whatever the size of the document. Use on the EDT.
+ */
+public class DocumentFingerprint implements DocumentListener {
+    private static final int CHUNK_CHARS = 2048;
+    private static final int MAX_CHUNK_CHARS = 4 * CHUNK_CHARS;
+
+    private final Document doc;
+    private final Segment segment = new Segment();
+    private final Random priorities = new Random();
+    private Chunk root;
+
+    private static final class Chunk {
+        final int length;
+        final long hash;
+        final long power;
+        final int priority;
+        Chunk left;
+        Chunk right;
+        // Over the subtree: left, this chunk, right
+        int totalLength;
+        long totalHash;
+        long totalPower;
+
+        Chunk(int length, long hash, int priority) {
+            this.length = length;
+            this.hash = hash;
+            this.power = TextFingerprint.power(length);
+            this.priority = priority;
+            update();
+        }
+
+        void update() {
+            totalLength = length(left) + length + length(right);
+            long h = TextFingerprint.concat(hash(left), hash, power);
+            totalHash = TextFingerprint.concat(h, hash(right), power(right));
+            totalPower = TextFingerprint.multiply(TextFingerprint.multiply(power(left), power), power(right));
+        }
+    }
+
+    /** Fingerprint a document and follow its changes. Reads the whole text once. */
+    public DocumentFingerprint(Document doc) {
+        this.doc = doc;
+        root = build(0, doc.getLength());
+        doc.addDocumentListener(this);
+    }
+
+    /** Fingerprint of the document's current text. */
+    public long get() {
+        if (length(root) != doc.getLength()) {
+            // Changed without telling its listeners; start over
+            root = build(0, doc.getLength());
+        }
+        return hash(root);
+    }
+
+    /** Stop following the document. */
+    public void detach() {
+        doc.removeDocumentListener(this);
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        if (root == null) {
+            root = build(0, doc.getLength());
+            return;
+        }
+        // The chunk the text went into; at the very end, the last one
+        int[] span = chunkAt(Math.min(offset, length(root) - 1));
+        rebuild(span[0], span[1], span[1] + e.getLength());
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int end = offset + e.getLength();
+        int start = chunkAt(offset)[0];
+        int last = chunkAt(end - 1)[1];
+        rebuild(start, last, last - e.getLength());
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes leave the text alone
+    }
+
+    /**
+     * Replace the chunks covering [start, oldEnd) before the edit with chunks
+     * hashed from [start, newEnd) of the document as it is now.
+     */
+    private void rebuild(int start, int oldEnd, int newEnd) {
+        Chunk[] head = split(root, start);
+        Chunk[] tail = split(head[1], oldEnd - start);
+        root = merge(merge(head[0], build(start, newEnd)), tail[1]);
+    }
+
+    /** Chunks for [start, end) of the document. */
+    private Chunk build(int start, int end) {
+        Chunk built = null;
+        // A chunk that grew past the limit is cut into ordinary ones
+        int pieceChars = end - start <= MAX_CHUNK_CHARS ? MAX_CHUNK_CHARS : CHUNK_CHARS;
+        for (int offset = start; offset < end; offset += pieceChars) {
+            int length = Math.min(pieceChars, end - offset);
+            built = merge(built, new Chunk(length, hashText(offset, length), priorities.nextInt()));
+        }
+        return built;
+    }
+
+    private long hashText(int offset, int length) {
+        long hash = 0;
+        try {
+            segment.setPartialReturn(true);
+            int done = 0;
+            while (done < length) {
+                doc.getText(offset + done, length - done, segment);
+                hash = TextFingerprint.update(hash, segment.array, segment.offset, segment.count);
+                done += segment.count;
+            }
+        } catch (BadLocationException ex) {
+            // Chunks never reach past the end of the document
+            throw new IllegalStateException(ex);
+        }
+        return hash;
+    }
+
+    /** Start and end offset of the chunk holding {@code offset}. */
+    private int[] chunkAt(int offset) {
+        Chunk node = root;
+        int base = 0;
+        while (true) {
+            int leftLength = length(node.left);
+            if (offset < base + leftLength) {
+                node = node.left;
+            } else if (offset < base + leftLength + node.length || node.right == null) {
+                int start = base + leftLength;
+                return new int[] {start, start + node.length};
+            } else {
+                base += leftLength + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    /** Split into the chunks before {@code position}, which must fall between chunks, and the rest. */
+    private static Chunk[] split(Chunk node, int position) {
+        if (node == null) {
+            return new Chunk[2];
+        }
+        int leftLength = length(node.left);
+        if (position <= leftLength) {
+            Chunk[] parts = split(node.left, position);
+            node.left = parts[1];
+            node.update();
+            parts[1] = node;
+            return parts;
+        }
+        Chunk[] parts = split(node.right, position - leftLength - node.length);
+        node.right = parts[0];
+        node.update();
+        parts[0] = node;
+        return parts;
+    }
+
+    private static Chunk merge(Chunk a, Chunk b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.update();
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.update();
+        return b;
+    }
+
+    private static int length(Chunk node) {
+        return node == null ? 0 : node.totalLength;
+    }
+
+    private static long hash(Chunk node) {
+        return node == null ? 0 : node.totalHash;
+    }
+
+    private static long power(Chunk node) {
+        return node == null ? 1 : node.totalPower;
+    }
+}
@@ -0,0 +1,193 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Literal search through a Document without copying its text.
+ *
+ * The document is read with {@link Document#getText(int, int, Segment)} and
+ * partial returns, which hands out the content's own arrays (GapContent's
+ * buffer, a MappedFileContent page), and each array is scanned in place with
+ * Boyer-Moore-Horspool. Only a match that straddles two arrays is checked in a
+ * small buffer of its own. Without match case, chars are folded one at a time
+ * as they are compared, the way {@link String#equalsIgnoreCase} does, so offsets
+ * always line up with the document.
+ */
+public final class DocumentSearch {
+    private static final int BACKWARD_BLOCK = 64 * 1024;
+
+    private final String pattern;
+    private final char[] folded;
+    private final boolean matchCase;
+    private final int[] skip = new int[256];
+    private final Segment segment = new Segment();
+    private final char[] bridge;
+
+    public DocumentSearch(String pattern, boolean matchCase) {
+        if (pattern.isEmpty()) {
+            throw new IllegalArgumentException("Empty search pattern");
+        }
+        this.pattern = pattern;
+        this.matchCase = matchCase;
+        int m = pattern.length();
+        folded = new char[m];
+        for (int i = 0; i < m; i++) {
+            folded[i] = fold(pattern.charAt(i));
+        }
+        // Chars sharing a table slot take the smallest shift of any of them, which is always safe
+        java.util.Arrays.fill(skip, m);
+        for (int i = 0; i < m - 1; i++) {
+            skip[folded[i] & 0xFF] = m - 1 - i;
+        }
+        bridge = new char[2 * m];
+        segment.setPartialReturn(true);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public boolean isMatchCase() {
+        return matchCase;
+    }
+
+    /** Length of every match. */
+    public int length() {
+        return folded.length;
+    }
+
+    /** Start of the first match at or after {@code from}, or -1. */
+    public int findNext(Document doc, int from) {
+        return find(doc, Math.max(0, from), doc.getLength() - folded.length);
+    }
+
+    /** Start of the last match that starts at or before {@code from}, or -1. */
+    public int findPrevious(Document doc, int from) {
+        int lastStart = Math.min(from, doc.getLength() - folded.length);
+        while (lastStart >= 0) {
+            // Scan forward through one block at a time, keeping the last match in it
+            int blockStart = Math.max(0, lastStart - BACKWARD_BLOCK);
+            int found = -1;
+            int next = find(doc, blockStart, lastStart);
+            while (next >= 0) {
+                found = next;
+                next = next < lastStart ? find(doc, next + 1, lastStart) : -1;
+            }
+            if (found >= 0) {
+                return found;
+            }
+            lastStart = blockStart - 1;
+        }
+        return -1;
+    }
+
+    /** Start of the first match starting in [from, lastStart], or -1. */
+    public int find(Document doc, int from, int lastStart) {
+        int m = folded.length;
+        int length = doc.getLength();
+        lastStart = Math.min(lastStart, length - m);
+        int pos = from;
+        try {
+            while (pos <= lastStart) {
+                doc.getText(pos, length - pos, segment);
+                int segmentEnd = pos + segment.count;
+                // Windows that lie wholly inside this array
+                int windows = Math.min(segmentEnd - m, lastStart) - pos + 1;
+                if (windows > 0) {
+                    int found = scan(segment.array, segment.offset, windows);
+                    if (found >= 0) {
+                        return pos + found;
+                    }
+                }
+                // Windows that run on into the next one
+                int crossStart = Math.max(pos, segmentEnd - m + 1);
+                int crossEnd = Math.min(segmentEnd - 1, lastStart);
+                if (crossStart <= crossEnd) {
+                    int count = crossEnd - crossStart + m;
+                    read(doc, crossStart, count);
+                    int found = scan(bridge, 0, crossEnd - crossStart + 1);
+                    if (found >= 0) {
+                        return crossStart + found;
+                    }
+                }
+                pos = segmentEnd;
+            }
+        } catch (BadLocationException ex) {
+            // Offsets are kept inside the document
+            throw new IllegalStateException(ex);
+        }
+        return -1;
+    }
+
+    /**
+     * Start of the first match lying wholly in {@code text[from, end)}, or -1.
+     * Unlike the Document methods, safe to call from several threads at once.
+     */
+    public int find(char[] text, int from, int end) {
+        int windows = end - folded.length - from + 1;
+        if (windows <= 0) {
+            return -1;
+        }
+        int found = scan(text, from, windows);
+        return found < 0 ? -1 : from + found;
+    }
+
+    /** Whether the document holds a match at {@code offset}. */
+    public boolean matchesAt(Document doc, int offset) {
+        if (offset < 0 || offset + folded.length > doc.getLength()) {
+            return false;
+        }
+        try {
+            read(doc, offset, folded.length);
+        } catch (BadLocationException ex) {
+            return false;
+        }
+        return scan(bridge, 0, 1) == 0;
+    }
+
+    /** Index of the first match among the first {@code windows} window starts of {@code text[offset...]}. */
+    private int scan(char[] text, int offset, int windows) {
+        int m = folded.length;
+        char last = folded[m - 1];
+        int i = 0;
+        while (i < windows) {
+            char c = fold(text[offset + i + m - 1]);
+            if (c == last && regionMatches(text, offset + i)) {
+                return i;
+            }
+            i += skip[c & 0xFF];
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(char[] text, int start) {
+        for (int j = folded.length - 2; j >= 0; j--) {
+            if (fold(text[start + j]) != folded[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Copy a few chars, which may span several of the content's arrays, into the bridge. */
+    private void read(Document doc, int offset, int count) throws BadLocationException {
+        int done = 0;
+        while (done < count) {
+            doc.getText(offset + done, count - done, segment);
+            System.arraycopy(segment.array, segment.offset, bridge, done, segment.count);
+            done += segment.count;
+        }
+    }
+
+    private char fold(char c) {
+        if (matchCase) {
+            return c;
+        }
+        if (c < 128) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
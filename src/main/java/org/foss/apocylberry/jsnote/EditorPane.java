@@ -5,343 +5,367 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.undo.*;
+import java.io.File;
+import java.io.IOException;
 
 public class EditorPane extends JTextPane {
 
     /**
-     * Custom UndoManager that properly preserves undo history when adding CompoundEdits.
-     * The standard UndoManager clears the undo stack when a new edit is added, which
-     * prevents access to edits prior to a CompoundEdit. This implementation preserves that history.
+     * The one editor kit the pane ever has. Its views look up wrap, LRECL and
+     * special characters on the pane as they lay out and paint, so changing a
+     * mode keeps the document and its views and only flows the lines again.
+     * In a monospaced font the lines are {@link GridLineView}s, made only for
+     * what is on screen by a {@link VirtualSectionView}; otherwise the lines
+     * are flowed from glyph views.
      */
-    private static class HistoryPreservingUndoManager extends UndoManager {
-        private int trackedLimit = -1;
-        
-        @Override
-        public synchronized void setLimit(int l) {
-            trackedLimit = l;
-            super.setLimit(l);
-        }
-        
+    private static class ModeEditorKit extends StyledEditorKit {
+        private EditorPane pane;
+        private final ViewFactory factory = new ModeViewFactory();
+
         @Override
-        public synchronized boolean addEdit(UndoableEdit e) {
-            String editType = e instanceof CompoundEdit ? "CompoundEdit" : e.getClass().getSimpleName();
-            System.err.println("DEBUG: HistoryPreservingUndoManager.addEdit for " + editType);
-            System.err.println("DEBUG:   Current edits count before: " + edits.size());
-            System.err.println("DEBUG:   Current limit: " + trackedLimit);
-            
-            // Call super.addEdit which will add the edit
-            boolean result = super.addEdit(e);
-            
-            System.err.println("DEBUG:   Current edits count after: " + edits.size());
-            System.err.println("DEBUG:   canUndo after addEdit: " + this.canUndo());
-            
-            return result;
+        public void install(JEditorPane c) {
+            super.install(c);
+            pane = c instanceof EditorPane ? (EditorPane) c : null;
         }
-    }
 
-    private static class WrapEditorKit extends StyledEditorKit {
-        ViewFactory defaultFactory = new WrapColumnFactory();
-        public ViewFactory getViewFactory() {
-            return defaultFactory;
+        @Override
+        public void deinstall(JEditorPane c) {
+            super.deinstall(c);
+            pane = null;
         }
-    }
 
-
-
-    // --- NO WRAP EDITOR KIT with LRECL character-position wrapping ---
-    private static class NoWrapEditorKit extends StyledEditorKit {
-        private final ViewFactory defaultFactory = new NoWrapColumnFactory();
         @Override
         public ViewFactory getViewFactory() {
-            return defaultFactory;
+            return factory;
         }
-        private static class NoWrapColumnFactory implements ViewFactory {
+
+        private class ModeViewFactory implements ViewFactory {
             public View create(Element elem) {
                 String kind = elem.getName();
-                if (kind != null && kind.equals(AbstractDocument.ContentElementName))
-                    return new LRECLGlyphView(elem);
-                if (kind != null && kind.equals(AbstractDocument.ParagraphElementName))
-                    return new LRECLNoWrapParagraphView(elem);
-                if (kind != null && kind.equals(AbstractDocument.SectionElementName))
-                    return new BoxView(elem, View.Y_AXIS);
-                if (kind != null && kind.equals(StyleConstants.ComponentElementName))
-                    return new ComponentView(elem);
-                if (kind != null && kind.equals(StyleConstants.IconElementName))
-                    return new IconView(elem);
+                if (kind != null) {
+                    switch (kind) {
+                        case AbstractDocument.ContentElementName:
+                            return new LRECLGlyphView(elem);
+                        case AbstractDocument.ParagraphElementName:
+                            // Asked again whenever the font changes, since that rebuilds the views
+                            if (pane != null && pane.isFixedPitch()) {
+                                return new GridLineView(elem);
+                            }
+                            return new ModeParagraphView(elem);
+                        case AbstractDocument.SectionElementName:
+                            // Grid lines are only made for what is on screen
+                            if (pane != null && pane.isFixedPitch()) {
+                                return new VirtualSectionView(elem);
+                            }
+                            return new BoxView(elem, View.Y_AXIS);
+                        case StyleConstants.ComponentElementName:
+                            return new ComponentView(elem);
+                        case StyleConstants.IconElementName:
+                            return new IconView(elem);
+                    }
+                }
                 return new LabelView(elem);
             }
         }
-        
-
+    }
 
-        // GlyphView that enforces hard breaks at LRECL character positions
-        private static class LRECLGlyphView extends GlyphView {
-            public LRECLGlyphView(Element elem) {
-                super(elem);
-            }
-            
-            private int getMaxLineLength() {
-                Container parent = getContainer();
-                if (parent instanceof EditorPane) {
-                    return ((EditorPane)parent).getMaxLineLength();
-                }
-                return 0; // 0 means no LRECL limit
-            }
-            
+    private static EditorPane paneOf(View view) {
+        Container parent = view.getContainer();
+        return parent instanceof EditorPane ? (EditorPane) parent : null;
+    }
 
+    /**
+     * A run of text. Wrapped, it breaks between words and can be squeezed to
+     * any width; unwrapped, it breaks only at LRECL character positions. Either
+     * way it marks spaces, tabs and line ends when special characters are shown.
+     */
+    private static class LRECLGlyphView extends LabelView {
+        // Views are only laid out on the EDT, so one will do for peeking at line ends
+        private static final Segment PEEK = new Segment();
 
+        private int lineEndLength = -1; // Not yet measured
 
-            @Override
-            public int getNextVisualPositionFrom(int pos, Position.Bias b, Shape a, 
-                                                 int direction, Position.Bias[] biasRet) 
-                                                 throws BadLocationException {
-                // Override to ensure we can navigate to the end position of this fragment
-                int endOffset = getEndOffset();
-                
-                // Allow moving to the end offset even if it's at the fragment boundary
-                if (direction == EAST && pos < endOffset) {
-                    // Moving right - allow reaching the end offset
-                    int next = pos + 1;
-                    if (next <= endOffset) {
-                        if (biasRet != null && biasRet.length > 0) {
-                            biasRet[0] = Position.Bias.Forward;
-                        }
-                        return next;
-                    }
-                }
-                
-                return super.getNextVisualPositionFrom(pos, b, a, direction, biasRet);
-            }
-            
+        public LRECLGlyphView(Element elem) {
+            super(elem);
+        }
 
-            private int getLogicalLineStartOffset() {
-                // Get the document line (Element) that this view belongs to
-                Element elem = getElement();
-                if (elem == null) return 0;
-                
-                // The logical line starts at the element's start offset
-                return elem.getStartOffset();
-            }
-            
+        private int getMaxLineLength() {
+            EditorPane pane = paneOf(this);
+            return pane != null ? pane.getMaxLineLength() : 0; // 0 means no LRECL limit
+        }
 
+        private boolean isWrapped() {
+            EditorPane pane = paneOf(this);
+            return pane != null && pane.getLineWrap();
+        }
 
-            @Override
-            public int getBreakWeight(int axis, float pos, float len) {
-                if (axis == X_AXIS) {
-                    int maxLen = getMaxLineLength();
-                    if (maxLen <= 0) {
-                        // No LRECL limit - never break
-                        return BadBreakWeight;
-                    }
-                    
-                    // Calculate position relative to the logical line start (document line)
-                    int logicalLineStart = getLogicalLineStartOffset();
-                    int p0 = getStartOffset();
-                    int p1 = getEndOffset();
-                    
-                    // Don't count trailing newline in column calculations
-                    try {
-                        String text = getDocument().getText(p0, p1 - p0);
-                        if (text.endsWith("\n") || text.endsWith("\r")) {
-                            p1--;
-                            if (p1 > p0 && text.length() > 1 && text.charAt(text.length() - 2) == '\r' && text.endsWith("\n")) {
-                                p1--; // Handle \r\n
-                            }
-                        }
-                    } catch (BadLocationException e) {
-                        // Ignore
-                    }
-                    
+        @Override
+        public float getMinimumSpan(int axis) {
+            if (axis == View.X_AXIS) {
+                // Unwrapped, the run only breaks at LRECL, which the line's own width allows for;
+                // there is no need to look for the longest word
+                return isWrapped() ? 0 : getPreferredSpan(axis);
+            }
+            return super.getMinimumSpan(axis);
+        }
 
-                    // Calculate column positions relative to the logical line
-                    int viewStartCol = p0 - logicalLineStart;
-                    int viewEndCol = p1 - logicalLineStart;
-                    
-                    // Calculate which LRECL row this fragment starts and ends in (0, 1, 2, ...)
-                    // Offsets are positions BETWEEN characters, so:
-                    // - Position 0-16 contains characters 0-15 (row 0)
-                    // - Position 16-32 contains characters 16-31 (row 1)
-                    int rowStart = viewStartCol / maxLen;
-                    int rowEnd = (viewEndCol > 0) ? (viewEndCol - 1) / maxLen : 0;
-                    
-                    if (rowEnd > rowStart) {
-                        // This view spans multiple LRECL rows - must break
-                        return ForcedBreakWeight;
-                    }
+        @Override
+        public float getPreferredSpan(int axis) {
+            float span = super.getPreferredSpan(axis);
+            if (axis == View.X_AXIS && isWrapped()) {
+                int lrecl = getMaxLineLength();
+                if (lrecl > 0) {
+                    FontMetrics fm = getContainer().getFontMetrics(getFont());
+                    span = Math.min(span, fm.charWidth('W') * lrecl);
                 }
-                return BadBreakWeight; // Never break for word wrapping reasons
             }
-            
-            @Override
-            public View breakView(int axis, int p0, float pos, float len) {
-                if (axis == X_AXIS) {
-                    int maxLen = getMaxLineLength();
-                    if (maxLen > 0) {
-                        // Calculate column position relative to the logical line start
-                        int logicalLineStart = getLogicalLineStartOffset();
-                        int currentCol = p0 - logicalLineStart;
-                        
-                        // Find the next LRECL boundary
-                        int currentRow = currentCol / maxLen;
-                        int nextRowStart = (currentRow + 1) * maxLen;
-                        
-                        int p1 = getEndOffset();
-                        
-                        // Don't count trailing newline when breaking
-                        try {
-                            String text = getDocument().getText(p0, p1 - p0);
-                            if (text.endsWith("\n") || text.endsWith("\r")) {
-                                p1--;
-                                if (p1 > p0 && text.length() > 1 && text.charAt(text.length() - 2) == '\r' && text.endsWith("\n")) {
-                                    p1--; // Handle \r\n
-                                }
-                            }
-                        } catch (BadLocationException e) {
-                            // Ignore
-                        }
-                        
-                        int endCol = p1 - logicalLineStart;
-                        
-                        // If this fragment extends into the next row, break at the row boundary
-                        if (endCol > nextRowStart) {
-                            int breakAt = logicalLineStart + nextRowStart;
-                            if (breakAt > p0 && breakAt <= p1) {
-                                GlyphView v = (GlyphView) createFragment(p0, breakAt);
-                                return v;
-                            }
-                        }
+            return span;
+        }
+
+        @Override
+        public int getNextVisualPositionFrom(int pos, Position.Bias b, Shape a,
+                                             int direction, Position.Bias[] biasRet)
+                                             throws BadLocationException {
+            // Unwrapped, make sure we can navigate to the end position of this fragment
+            int endOffset = getEndOffset();
+
+            // Allow moving to the end offset even if it's at the fragment boundary
+            if (!isWrapped() && direction == EAST && pos < endOffset) {
+                // Moving right - allow reaching the end offset
+                int next = pos + 1;
+                if (next <= endOffset) {
+                    if (biasRet != null && biasRet.length > 0) {
+                        biasRet[0] = Position.Bias.Forward;
                     }
+                    return next;
                 }
-                return super.breakView(axis, p0, pos, len);
             }
+
+            return super.getNextVisualPositionFrom(pos, b, a, direction, biasRet);
         }
-        
 
+        private int getLogicalLineStartOffset() {
+            // Get the document line (Element) that this view belongs to
+            Element elem = getElement();
+            if (elem == null) return 0;
+
+            // The logical line starts at the element's start offset
+            return elem.getStartOffset();
+        }
 
-        // ParagraphView that respects LRECL breaking and left-aligns content
-        private static class LRECLNoWrapParagraphView extends ParagraphView {
-            public LRECLNoWrapParagraphView(Element elem) {
-                super(elem);
+        /**
+         * Where the text of [p0, p1) ends, leaving out the line end the run may
+         * close with. Worked out from offsets alone once the run's line end has
+         * been measured.
+         */
+        private int getTextEnd(int p0, int p1) {
+            if (lineEndLength < 0) {
+                lineEndLength = measureLineEnd();
             }
-            
-            private int getMaxLineLength() {
-                Container parent = getContainer();
-                if (parent instanceof EditorPane) {
-                    return ((EditorPane)parent).getMaxLineLength();
+            int textEnd = getElement().getEndOffset() - lineEndLength;
+            return Math.max(p0, Math.min(p1, textEnd));
+        }
+
+        /** How many chars of line end (none, \n, \r or \r\n) close this run's element. */
+        private int measureLineEnd() {
+            Element elem = getElement();
+            Document doc = getDocument();
+            int start = elem.getStartOffset();
+            int end = elem.getEndOffset();
+            int length = doc.getLength();
+            if (end > length) {
+                // The newline every document implies after its last char
+                return end - length;
+            }
+            if (end <= start) {
+                return 0;
+            }
+            try {
+                int peek = Math.min(2, end - start);
+                doc.getText(end - peek, peek, PEEK);
+                char last = PEEK.array[PEEK.offset + PEEK.count - 1];
+                if (last != '\n' && last != '\r') {
+                    return 0;
                 }
+                return PEEK.count == 2 && last == '\n' && PEEK.array[PEEK.offset] == '\r' ? 2 : 1; // Handle \r\n
+            } catch (BadLocationException e) {
                 return 0;
             }
-            
-            @Override
-            protected SizeRequirements calculateMinorAxisRequirements(int axis, SizeRequirements r) {
-                SizeRequirements req = super.calculateMinorAxisRequirements(axis, r);
+        }
+
+        @Override
+        public void insertUpdate(javax.swing.event.DocumentEvent e, Shape a, ViewFactory f) {
+            lineEndLength = -1;
+            super.insertUpdate(e, a, f);
+        }
+
+        @Override
+        public void removeUpdate(javax.swing.event.DocumentEvent e, Shape a, ViewFactory f) {
+            lineEndLength = -1;
+            super.removeUpdate(e, a, f);
+        }
+
+        @Override
+        public void changedUpdate(javax.swing.event.DocumentEvent e, Shape a, ViewFactory f) {
+            lineEndLength = -1;
+            super.changedUpdate(e, a, f);
+        }
+
+        @Override
+        public int getBreakWeight(int axis, float pos, float len) {
+            if (isWrapped()) {
+                return super.getBreakWeight(axis, pos, len);
+            }
+            if (axis == X_AXIS) {
                 int maxLen = getMaxLineLength();
-                if (maxLen > 0 && axis == X_AXIS) {
-                    // Limit the width requirement to LRECL
-                    Container c = getContainer();
-                    if (c != null) {
-                        FontMetrics fm = c.getFontMetrics(c.getFont());
-                        int maxWidth = fm.charWidth('W') * maxLen;
-                        req.minimum = Math.min(req.minimum, maxWidth);
-                        req.preferred = Math.min(req.preferred, maxWidth);
-                        req.maximum = Math.min(req.maximum, maxWidth);
-                    }
+                if (maxLen <= 0) {
+                    // No LRECL limit - never break
+                    return BadBreakWeight;
                 }
-                // Force left alignment (no centering) - alignment must be 0.0 for left-align
-                req.alignment = 0.0f;
-                return req;
-            }
-            
-            @Override
-            public float getAlignment(int axis) {
-                // Force left alignment on X axis
-                if (axis == X_AXIS) {
-                    return 0.0f;
+
+                // Calculate column positions relative to the logical line (document line),
+                // not counting a trailing newline
+                int logicalLineStart = getLogicalLineStartOffset();
+                int p0 = getStartOffset();
+                int viewStartCol = p0 - logicalLineStart;
+                int viewEndCol = getTextEnd(p0, getEndOffset()) - logicalLineStart;
+
+                // Calculate which LRECL row this fragment starts and ends in (0, 1, 2, ...)
+                // Offsets are positions BETWEEN characters, so:
+                // - Position 0-16 contains characters 0-15 (row 0)
+                // - Position 16-32 contains characters 16-31 (row 1)
+                int rowStart = viewStartCol / maxLen;
+                int rowEnd = (viewEndCol > 0) ? (viewEndCol - 1) / maxLen : 0;
+
+                if (rowEnd > rowStart) {
+                    // This view spans multiple LRECL rows - must break
+                    return ForcedBreakWeight;
                 }
-                return super.getAlignment(axis);
-            }
-            
-            @Override
-            protected void layout(int width, int height) {
-                super.layout(width, height);
             }
+            return BadBreakWeight; // Never break for word wrapping reasons
         }
-    }
 
-    private static class WrapColumnFactory implements ViewFactory {
-        public View create(Element elem) {
-            String kind = elem.getName();
-            if (kind != null) {
-                switch (kind) {
-                    case AbstractDocument.ContentElementName:
-                        return new WrapLabelView(elem);
-                    case AbstractDocument.ParagraphElementName:
-                        return new LRECLParagraphView(elem);
-                    case AbstractDocument.SectionElementName:
-                        return new BoxView(elem, View.Y_AXIS);
-                    case StyleConstants.ComponentElementName:
-                        return new ComponentView(elem);
-                    case StyleConstants.IconElementName:
-                        return new IconView(elem);
+        @Override
+        public View breakView(int axis, int p0, float pos, float len) {
+            if (axis == X_AXIS && !isWrapped()) {
+                int maxLen = getMaxLineLength();
+                if (maxLen > 0) {
+                    // Calculate column position relative to the logical line start
+                    int logicalLineStart = getLogicalLineStartOffset();
+                    int currentCol = p0 - logicalLineStart;
+
+                    // Find the next LRECL boundary
+                    int nextRowStart = (currentCol / maxLen + 1) * maxLen;
+
+                    // Don't count trailing newline when breaking
+                    int p1 = getTextEnd(p0, getEndOffset());
+
+                    // If this fragment extends into the next row, break at the row boundary
+                    int breakAt = logicalLineStart + nextRowStart;
+                    if (breakAt > p0 && breakAt < p1) {
+                        return createFragment(p0, breakAt);
+                    }
                 }
             }
-            return new LabelView(elem);
+            return super.breakView(axis, p0, pos, len);
         }
-    }
 
-    private static class WrapLabelView extends LabelView {
-        private int getDynamicMaxLineLength() {
-            Container parent = getContainer();
-            if (parent instanceof EditorPane) {
-                return ((EditorPane)parent).getMaxLineLength();
+        @Override
+        public void paint(Graphics g, Shape allocation) {
+            super.paint(g, allocation);
+            EditorPane pane = paneOf(this);
+            if (pane != null && pane.isShowSpecialCharacters()) {
+                paintSpecialCharacters(g, allocation);
             }
-            return 1024;
-        }
-        public WrapLabelView(Element elem) {
-            super(elem);
         }
 
-        public float getMinimumSpan(int axis) {
-            switch (axis) {
-                case View.X_AXIS:
-                    return 0;
-                case View.Y_AXIS:
-                    return super.getMinimumSpan(axis);
-                default:
-                    throw new IllegalArgumentException("Invalid axis: " + axis);
+        private void paintSpecialCharacters(Graphics g, Shape allocation) {
+            Document doc = getDocument();
+            int startOffset = getStartOffset();
+            int endOffset = getEndOffset();
+            Segment text = new Segment();
+            Graphics2D g2d = (Graphics2D) g;
+            Color originalColor = g2d.getColor();
+            Object antialiasing = g2d.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setColor(SpecialCharacterMarks.MARK_COLOR);
+            try {
+                doc.getText(startOffset, endOffset - startOffset, text);
+                int trailingFrom = -1; // Not looked for until a line end turns up
+
+                for (int i = 0; i < text.count; i++) {
+                    char c = text.array[text.offset + i];
+                    int offset = startOffset + i;
+                    if (!SpecialCharacterMarks.isMarked(c)) {
+                        continue;
+                    }
+
+                    // Skip trailing newline(s) at document end - for both \n and \r\n
+                    if (c == '\n' || c == '\r') {
+                        if (trailingFrom < 0) {
+                            trailingFrom = SpecialCharacterMarks.trailingLineEndsStart(doc);
+                        }
+                        if (offset >= trailingFrom) {
+                            continue;
+                        }
+                    }
+
+                    // Get the visual position of this character
+                    Shape bounds = modelToView(offset, allocation, Position.Bias.Forward);
+                    if (bounds != null) {
+                        SpecialCharacterMarks.paint(g2d, c, bounds.getBounds());
+                    }
+                }
+            } catch (BadLocationException e) {
+                // Ignore painting errors
+            } finally {
+                g2d.setColor(originalColor);
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasing);
             }
         }
+    }
 
-        @Override
-        public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
-            return super.modelToView(pos, a, b);
+    /**
+     * A line, left-aligned. Unwrapped, it asks for no more width than LRECL
+     * characters.
+     */
+    private static class ModeParagraphView extends ParagraphView {
+        public ModeParagraphView(Element elem) {
+            super(elem);
         }
 
-        @Override
-        public int getBreakWeight(int axis, float pos, float len) {
-            return super.getBreakWeight(axis, pos, len);
+        /** Throw away the rows, to be flowed again under the pane's new mode. */
+        void modeChanged() {
+            layoutChanged(X_AXIS);
+            layoutChanged(Y_AXIS);
+            preferenceChanged(null, true, true);
         }
 
         @Override
-        public View breakView(int axis, int offset, float pos, float len) {
-            return super.breakView(axis, offset, pos, len);
+        protected SizeRequirements calculateMinorAxisRequirements(int axis, SizeRequirements r) {
+            SizeRequirements req = super.calculateMinorAxisRequirements(axis, r);
+            EditorPane pane = paneOf(this);
+            int maxLen = pane != null ? pane.getMaxLineLength() : 0;
+            if (maxLen > 0 && axis == X_AXIS && !pane.getLineWrap()) {
+                // Limit the width requirement to LRECL
+                FontMetrics fm = pane.getFontMetrics(pane.getFont());
+                int maxWidth = fm.charWidth('W') * maxLen;
+                req.minimum = Math.min(req.minimum, maxWidth);
+                req.preferred = Math.min(req.preferred, maxWidth);
+                req.maximum = Math.min(req.maximum, maxWidth);
+            }
+            // Force left alignment (no centering) - alignment must be 0.0 for left-align
+            req.alignment = 0.0f;
+            return req;
         }
 
-        public float getPreferredSpan(int axis) {
-            switch (axis) {
-                case View.X_AXIS:
-                    float width = super.getPreferredSpan(axis);
-                    int lrecl = getDynamicMaxLineLength();
-                    if (lrecl > 0) {
-                        FontMetrics fm = ((JTextPane)getContainer()).getFontMetrics(getFont());
-                        width = Math.min(width, fm.charWidth('W') * lrecl);
-                    }
-                    return width;
-                case View.Y_AXIS:
-                    return super.getPreferredSpan(axis);
-                default:
-                    throw new IllegalArgumentException("Invalid axis: " + axis);
+        @Override
+        public float getAlignment(int axis) {
+            // Force left alignment on X axis
+            if (axis == X_AXIS) {
+                return 0.0f;
             }
+            return super.getAlignment(axis);
         }
     }
 
@@ -349,11 +373,13 @@ public class EditorPane extends JTextPane {
     private boolean lineWrap = false;
     private boolean wrapStyleWord = false;
     private StyledDocument styledDoc;
-    private UndoManager undoManager;
+    private CompactUndoManager undoManager;
     private ProxyUndoListener proxyUndoListener;
 
     private boolean overtypeMode = false;
     private boolean showSpecialCharacters = false;
+    private boolean busy = false; // A Replace All is working through the text
+    private boolean editableWhenIdle = true;
 
     /**
      * Proxy listener that can toggle between sending edits to the UndoManager
@@ -400,11 +426,11 @@ public class EditorPane extends JTextPane {
 
     public EditorPane() {
         setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-        styledDoc = (StyledDocument) getDocument();
-        undoManager = new HistoryPreservingUndoManager();
-        undoManager.setLimit(-1); // Unlimited undo
-        System.err.println("DEBUG: EditorPane init - Document: " + System.identityHashCode(styledDoc) + ", UndoManager: " + System.identityHashCode(undoManager));
+        undoManager = new CompactUndoManager(); // Unlimited undo
+        System.err.println("DEBUG: EditorPane init - Document: " + System.identityHashCode(getDocument()) + ", UndoManager: " + System.identityHashCode(undoManager));
         attachUndoListener();
+        // Looked at once the edit that moved it is done with, so typing isn't taken for a jump
+        addCaretListener(e -> SwingUtilities.invokeLater(() -> undoManager.caretMoved(getCaretPosition())));
         InputMap inputMap = getInputMap(JComponent.WHEN_FOCUSED);
         ActionMap actionMap = getActionMap();
         inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK), "Undo");
@@ -415,7 +441,7 @@ public class EditorPane extends JTextPane {
             @Override
             public void actionPerformed(ActionEvent e) {
                 try {
-                    if (undoManager.canUndo()) {
+                    if (!busy && undoManager.canUndo()) {
                         undoManager.undo();
                     }
                 } catch (Exception ex) {}
@@ -425,7 +451,7 @@ public class EditorPane extends JTextPane {
             @Override
             public void actionPerformed(ActionEvent e) {
                 try {
-                    if (undoManager.canRedo()) {
+                    if (!busy && undoManager.canRedo()) {
                         undoManager.redo();
                     }
                 } catch (Exception ex) {}
@@ -439,7 +465,20 @@ public class EditorPane extends JTextPane {
             }
         });
         putClientProperty("FileChooser.enableLocking", Boolean.FALSE);
-        setLineWrap(false);
+    }
+
+    @Override
+    protected EditorKit createDefaultEditorKit() {
+        return new ModeEditorKit();
+    }
+
+    @Override
+    public void setDocument(Document doc) {
+        super.setDocument(doc);
+        // Called from the JTextPane constructor before the undo manager exists
+        if (undoManager != null) {
+            attachUndoListener();
+        }
     }
 
     /**
@@ -470,33 +509,62 @@ public class EditorPane extends JTextPane {
         }
         
         styledDoc = newDoc;
+        undoManager.watch(newDoc);
     }
 
 
+    /**
+     * Flow every line again under the current wrap and LRECL settings. The
+     * document, the views, the caret and the undo history stay as they are,
+     * and the text at the top of the window is kept there.
+     */
+    private void reflowLines() {
+        View root = getUI().getRootView(this);
+        View section = root.getViewCount() > 0 ? root.getView(0) : null;
+        if (section == null) {
+            return;
+        }
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+        Point corner = viewport != null ? viewport.getViewPosition() : null;
+        int top = corner != null ? viewToModel2D(corner) : -1;
+
+        if (section instanceof VirtualSectionView) {
+            ((VirtualSectionView) section).modeChanged();
+        }
+        for (int i = 0; i < section.getViewCount(); i++) {
+            View line = section.getView(i);
+            if (line instanceof ModeParagraphView) {
+                ((ModeParagraphView) line).modeChanged();
+            }
+        }
+        revalidate();
+        repaint();
+
+        if (top >= 0) {
+            SwingUtilities.invokeLater(() -> {
+                if (top > getDocument().getLength()) {
+                    return;
+                }
+                viewport.validate();
+                try {
+                    java.awt.geom.Rectangle2D at = modelToView2D(top);
+                    if (at != null) {
+                        Dimension extent = viewport.getExtentSize();
+                        int x = lineWrap ? 0 : Math.min(corner.x, Math.max(0, getWidth() - extent.width));
+                        int y = Math.min((int) at.getY(), Math.max(0, getHeight() - extent.height));
+                        viewport.setViewPosition(new Point(x, y));
+                    }
+                } catch (BadLocationException ex) {
+                    // Leave the window where it is
+                }
+            });
+        }
+    }
+
     public void setMaxLineLength(int length) {
         if (this.maxLineLength != length) {
             this.maxLineLength = length;
-            // Force complete view rebuild by resetting the EditorKit
-            // This is necessary because the view hierarchy caches layout information
-            if (!lineWrap) {
-                // Save current state
-                String content = getText();
-                int caretPos = getCaretPosition();
-                
-                // Reset the EditorKit to force view rebuild
-                setEditorKit(new NoWrapEditorKit());
-                setText(content);
-                
-                // Restore caret position
-                try {
-                    setCaretPosition(Math.min(caretPos, content.length()));
-                } catch (IllegalArgumentException e) {
-                    setCaretPosition(0);
-                }
-                
-                // Re-attach the undo manager to the new document
-                attachUndoListener();
-            }
+            reflowLines();
         }
     }
 
@@ -506,20 +574,10 @@ public class EditorPane extends JTextPane {
 
 
     public void setLineWrap(boolean wrap) {
-        this.lineWrap = wrap;
-        System.err.println("DEBUG: setLineWrap called, current Document: " + System.identityHashCode(getDocument()));
-        String content = getText();
-        if (wrap) {
-            setEditorKit(new WrapEditorKit());
-        } else {
-            setEditorKit(new NoWrapEditorKit());
+        if (this.lineWrap != wrap) {
+            this.lineWrap = wrap;
+            reflowLines();
         }
-        System.err.println("DEBUG: After setEditorKit, new Document: " + System.identityHashCode(getDocument()));
-        setText(content);
-        // Re-attach the undo manager to the new document
-        attachUndoListener();
-        revalidate();
-        repaint();
     }
 
     public boolean getLineWrap() {
@@ -537,39 +595,18 @@ public class EditorPane extends JTextPane {
     public void setShowSpecialCharacters(boolean show) {
         if (this.showSpecialCharacters != show) {
             this.showSpecialCharacters = show;
-            // Save current state
-            String content = getText();
-            int caretPos = getCaretPosition();
-            
-            if (show) {
-                // Switch to SpecialCharactersEditorKit
-                SpecialCharactersEditorKit kit = new SpecialCharactersEditorKit();
-                kit.setShowSpecialCharacters(true);
-                setEditorKit(kit);
-            } else {
-                // Switch back to normal editor kit
-                if (lineWrap) {
-                    setEditorKit(new WrapEditorKit());
-                } else {
-                    setEditorKit(new NoWrapEditorKit());
-                }
-            }
-            
-            // Restore content and caret position
-            setText(content);
-            try {
-                setCaretPosition(Math.min(caretPos, content.length()));
-            } catch (IllegalArgumentException e) {
-                setCaretPosition(0);
-            }
-            
-            // Re-attach the undo manager to the new document
-            attachUndoListener();
-            revalidate();
+            // The marks are painted over the text, so nothing moves
             repaint();
         }
     }
 
+    /** Whether every char of the font is as wide as any other, so the text can be laid out on a grid. */
+    public boolean isFixedPitch() {
+        FontMetrics fm = getFontMetrics(getFont());
+        int width = fm.charWidth('W');
+        return width > 0 && fm.charWidth('i') == width && fm.charWidth(' ') == width;
+    }
+
     public boolean isShowSpecialCharacters() {
         return showSpecialCharacters;
     }
@@ -597,6 +634,47 @@ public class EditorPane extends JTextPane {
         return undoManager;
     }
 
+    /**
+     * Where the undo history stands, or null at the start of the history.
+     * Undoing and redoing back to a point gives an equal value again, so
+     * comparing positions tells whether the text is back to what it was.
+     * Clearing the history resets the position to null.
+     */
+    public Object getUndoPosition() {
+        return undoManager.getPosition();
+    }
+
+    /** End the word being typed, so the next keystroke is an undo step of its own. */
+    public void breakUndoTyping() {
+        undoManager.breakTyping();
+    }
+
+    /** How much undo history to keep in memory before the oldest goes to a temp file. */
+    public void setUndoMemoryBudget(long bytes) {
+        undoManager.setMemoryBudget(bytes);
+    }
+
+    /**
+     * Save the undo history with {@code file}, whose text the editor now holds
+     * and {@code fingerprint} identifies, for restoreUndoHistory to pick up.
+     */
+    public void saveUndoHistory(File file, long fingerprint) {
+        undoManager.saveHistory(UndoHistoryStore.historyFor(file), UndoHistoryStore.keyFor(file), fingerprint);
+    }
+
+    /**
+     * Take up the undo history saved with {@code file}, if its text is still
+     * the one {@code fingerprint} identifies. Returns whether there was one.
+     */
+    public boolean restoreUndoHistory(File file, long fingerprint) {
+        try {
+            return undoManager.restoreHistory(UndoHistoryStore.historyFor(file), UndoHistoryStore.keyFor(file), fingerprint);
+        } catch (IOException ex) {
+            // An unreadable history is as good as none
+            return false;
+        }
+    }
+
     public void clearUndoHistory() {
         System.err.println("DEBUG: clearUndoHistory called, Document: " + System.identityHashCode(getDocument()) + ", styledDoc: " + System.identityHashCode(styledDoc));
         System.err.println("DEBUG: UndoManager canUndo before clear: " + undoManager.canUndo() + ", canRedo: " + undoManager.canRedo());
@@ -652,6 +730,18 @@ public class EditorPane extends JTextPane {
         }
     }
 
+    /**
+     * Make a group of document changes, undone and redone as one step.
+     */
+    public void runAsSingleEdit(Runnable changes) {
+        undoManager.beginGroup();
+        try {
+            changes.run();
+        } finally {
+            undoManager.endGroup();
+        }
+    }
+
     /**
      * Get the ProxyUndoListener for manual listener management.
      */
@@ -665,6 +755,29 @@ public class EditorPane extends JTextPane {
         firePropertyChange("overtypeMode", !overtypeMode, overtypeMode);
     }
 
+    /**
+     * Lock the text against every change but the caller's own, undo and redo
+     * included, while a long edit such as Replace All works through it. Fires
+     * a "busy" property change either way.
+     */
+    public void setBusy(boolean busy) {
+        if (busy == this.busy) {
+            return;
+        }
+        if (busy) {
+            editableWhenIdle = isEditable();
+            setEditable(false);
+        } else {
+            setEditable(editableWhenIdle);
+        }
+        this.busy = busy;
+        firePropertyChange("busy", !busy, busy);
+    }
+
+    public boolean isBusy() {
+        return busy;
+    }
+
     public boolean isOvertypeMode() {
         return overtypeMode;
     }
@@ -751,6 +864,11 @@ public class EditorPane extends JTextPane {
 
     @Override
     public void replaceSelection(String content) {
+        if (busy) {
+            // Not editable then, but this is also called directly, as by Insert Date/Time
+            UIManager.getLookAndFeel().provideErrorFeedback(this);
+            return;
+        }
         if (overtypeMode && content != null && content.length() == 1 && !content.equals("\n")) {
             try {
                 int caretPos = getCaretPosition();
@@ -0,0 +1,207 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Follows a file that grows at the end, the way tail -f does.
+ *
+ * The follower remembers how many bytes of the file are already in the document
+ * and on each {@link #poll()} reads only what was appended since, through a
+ * FileChannel on a background thread. Decoder state carries over from one read
+ * to the next, so a multi-byte character or a CRLF split between two writes
+ * still comes out whole. Bytes that don't decode become U+FFFD rather than
+ * stopping the follow.
+ *
+ * If the file shrinks or is replaced by a new file, as log rotation does, it is
+ * reported as truncated; {@link #resync} then reads it again from the start.
+ */
+public class FileFollower {
+
+    /** Receives follow events on the EDT. */
+    public interface Callback {
+        /** Text appended to the file, with line ends normalized. */
+        void appended(String text);
+        /** The whole file, and the hunks that turn the text given to resync into it. */
+        void synced(String text, List<LineDiff.Hunk> hunks);
+        void truncated();
+        void failed(IOException ex);
+    }
+
+    private static final int READ_BYTES = 1024 * 1024;
+
+    private final Path path;
+    private final TextEncoding encoding;
+    private final Callback callback;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "FileFollower");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Owned by the follower thread
+    private final ByteBuffer bytes = ByteBuffer.allocate(READ_BYTES);
+    private final CharBuffer chars = CharBuffer.allocate(READ_BYTES);
+    private CharsetDecoder decoder;
+    private long position;
+    private Object fileKey;
+    private boolean lastWasCR = false;
+    private boolean awaitingResync = false;
+    // Bumped on the EDT by resync, so appends read before it are dropped
+    private volatile int generation = 0;
+    private volatile boolean stopped = false;
+
+    /**
+     * Follow a file whose first {@code position} bytes are already in the
+     * document, e.g. the bytes a MappedDocument mapped.
+     */
+    public FileFollower(Path path, TextEncoding encoding, long position, Callback callback) {
+        this.path = path;
+        this.encoding = encoding;
+        this.callback = callback;
+        this.position = position;
+        this.decoder = newDecoder();
+        executor.execute(() -> {
+            try {
+                fileKey = readFileKey();
+            } catch (IOException ex) {
+                // Gone already; the first poll reports it
+            }
+        });
+    }
+
+    /** Read whatever was appended since the last poll. Call on the EDT. */
+    public void poll() {
+        int expected = generation;
+        executor.execute(() -> {
+            if (awaitingResync) {
+                return;
+            }
+            try {
+                readAppended(expected);
+            } catch (IOException ex) {
+                post(expected, () -> callback.failed(ex));
+            }
+        });
+    }
+
+    /**
+     * Read the whole file again and diff it against {@code documentText}, the
+     * document as it is now. Appends still on their way to the EDT are dropped.
+     * Call on the EDT.
+     */
+    public void resync(String documentText) {
+        int expected = ++generation;
+        executor.execute(() -> {
+            decoder = newDecoder();
+            bytes.clear();
+            lastWasCR = false;
+            position = encoding.getBomLength();
+            awaitingResync = false;
+            try {
+                fileKey = readFileKey();
+                StringBuilder text = new StringBuilder();
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    long end = channel.size();
+                    while (position < end && !stopped) {
+                        if (!readBlock(channel, end, text)) {
+                            break;
+                        }
+                    }
+                }
+                String diskText = text.toString();
+                List<LineDiff.Hunk> hunks = LineDiff.diff(documentText, diskText);
+                post(expected, () -> callback.synced(diskText, hunks));
+            } catch (IOException ex) {
+                post(expected, () -> callback.failed(ex));
+            }
+        });
+    }
+
+    /** Stop following. Nothing more is reported afterwards. */
+    public void stop() {
+        stopped = true;
+        executor.shutdownNow();
+    }
+
+    // --- Follower thread ---
+
+    private void readAppended(int expected) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = channel.size();
+            if (end < position || !Objects.equals(fileKey, readFileKey())) {
+                awaitingResync = true;
+                post(expected, callback::truncated);
+                return;
+            }
+            // Stop at the size seen now; the next watch event brings the rest
+            while (position < end && !stopped) {
+                StringBuilder text = new StringBuilder();
+                if (!readBlock(channel, end, text)) {
+                    break;
+                }
+                if (text.length() > 0) {
+                    String appended = text.toString();
+                    post(expected, () -> callback.appended(appended));
+                }
+            }
+        }
+    }
+
+    /** Read and decode up to one buffer of bytes at {@link #position}; false at end of file. */
+    private boolean readBlock(FileChannel channel, long end, StringBuilder text) throws IOException {
+        // bytes may still hold the start of a character cut off by the previous read
+        bytes.limit((int) Math.min(bytes.capacity(), bytes.position() + (end - position)));
+        int n = channel.read(bytes, position);
+        if (n <= 0) {
+            return false;
+        }
+        position += n;
+        bytes.flip();
+        chars.clear();
+        // Never overflows: no charset yields more chars than bytes
+        decoder.decode(bytes, chars, false);
+        bytes.compact();
+        chars.flip();
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (lastWasCR && c == '\n') {
+                lastWasCR = false;
+                continue;
+            }
+            lastWasCR = c == '\r';
+            text.append(lastWasCR ? '\n' : c);
+        }
+        return true;
+    }
+
+    private Object readFileKey() throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    private CharsetDecoder newDecoder() {
+        return encoding.getCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private void post(int expected, Runnable event) {
+        SwingUtilities.invokeLater(() -> {
+            if (!stopped && generation == expected) {
+                event.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,364 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.Timer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches every file under a directory for a literal or a regular expression.
+ *
+ * One thread walks the tree and hands each file that passes the include and
+ * exclude globs to a virtual thread of its own, with a cap on how many are open
+ * at once. A file is read through a direct buffer, one of a pool shared by the
+ * files open at the time, rather than mapped, since a mapping would keep the file
+ * locked on Windows until collected. Its encoding is detected the way the editor
+ * does, and it is decoded a block of whole lines at a time and searched with a
+ * {@link DocumentSearch} or a Pattern from {@link RegexSearch}, just as the
+ * open document is. A regular expression therefore doesn't match across the
+ * end of a block. Lines end at LF, CRLF or a lone CR, as in the editor. Hits are
+ * queued as they are found, and a Swing Timer passes them to the listener on
+ * the EDT in batches.
+ */
+public class FileSearch {
+    private static final int BLOCK_CHARS = 256 * 1024;
+    private static final int SNIFF_BYTES = 8192;
+    private static final int READ_BYTES = 256 * 1024;
+    private static final int MAX_HITS_PER_FILE = 1000;
+    private static final int MAX_LINE_CHARS = 300;
+    private static final int DELIVERY_INTERVAL_MS = 100;
+    // Enough files in flight to keep the disk busy as well as every core
+    private static final int OPEN_FILES = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+    /** A line that matched. */
+    public static final class Hit {
+        public final Path file;
+        public final int line; // 1-based
+        public final String text;
+
+        Hit(Path file, int line, String text) {
+            this.file = file;
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    /** Receives results on the EDT. */
+    public interface Listener {
+        void found(List<Hit> hits, int filesSearched);
+        void finished(int filesSearched, boolean cancelled);
+    }
+
+    private final Path root;
+    private final List<PathMatcher> include = new ArrayList<>();
+    private final List<PathMatcher> exclude = new ArrayList<>();
+    private final DocumentSearch literal;
+    private final Pattern pattern;
+    private final ConcurrentLinkedQueue<Hit> pending = new ConcurrentLinkedQueue<>();
+    // Read buffers of files done with, for the next ones; no more are made than files open at once
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger filesSearched = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private volatile boolean walkDone = false;
+    private Timer timer;
+
+    /**
+     * A search of {@code root} for {@code term}. The globs are matched against
+     * file and directory names; an empty include list takes every file. Throws
+     * PatternSyntaxException for a bad regular expression.
+     */
+    public FileSearch(Path root, String term, boolean matchCase, boolean regex,
+                      List<String> includeGlobs, List<String> excludeGlobs) {
+        this.root = root;
+        this.literal = regex ? null : new DocumentSearch(term, matchCase);
+        this.pattern = regex ? RegexSearch.compile(term, matchCase) : null;
+        for (String glob : includeGlobs) {
+            include.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+        for (String glob : excludeGlobs) {
+            exclude.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+    }
+
+    /** Start searching. Call on the EDT. */
+    public void start(Listener listener) {
+        timer = new Timer(DELIVERY_INTERVAL_MS, e -> deliver(listener));
+        timer.start();
+        Thread walker = new Thread(this::walk, "FileSearchWalker");
+        walker.setDaemon(true);
+        walker.start();
+    }
+
+    /** Stop as soon as the files being read are done with; the listener hears no more. */
+    public void cancel() {
+        cancelled = true;
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+
+    private void deliver(Listener listener) {
+        // Read before draining, so that hits queued before the walk ended are not missed
+        boolean done = walkDone;
+        List<Hit> hits = new ArrayList<>();
+        for (Hit hit; (hit = pending.poll()) != null; ) {
+            hits.add(hit);
+        }
+        if (!hits.isEmpty() || !done) {
+            listener.found(hits, filesSearched.get());
+        }
+        if (done) {
+            timer.stop();
+            listener.finished(filesSearched.get(), cancelled);
+        }
+    }
+
+    // --- Background threads ---
+
+    private void walk() {
+        Semaphore open = new Semaphore(OPEN_FILES);
+        try (ExecutorService searchers = Executors.newVirtualThreadPerTaskExecutor()) {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (cancelled) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    return !dir.equals(root) && matches(exclude, dir) ? FileVisitResult.SKIP_SUBTREE
+                                                                      : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (cancelled) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (!attrs.isRegularFile() || matches(exclude, file)
+                            || !include.isEmpty() && !matches(include, file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        open.acquire();
+                    } catch (InterruptedException ex) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    searchers.submit(() -> {
+                        try {
+                            if (!cancelled) {
+                                searchFile(file, attrs.size());
+                            }
+                        } finally {
+                            open.release();
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    // Unreadable; carry on with the rest
+                    return cancelled ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            System.err.println("DEBUG: Find in Files walk failed: " + ex.getMessage());
+        } finally {
+            // Closing the executor waited for the last file
+            walkDone = true;
+        }
+    }
+
+    private static boolean matches(List<PathMatcher> globs, Path path) {
+        Path name = path.getFileName();
+        for (PathMatcher glob : globs) {
+            if (name != null && glob.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void searchFile(Path file, long size) {
+        if (size == 0) {
+            filesSearched.incrementAndGet();
+            return;
+        }
+        ByteBuffer bytes = buffers.poll();
+        if (bytes == null) {
+            bytes = ByteBuffer.allocateDirect(READ_BYTES);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bytes.clear();
+            boolean endOfFile = fill(channel, bytes);
+            bytes.flip();
+            TextEncoding encoding = TextEncoding.detect(file);
+            if (isBinary(bytes, encoding)) {
+                return;
+            }
+            bytes.position(Math.min(encoding.getBomLength(), bytes.limit()));
+            CharsetDecoder decoder = encoding.getCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            new FileScan(file).run(channel, bytes, endOfFile, decoder);
+        } catch (IOException ex) {
+            // Vanished or unreadable since the walk saw it
+        } finally {
+            buffers.add(bytes);
+            filesSearched.incrementAndGet();
+        }
+    }
+
+    /** Read until the buffer is full or the file ends; returns whether it ended. */
+    private static boolean fill(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** NULs in the first few KB mean binary, unless the text is UTF-16. */
+    private static boolean isBinary(ByteBuffer bytes, TextEncoding encoding) {
+        String name = encoding.getCharset().name();
+        if (name.startsWith("UTF-16")) {
+            return false;
+        }
+        int n = Math.min(bytes.limit(), SNIFF_BYTES);
+        for (int i = 0; i < n; i++) {
+            if (bytes.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** One file's search, a block of lines at a time. */
+    private final class FileScan {
+        private final Path file;
+        private int blockEnd;
+        private int line = 1; // Line number at lineCounted
+        private int lineCounted = 0;
+        private int lastHitLine = 0;
+        private int hits = 0;
+
+        FileScan(Path file) {
+            this.file = file;
+        }
+
+        /** Search the file from {@code bytes}, its start, reading the rest into the same buffer as it goes. */
+        void run(FileChannel channel, ByteBuffer bytes, boolean endOfFile, CharsetDecoder decoder) throws IOException {
+            CharBuffer chars = CharBuffer.allocate(BLOCK_CHARS);
+            boolean endOfInput = false;
+            while (!cancelled && hits < MAX_HITS_PER_FILE) {
+                CoderResult result = decoder.decode(bytes, chars, endOfFile);
+                if (result.isUnderflow() && !endOfFile) {
+                    // Keep the bytes not yet decoded, which may be part of a char, and read on after them
+                    bytes.compact();
+                    endOfFile = fill(channel, bytes);
+                    bytes.flip();
+                    continue;
+                }
+                if (endOfFile && !bytes.hasRemaining()) {
+                    decoder.flush(chars);
+                    endOfInput = true;
+                }
+                char[] text = chars.array();
+                int length = chars.position();
+                // Search up to the last line end; the rest waits for the next block, unless
+                // there is nothing more to come or the line alone fills the block. A CR
+                // at the very end waits too, in case an LF follows it.
+                int end = length;
+                if (!endOfInput) {
+                    while (end > 0 && text[end - 1] != '\n' && (text[end - 1] != '\r' || end == length)) {
+                        end--;
+                    }
+                    if (end == 0) {
+                        end = text[length - 1] == '\r' ? length - 1 : length;
+                    }
+                }
+                searchBlock(text, end);
+                if (endOfInput) {
+                    break;
+                }
+                System.arraycopy(text, end, text, 0, length - end);
+                chars.position(length - end);
+            }
+        }
+
+        private void searchBlock(char[] text, int end) {
+            blockEnd = end;
+            lineCounted = 0;
+            if (literal != null) {
+                for (int found = literal.find(text, 0, end); found >= 0 && hits < MAX_HITS_PER_FILE;
+                     found = literal.find(text, found + literal.length(), end)) {
+                    hit(text, end, found);
+                }
+            } else {
+                Matcher m = pattern.matcher(CharBuffer.wrap(text, 0, end));
+                while (m.find() && hits < MAX_HITS_PER_FILE && !cancelled) {
+                    hit(text, end, m.start());
+                }
+            }
+            // Line ends after the last hit still count towards the next block's lines
+            countLines(text, end);
+        }
+
+        private void hit(char[] text, int end, int offset) {
+            countLines(text, offset);
+            if (line == lastHitLine) {
+                // One entry per line, however many matches it holds
+                return;
+            }
+            lastHitLine = line;
+            int lineStart = offset;
+            while (lineStart > 0 && !isLineEnd(text, lineStart - 1)) {
+                lineStart--;
+            }
+            int lineEnd = offset;
+            while (lineEnd < end && text[lineEnd] != '\n' && text[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            int shown = Math.min(lineEnd - lineStart, MAX_LINE_CHARS);
+            pending.add(new Hit(file, line, new String(text, lineStart, shown).strip()));
+            hits++;
+        }
+
+        /** Advance the line count to {@code offset} in the current block. */
+        private void countLines(char[] text, int offset) {
+            for (int i = lineCounted; i < offset; i++) {
+                if (isLineEnd(text, i)) {
+                    line++;
+                }
+            }
+            lineCounted = Math.max(lineCounted, offset);
+        }
+
+        /** Whether a line ends at {@code i}: an LF, or a CR without one after it. */
+        private boolean isLineEnd(char[] text, int i) {
+            // A block never ends between the CR and LF of a CRLF
+            return text[i] == '\n' || text[i] == '\r' && (i + 1 == blockEnd || text[i + 1] != '\n');
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the files open in every window of the process through a single
+ * WatchService.
+ *
+ * One thread takes watch events and hands them to a second, which debounces
+ * them per file: a burst of writes is checked once it has been quiet for
+ * {@link #DEBOUNCE_MS}, or after {@link #MAX_DELAY_MS} if it never goes quiet.
+ * A file only counts as changed if its size or modification time moved and the
+ * {@link TextFingerprint} of its text differs from the last one seen, so touches
+ * and rewrites with identical content are ignored. The fingerprint is the same
+ * one a {@link DocumentFingerprint} keeps, so a window can also tell in O(1)
+ * whether the file now holds exactly what it is showing.
+ */
+public final class FileWatchService {
+    private static final long DEBOUNCE_MS = 300;
+    private static final long MAX_DELAY_MS = 2000;
+
+    private static FileWatchService instance;
+
+    private final WatchService watchService;
+    private final Map<Path, WatchedDirectory> directories = new HashMap<>();
+    private final ScheduledExecutorService verifier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "FileWatchVerifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class WatchedDirectory {
+        final WatchKey key;
+        final List<Registration> registrations = new ArrayList<>();
+
+        WatchedDirectory(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    /** What a file looked like the last time it was checked. */
+    private static final class DiskState {
+        final long size;
+        final long modified;
+        final long fingerprint;
+
+        DiskState(long size, long modified, long fingerprint) {
+            this.size = size;
+            this.modified = modified;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /** One window's interest in one file. */
+    public final class Registration {
+        private final Path file;
+        private final TextEncoding encoding;
+        private final Runnable onChange;
+        private volatile boolean cancelled = false;
+        private volatile int generation = 0;
+        // Written by the verifier thread
+        private volatile DiskState baseline;
+        private ScheduledFuture<?> pendingCheck;
+        private long burstStart;
+
+        private Registration(Path file, TextEncoding encoding, Runnable onChange) {
+            this.file = file;
+            this.encoding = encoding;
+            this.onChange = onChange;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * Take the file as it is now as unchanged, e.g. after saving it. A change
+         * already being reported is dropped. Call on the EDT.
+         */
+        public void rebaseline() {
+            generation++;
+            verifier.execute(() -> baseline = readState(this, null));
+        }
+
+        /**
+         * Like {@link #rebaseline()}, for a file known to hold text with the given
+         * fingerprint, e.g. the text just saved to it. Saves reading it back.
+         */
+        public void rebaseline(long fingerprint) {
+            generation++;
+            verifier.execute(() -> baseline = readState(this, null, fingerprint));
+        }
+
+        /**
+         * Fingerprint of the file's text as last checked; -1 if it was missing
+         * or unreadable, or if the content isn't being compared.
+         */
+        public long getFingerprint() {
+            DiskState state = baseline;
+            return state == null || encoding == null ? -1 : state.fingerprint;
+        }
+
+        /** Stop watching. Call on the EDT. */
+        public void cancel() {
+            cancelled = true;
+            unregister(this);
+        }
+    }
+
+    private FileWatchService() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread thread = new Thread(this::takeEvents, "FileWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static synchronized FileWatchService getInstance() throws IOException {
+        if (instance == null) {
+            instance = new FileWatchService();
+        }
+        return instance;
+    }
+
+    /**
+     * Watch a file. {@code onChange} runs on the EDT each time the file's text,
+     * decoded with {@code encoding}, is found to have changed on disk.
+     *
+     * With a null encoding the content isn't read and any change of size or
+     * modification time counts. That suits a file that only grows, where hashing
+     * the whole of it on every check would cost far more than the check.
+     */
+    public Registration watch(Path file, TextEncoding encoding, Runnable onChange) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Registration registration = new Registration(absolute, encoding, onChange);
+        synchronized (directories) {
+            Path dir = absolute.getParent();
+            WatchedDirectory watched = directories.get(dir);
+            if (watched == null) {
+                // Atomic replaces, ours included, show up as creates rather than modifies
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_CREATE);
+                watched = new WatchedDirectory(key);
+                directories.put(dir, watched);
+            }
+            watched.registrations.add(registration);
+        }
+        verifier.execute(() -> registration.baseline = readState(registration, null));
+        return registration;
+    }
+
+    private void unregister(Registration registration) {
+        synchronized (directories) {
+            Path dir = registration.file.getParent();
+            WatchedDirectory watched = directories.get(dir);
+            if (watched != null && watched.registrations.remove(registration)
+                && watched.registrations.isEmpty()) {
+                watched.key.cancel();
+                directories.remove(dir);
+            }
+        }
+    }
+
+    // --- FileWatcher thread ---
+
+    private void takeEvents() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                List<Registration> affected = new ArrayList<>();
+                synchronized (directories) {
+                    for (WatchedDirectory watched : directories.values()) {
+                        if (watched.key != key) {
+                            continue;
+                        }
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            for (Registration registration : watched.registrations) {
+                                // An overflow may hide events for any file in the directory
+                                if ((event.kind() == StandardWatchEventKinds.OVERFLOW
+                                    || registration.file.getFileName().equals(event.context()))
+                                    && !affected.contains(registration)) {
+                                    affected.add(registration);
+                                }
+                            }
+                        }
+                    }
+                }
+                key.reset();
+                for (Registration registration : affected) {
+                    verifier.execute(() -> scheduleCheck(registration));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Process is shutting down
+        }
+    }
+
+    // --- FileWatchVerifier thread ---
+
+    private void scheduleCheck(Registration registration) {
+        long now = System.currentTimeMillis();
+        if (registration.pendingCheck != null && !registration.pendingCheck.isDone()) {
+            if (now - registration.burstStart >= MAX_DELAY_MS) {
+                return; // Let the check already scheduled go ahead
+            }
+            registration.pendingCheck.cancel(false);
+        } else {
+            registration.burstStart = now;
+        }
+        long delay = Math.min(DEBOUNCE_MS, registration.burstStart + MAX_DELAY_MS - now);
+        registration.pendingCheck = verifier.schedule(() -> check(registration), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(Registration registration) {
+        if (registration.cancelled) {
+            return;
+        }
+        int generation = registration.generation;
+        DiskState previous = registration.baseline;
+        DiskState current = readState(registration, previous);
+        registration.baseline = current;
+        if (previous == null || current == previous) {
+            return;
+        }
+        if (registration.encoding != null && current.fingerprint == previous.fingerprint) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (!registration.cancelled && registration.generation == generation) {
+                registration.onChange.run();
+            }
+        });
+    }
+
+    /**
+     * Size, time and fingerprint of a watched file; {@code known} itself if size
+     * and time are unchanged. The content is only read when it is compared; a
+     * missing file has fingerprint -1, which no text has.
+     */
+    private DiskState readState(Registration registration, DiskState known) {
+        return readState(registration, known, -1);
+    }
+
+    /** As above, taking {@code fingerprint} as the content's if it isn't -1. */
+    private DiskState readState(Registration registration, DiskState known, long fingerprint) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(registration.file, BasicFileAttributes.class);
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            if (known != null && known.size == size && known.modified == modified) {
+                return known;
+            }
+            if (fingerprint == -1 && registration.encoding != null) {
+                fingerprint = TextFingerprint.of(registration.file, registration.encoding);
+            }
+            return new DiskState(size, modified, fingerprint);
+        } catch (IOException ex) {
+            // Deleted or unreadable: anything that appears later counts as a change
+            return new DiskState(-1, -1, -1);
+        }
+    }
+}
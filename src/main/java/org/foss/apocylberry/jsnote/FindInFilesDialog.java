@@ -0,0 +1,280 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.prefs.Preferences;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Find in Files: searches a directory tree with a {@link FileSearch} and lists
+ * the matching lines as they turn up. Double-clicking a line opens its file
+ * there.
+ */
+public class FindInFilesDialog extends JDialog {
+    private static final String DEFAULT_EXCLUDE = ".git, .svn, .hg, node_modules, target, build";
+
+    private final MainApp mainApp;
+    private final Preferences prefs;
+    private JTextField findField;
+    private JTextField folderField;
+    private JTextField includeField;
+    private JTextField excludeField;
+    private JCheckBox matchCaseCheckBox;
+    private JCheckBox regexCheckBox;
+    private JButton findButton;
+    private JButton stopButton;
+    private JLabel statusLabel;
+    private final DefaultListModel<FileSearch.Hit> results = new DefaultListModel<>();
+    private JList<FileSearch.Hit> resultList;
+    private FileSearch search;
+    private Path searchRoot;
+
+    public FindInFilesDialog(MainApp owner, Preferences prefs) {
+        super(owner, "Find in Files", false);
+        this.mainApp = owner;
+        this.prefs = prefs;
+        initComponents();
+
+        KeyStroke escapeStroke = KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0);
+        getRootPane().registerKeyboardAction(e -> setVisible(false),
+                                          escapeStroke,
+                                          JComponent.WHEN_IN_FOCUSED_WINDOW);
+    }
+
+    private void initComponents() {
+        setLayout(new BorderLayout(5, 5));
+        JPanel mainPanel = new JPanel(new GridBagLayout());
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.insets = new Insets(2, 2, 2, 2);
+
+        findField = new JTextField(30);
+        findField.addActionListener(e -> startSearch());
+        folderField = new JTextField(prefs.get("findInFilesFolder", System.getProperty("user.dir")), 30);
+        includeField = new JTextField(prefs.get("findInFilesInclude", "*"), 30);
+        excludeField = new JTextField(prefs.get("findInFilesExclude", DEFAULT_EXCLUDE), 30);
+        JButton browseButton = new JButton("Browse...");
+        browseButton.addActionListener(e -> chooseFolder());
+
+        addRow(mainPanel, gbc, 0, "Find:", findField, null);
+        addRow(mainPanel, gbc, 1, "In folder:", folderField, browseButton);
+        addRow(mainPanel, gbc, 2, "Include:", includeField, null);
+        addRow(mainPanel, gbc, 3, "Exclude:", excludeField, null);
+
+        gbc.gridx = 1;
+        gbc.gridy = 4;
+        gbc.gridwidth = 2;
+        JPanel optionsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        matchCaseCheckBox = new JCheckBox("Match case");
+        regexCheckBox = new JCheckBox("Regular expression");
+        optionsPanel.add(matchCaseCheckBox);
+        optionsPanel.add(regexCheckBox);
+        mainPanel.add(optionsPanel, gbc);
+
+        resultList = new JList<>(results);
+        resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        resultList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                FileSearch.Hit hit = (FileSearch.Hit) value;
+                String text = searchRoot.relativize(hit.file) + ":" + hit.line + ":  " + hit.text;
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+        resultList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    openSelectedHit();
+                }
+            }
+        });
+        resultList.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "openHit");
+        resultList.getActionMap().put("openHit", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                openSelectedHit();
+            }
+        });
+        JScrollPane resultScroll = new JScrollPane(resultList);
+        resultScroll.setPreferredSize(new Dimension(640, 300));
+
+        JPanel center = new JPanel(new BorderLayout(5, 5));
+        center.add(mainPanel, BorderLayout.NORTH);
+        JPanel resultPanel = new JPanel(new BorderLayout());
+        resultPanel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 10));
+        resultPanel.add(resultScroll, BorderLayout.CENTER);
+        center.add(resultPanel, BorderLayout.CENTER);
+
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        statusLabel = new JLabel(" ");
+        statusLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        findButton = new JButton("Find");
+        stopButton = new JButton("Stop");
+        JButton closeButton = new JButton("Close");
+        findButton.addActionListener(e -> startSearch());
+        stopButton.addActionListener(e -> stopSearch());
+        closeButton.addActionListener(e -> setVisible(false));
+        stopButton.setEnabled(false);
+        buttonPanel.add(findButton);
+        buttonPanel.add(stopButton);
+        buttonPanel.add(closeButton);
+        bottomPanel.add(statusLabel, BorderLayout.CENTER);
+        bottomPanel.add(buttonPanel, BorderLayout.EAST);
+
+        add(center, BorderLayout.CENTER);
+        add(bottomPanel, BorderLayout.SOUTH);
+        setDefaultCloseOperation(HIDE_ON_CLOSE);
+        pack();
+    }
+
+    private static void addRow(JPanel panel, GridBagConstraints gbc, int row, String label, JComponent field,
+                               JComponent extra) {
+        gbc.gridy = row;
+        gbc.gridx = 0;
+        gbc.gridwidth = 1;
+        gbc.weightx = 0.0;
+        panel.add(new JLabel(label), gbc);
+        gbc.gridx = 1;
+        gbc.weightx = 1.0;
+        gbc.gridwidth = extra == null ? 2 : 1;
+        panel.add(field, gbc);
+        if (extra != null) {
+            gbc.gridx = 2;
+            gbc.weightx = 0.0;
+            panel.add(extra, gbc);
+        }
+    }
+
+    public void showDialog(String initialTerm, File currentFile) {
+        if (initialTerm != null && !initialTerm.isEmpty() && initialTerm.indexOf('\n') < 0) {
+            findField.setText(initialTerm);
+        }
+        if (currentFile != null && results.isEmpty() && search == null) {
+            folderField.setText(currentFile.getAbsoluteFile().getParent());
+        }
+        setLocationRelativeTo(getOwner());
+        setVisible(true);
+        findField.requestFocusInWindow();
+        findField.selectAll();
+    }
+
+    private void chooseFolder() {
+        JFileChooser chooser = new JFileChooser(folderField.getText());
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            folderField.setText(chooser.getSelectedFile().getAbsolutePath());
+        }
+    }
+
+    private void startSearch() {
+        String term = findField.getText();
+        if (term.isEmpty()) {
+            return;
+        }
+        Path root;
+        try {
+            root = Path.of(folderField.getText().trim()).toAbsolutePath();
+        } catch (InvalidPathException ex) {
+            JOptionPane.showMessageDialog(this,
+                "Not a valid folder name: " + ex.getMessage(),
+                "Find in Files",
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (!Files.isDirectory(root)) {
+            JOptionPane.showMessageDialog(this,
+                "Not a folder: " + root,
+                "Find in Files",
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        FileSearch newSearch;
+        try {
+            newSearch = new FileSearch(root, term, matchCaseCheckBox.isSelected(), regexCheckBox.isSelected(),
+                globs(includeField.getText()), globs(excludeField.getText()));
+        } catch (PatternSyntaxException ex) {
+            JOptionPane.showMessageDialog(this,
+                "Invalid regular expression: " + ex.getDescription(),
+                "Find in Files",
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        } catch (IllegalArgumentException ex) {
+            // A malformed glob
+            JOptionPane.showMessageDialog(this,
+                ex.getMessage(),
+                "Find in Files",
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        prefs.put("findInFilesFolder", root.toString());
+        prefs.put("findInFilesInclude", includeField.getText());
+        prefs.put("findInFilesExclude", excludeField.getText());
+
+        stopSearch();
+        results.clear();
+        searchRoot = root;
+        search = newSearch;
+        findButton.setEnabled(false);
+        stopButton.setEnabled(true);
+        statusLabel.setText("Searching...");
+        long started = System.nanoTime();
+        newSearch.start(new FileSearch.Listener() {
+            @Override
+            public void found(List<FileSearch.Hit> hits, int filesSearched) {
+                for (FileSearch.Hit hit : hits) {
+                    results.addElement(hit);
+                }
+                statusLabel.setText("Searching... " + filesSearched + " files, " + results.size() + " lines");
+            }
+
+            @Override
+            public void finished(int filesSearched, boolean cancelled) {
+                search = null;
+                findButton.setEnabled(true);
+                stopButton.setEnabled(false);
+                long ms = (System.nanoTime() - started) / 1_000_000;
+                statusLabel.setText(results.size() + " matching lines in " + filesSearched + " files ("
+                    + ms + " ms)");
+            }
+        });
+    }
+
+    private void stopSearch() {
+        if (search != null) {
+            search.cancel();
+            search = null;
+            findButton.setEnabled(true);
+            stopButton.setEnabled(false);
+            statusLabel.setText("Stopped; " + results.size() + " matching lines so far");
+        }
+    }
+
+    private void openSelectedHit() {
+        FileSearch.Hit hit = resultList.getSelectedValue();
+        if (hit != null) {
+            mainApp.openFileAtLine(hit.file.toFile(), hit.line);
+        }
+    }
+
+    /** Comma- or space-separated globs. */
+    private static List<String> globs(String text) {
+        List<String> globs = new ArrayList<>();
+        for (String glob : text.split("[,\\s]+")) {
+            if (!glob.isEmpty()) {
+                globs.add(glob);
+            }
+        }
+        return globs;
+    }
+}
@@ -2,10 +2,11 @@ package org.foss.apocylberry.jsnote;
 
 import javax.swing.*;
 import javax.swing.text.*;
-import javax.swing.undo.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.event.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class FindReplaceDialog extends JDialog {
     private JTextField findField;
@@ -15,26 +16,38 @@ public class FindReplaceDialog extends JDialog {
     private JButton replaceButton;
     private JButton replaceAllButton;
     private JCheckBox matchCaseCheckBox;
+    private JCheckBox regexCheckBox;
+    private JTextField firstColumnField;
+    private JTextField lastColumnField;
     private EditorPane editor;
     private boolean isReplace;
 
     private static String lastSearchTerm = "";
     private static boolean lastMatchCase = false;
     private static boolean wrapSearch = true;
+    private static boolean lastRegex = false;
+    private static int lastFirstColumn = 0; // Column limits of the search, 0 where there is none
+    private static int lastLastColumn = 0;
+    // What a search in this window has going; the terms above are shared by all windows
+    private DocumentSearch lastSearch;
+    private RegexSearch runningSearch; // A regular expression search still going
+    private ReplaceAllTask runningReplace; // A Replace All still going
+    private int lastEmptyMatch = -1; // Where the last regular expression search found an empty match
+    private MatchIndexer matchIndexer; // Highlights and counts the matches of the term in the find field
 
     public FindReplaceDialog(Frame owner, EditorPane editor, boolean isReplace) {
         super(owner, isReplace ? "Replace" : "Find", false);
         this.editor = editor;
         this.isReplace = isReplace;
         
-        // Register document listeners for undo support
-        editor.getDocument().addUndoableEditListener(editor.getUndoManager());
-        
         initComponents();
 
         // Handle Escape key
         KeyStroke escapeStroke = KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0);
-        getRootPane().registerKeyboardAction(e -> setVisible(false),
+        getRootPane().registerKeyboardAction(e -> {
+                                              cancelRegexSearch(editor);
+                                              setVisible(false);
+                                          },
                                           escapeStroke,
                                           JComponent.WHEN_IN_FOCUSED_WINDOW);
 
@@ -91,10 +104,41 @@ public class FindReplaceDialog extends JDialog {
         matchCaseCheckBox = new JCheckBox("Match case");
         JCheckBox wrapSearchCheckBox = new JCheckBox("Search past end", wrapSearch);
         wrapSearchCheckBox.addActionListener(e -> wrapSearch = wrapSearchCheckBox.isSelected());
+        regexCheckBox = new JCheckBox("Regular expression");
+        matchCaseCheckBox.addActionListener(e -> updateMatchIndex());
+        regexCheckBox.addActionListener(e -> updateMatchIndex());
         optionsPanel.add(matchCaseCheckBox);
+        optionsPanel.add(regexCheckBox);
         optionsPanel.add(wrapSearchCheckBox);
         mainPanel.add(optionsPanel, gbc);
 
+        // Column range, counted within each record when lines have a fixed length
+        gbc.gridy++;
+        gbc.gridwidth = 1;
+        gbc.weightx = 0.0;
+        mainPanel.add(new JLabel("Columns:"), gbc);
+        gbc.gridx = 1;
+        JPanel columnsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        firstColumnField = new JTextField(4);
+        lastColumnField = new JTextField(4);
+        DocumentListener columnsListener = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) { updateMatchIndex(); }
+            @Override
+            public void removeUpdate(DocumentEvent e) { updateMatchIndex(); }
+            @Override
+            public void changedUpdate(DocumentEvent e) { updateMatchIndex(); }
+        };
+        firstColumnField.getDocument().addDocumentListener(columnsListener);
+        lastColumnField.getDocument().addDocumentListener(columnsListener);
+        firstColumnField.addActionListener(e -> findNext());
+        lastColumnField.addActionListener(e -> findNext());
+        columnsPanel.add(firstColumnField);
+        columnsPanel.add(new JLabel("to"));
+        columnsPanel.add(lastColumnField);
+        columnsPanel.add(new JLabel("(blank for all)"));
+        mainPanel.add(columnsPanel, gbc);
+
         // Buttons panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         
@@ -137,6 +181,7 @@ public class FindReplaceDialog extends JDialog {
                     replaceButton.setEnabled(hasText);
                     replaceAllButton.setEnabled(hasText);
                 }
+                updateMatchIndex();
             }
 
             @Override
@@ -168,6 +213,10 @@ public class FindReplaceDialog extends JDialog {
             findField.setText(selectedText);
         }
         matchCaseCheckBox.setSelected(lastMatchCase);
+        regexCheckBox.setSelected(lastRegex);
+        firstColumnField.setText(lastFirstColumn > 0 ? String.valueOf(lastFirstColumn) : "");
+        lastColumnField.setText(lastLastColumn > 0 ? String.valueOf(lastLastColumn) : "");
+        updateMatchIndex();
         
         // Show dialog and focus find field
         setVisible(true);
@@ -175,27 +224,54 @@ public class FindReplaceDialog extends JDialog {
         findField.selectAll();
     }
 
-    public static void findNext(EditorPane editor) {
+    /** Search for the last search term again, as F3 and Shift+F3 do, whether or not the dialog is showing. */
+    public void findAgain(boolean forward) {
         if (lastSearchTerm != null && !lastSearchTerm.isEmpty()) {
-            searchText(editor, lastSearchTerm, lastMatchCase, true);
+            searchText(editor, lastSearchTerm, lastMatchCase, forward);
         }
     }
 
-    public static void findPrevious(EditorPane editor) {
-        if (lastSearchTerm != null && !lastSearchTerm.isEmpty()) {
-            searchText(editor, lastSearchTerm, lastMatchCase, false);
+    /** Stop counting matches and take the highlights off, when the window's other search dialog takes over. */
+    public void clearMatchIndex() {
+        if (matchIndexer != null) {
+            matchIndexer.clear();
+            matchIndexer = null;
         }
     }
 
-    private static void searchText(EditorPane editor, String searchTerm, boolean matchCase, boolean forward) {
-        String originalText = editor.getText();
-        String searchFor = matchCase ? searchTerm : searchTerm.toLowerCase();
-        
+    /** The search last run, kept so that repeated Find Next reuses its skip table. */
+    private DocumentSearch search(String searchTerm, boolean matchCase) {
+        if (lastSearch == null || !lastSearch.getPattern().equals(searchTerm) || lastSearch.isMatchCase() != matchCase) {
+            lastSearch = new DocumentSearch(searchTerm, matchCase);
+        }
+        return lastSearch;
+    }
 
-        
-        // Normalize line endings for search, but preserve original positions in Document
-        String normalizedText = originalText.replace("\r\n", "\n").replace("\r", "\n");
-        String normalizedSearchText = matchCase ? normalizedText : normalizedText.toLowerCase();
+    /** The column range to search in this editor, or null for whole lines. */
+    private static ColumnRange columns(EditorPane editor, int firstColumn, int lastColumn) {
+        if (firstColumn == 0 && lastColumn == 0) {
+            return null;
+        }
+        return new ColumnRange(Math.max(1, firstColumn), lastColumn == 0 ? Integer.MAX_VALUE : lastColumn,
+                               editor.getMaxLineLength());
+    }
+
+    private void searchText(EditorPane editor, String searchTerm, boolean matchCase, boolean forward) {
+        if (searchTerm.isEmpty()) {
+            return;
+        }
+        ColumnRange columns = columns(editor, lastFirstColumn, lastLastColumn);
+        if (matchIndexer != null && matchIndexer.isCurrent(searchTerm, matchCase, lastRegex, columns)) {
+            searchIndex(editor, searchTerm, forward);
+            return;
+        }
+        if (lastRegex) {
+            searchRegex(editor, searchTerm, matchCase, columns, forward);
+            return;
+        }
+        // Scans the document in place; nothing is copied
+        DocumentSearch search = search(searchTerm, matchCase);
+        Document doc = editor.getDocument();
 
         // Get current position information
         int caretPos = editor.getCaretPosition();
@@ -204,8 +280,8 @@ public class FindReplaceDialog extends JDialog {
         
         // Debug output
         System.err.println("DEBUG: searchText called");
-        System.err.println("  searchFor='" + searchFor + "' matchCase=" + matchCase);
-        System.err.println("  originalText.length=" + originalText.length() + " normalizedText.length=" + normalizedText.length());
+        System.err.println("  searchFor='" + searchTerm + "' matchCase=" + matchCase);
+        System.err.println("  document length=" + doc.getLength());
         System.err.println("  caretPos=" + caretPos + " selStart=" + selStart + " selEnd=" + selEnd);
         
         // Determine search start position
@@ -223,13 +299,10 @@ public class FindReplaceDialog extends JDialog {
         int foundIndex = -1;
         
         if (forward) {
-            foundIndex = normalizedSearchText.indexOf(searchFor, searchPos);
-            System.err.println("  indexOf returned: " + foundIndex);
-            if (foundIndex != -1) {
-                System.err.println("  Found at position " + foundIndex + ": '" + normalizedText.substring(foundIndex, Math.min(foundIndex + searchFor.length() + 5, normalizedText.length())) + "'");
-            }
+            foundIndex = findNext(doc, search, columns, searchPos);
+            System.err.println("  findNext returned: " + foundIndex);
             if (foundIndex == -1 && wrapSearch && searchPos > 0) {
-                foundIndex = normalizedSearchText.indexOf(searchFor, 0);
+                foundIndex = findNext(doc, search, columns, 0);
                 if (foundIndex != -1) {
                     updateStatus(editor, "Search wrapped to beginning of document");
                 }
@@ -237,9 +310,9 @@ public class FindReplaceDialog extends JDialog {
                 updateStatus(editor, "Reached end of document");
             }
         } else {
-            foundIndex = normalizedSearchText.lastIndexOf(searchFor, Math.max(0, searchPos - 1));
-            if (foundIndex == -1 && wrapSearch && searchPos < normalizedSearchText.length()) {
-                foundIndex = normalizedSearchText.lastIndexOf(searchFor);
+            foundIndex = findPrevious(doc, search, columns, searchPos - 1);
+            if (foundIndex == -1 && wrapSearch && searchPos < doc.getLength()) {
+                foundIndex = findPrevious(doc, search, columns, doc.getLength());
                 if (foundIndex != -1) {
                     updateStatus(editor, "Search wrapped to end of document");
                 }
@@ -250,26 +323,202 @@ public class FindReplaceDialog extends JDialog {
 
         if (foundIndex != -1) {
             updateStatus(editor, "");
-            System.err.println("  Selecting from " + foundIndex + " to " + (foundIndex + searchFor.length()));
-            // Show exactly what we're about to select
-            String toSelect = normalizedText.substring(foundIndex, Math.min(foundIndex + searchFor.length(), normalizedText.length()));
-            System.err.println("  Text to select: '" + toSelect + "'");
-            // Select the found text - positions are already in normalized coordinates
-            editor.select(foundIndex, foundIndex + searchFor.length());
-            editor.getCaret().setSelectionVisible(true);
-            System.err.println("  After select: getSelectedText() = '" + editor.getSelectedText() + "'");
-            System.err.println("  After select: getSelectionStart() = " + editor.getSelectionStart() + ", getSelectionEnd() = " + editor.getSelectionEnd());
-            try {
-                Rectangle viewRect = editor.modelToView2D(foundIndex).getBounds();
-                editor.scrollRectToVisible(viewRect);
-            } catch (BadLocationException ex) {
-                // Ignore scroll errors
+            selectMatch(editor, foundIndex, foundIndex + search.length());
+        } else {
+            updateStatus(editor, "Cannot find \"" + searchTerm + "\"");
+        }
+    }
+
+    /** Start of the first literal match at or after {@code from}, within the columns if any, or -1. */
+    private static int findNext(Document doc, DocumentSearch search, ColumnRange columns, int from) {
+        if (columns == null) {
+            return search.findNext(doc, from);
+        }
+        int[] found = columns.findNext(doc, search, null, from);
+        return found == null ? -1 : found[0];
+    }
+
+    /** Start of the last literal match starting at or before {@code from}, within the columns if any, or -1. */
+    private static int findPrevious(Document doc, DocumentSearch search, ColumnRange columns, int from) {
+        if (columns == null) {
+            return search.findPrevious(doc, from);
+        }
+        int[] found = columns.findPrevious(doc, search, null, from);
+        return found == null ? -1 : found[0];
+    }
+
+    private static void selectMatch(EditorPane editor, int start, int end) {
+        System.err.println("  Selecting from " + start + " to " + end);
+        editor.select(start, end);
+        editor.getCaret().setSelectionVisible(true);
+        try {
+            Rectangle viewRect = editor.modelToView2D(start).getBounds();
+            editor.scrollRectToVisible(viewRect);
+        } catch (BadLocationException ex) {
+            // Ignore scroll errors
+        }
+    }
+
+    /** Like searchText, but looks the match up among all of them, which the indexer already has. */
+    private void searchIndex(EditorPane editor, String searchTerm, boolean forward) {
+        int selStart = editor.getSelectionStart();
+        int selEnd = editor.getSelectionEnd();
+        int[] found;
+        String message = "";
+        if (forward) {
+            int from = selEnd;
+            if (selStart == selEnd && lastEmptyMatch == selEnd) {
+                // Searching on from an empty match would only find it again
+                from++;
+            }
+            found = matchIndexer.nextMatch(from);
+            if (found == null && wrapSearch && from > 0) {
+                found = matchIndexer.nextMatch(0);
+                message = "Search wrapped to beginning of document";
             }
-        } else if (searchFor.length() > 0) {
+        } else {
+            found = matchIndexer.previousMatch(selStart);
+            if (found == null && wrapSearch) {
+                found = matchIndexer.previousMatch(Integer.MAX_VALUE);
+                message = "Search wrapped to end of document";
+            }
+        }
+        if (found == null) {
             updateStatus(editor, "Cannot find \"" + searchTerm + "\"");
+            return;
+        }
+        updateStatus(editor, message);
+        lastEmptyMatch = found[0] == found[1] ? found[0] : -1;
+        selectMatch(editor, found[0], found[1]);
+    }
+
+    /** The compiled search term, or null after telling the user what is wrong with it. */
+    private static Pattern compileRegex(EditorPane editor, String searchTerm, boolean matchCase) {
+        try {
+            return RegexSearch.compile(searchTerm, matchCase);
+        } catch (PatternSyntaxException ex) {
+            updateStatus(editor, "Invalid regular expression: " + ex.getDescription());
+            return null;
+        }
+    }
+
+    /** Like searchText, on a worker; the match is selected when it turns up. */
+    private void searchRegex(EditorPane editor, String searchTerm, boolean matchCase, ColumnRange columns,
+                                    boolean forward) {
+        Pattern pattern = compileRegex(editor, searchTerm, matchCase);
+        if (pattern == null) {
+            return;
+        }
+        int selStart = editor.getSelectionStart();
+        int selEnd = editor.getSelectionEnd();
+        int from = forward ? selEnd : selStart;
+        if (forward && selStart == selEnd && lastEmptyMatch == selEnd) {
+            // Searching on from an empty match would only find it again
+            from++;
+        }
+        int searchPos = from;
+        RegexSearch.Callback<int[]> callback = new RegexSearch.Callback<int[]>() {
+            @Override
+            public void done(int[] found) {
+                runningSearch = null;
+                if (found == null) {
+                    endRegexStatus(editor, "Cannot find \"" + searchTerm + "\"");
+                    return;
+                }
+                boolean wrapped = forward ? found[0] < searchPos : found[0] >= searchPos;
+                endRegexStatus(editor, wrapped ? (forward ? "Search wrapped to beginning of document"
+                                                          : "Search wrapped to end of document") : "");
+                lastEmptyMatch = found[0] == found[1] ? found[0] : -1;
+                selectMatch(editor, found[0], found[1]);
+            }
+
+            @Override
+            public void failed(String message) {
+                runningSearch = null;
+                endRegexStatus(editor, "Search failed: " + message);
+            }
+
+            @Override
+            public void interrupted() {
+                runningSearch = null;
+                endRegexStatus(editor, "Search stopped: the text was edited");
+            }
+        };
+        Document doc = editor.getDocument();
+        startRegexSearch(editor, forward
+            ? RegexSearch.findNext(doc, pattern, columns, from, wrapSearch, callback)
+            : RegexSearch.findPrevious(doc, pattern, columns, from, wrapSearch, callback));
+    }
+
+    private void startRegexSearch(EditorPane editor, RegexSearch search) {
+        cancelRegexSearch(editor);
+        runningSearch = search;
+        MainApp mainApp = (MainApp) SwingUtilities.getWindowAncestor(editor);
+        if (mainApp != null) {
+            mainApp.startCancellableTask("Searching...", () -> cancelRegexSearch(editor));
+        }
+    }
+
+    private void cancelRegexSearch(EditorPane editor) {
+        if (runningSearch != null) {
+            runningSearch.cancel();
+            runningSearch = null;
+            endRegexStatus(editor, "Search cancelled");
+        }
+    }
+
+    private static void endRegexStatus(EditorPane editor, String message) {
+        MainApp mainApp = (MainApp) SwingUtilities.getWindowAncestor(editor);
+        if (mainApp != null) {
+            mainApp.endCancellableTask(message);
         }
     }
     
+    /** Start counting the matches of what is in the find field; the scan runs in the background. */
+    private void updateMatchIndex() {
+        if (matchIndexer == null) {
+            matchIndexer = new MatchIndexer(editor);
+        }
+        int[] columns = readColumns();
+        matchIndexer.setQuery(findField.getText(), matchCaseCheckBox.isSelected(), regexCheckBox.isSelected(),
+                              columns == null ? null : columns(editor, columns[0], columns[1]));
+    }
+
+    /** The columns typed in the dialog as {first, last}, 0 where blank; null if they make no sense. */
+    private int[] readColumns() {
+        int first = parseColumn(firstColumnField.getText());
+        int last = parseColumn(lastColumnField.getText());
+        if (first < 0 || last < 0 || last > 0 && last < first) {
+            return null;
+        }
+        return new int[] {first, last};
+    }
+
+    private static int parseColumn(String text) {
+        text = text.trim();
+        if (text.isEmpty()) {
+            return 0;
+        }
+        try {
+            int column = Integer.parseInt(text);
+            return column >= 1 ? column : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /** Take the dialog's columns for searches from now on; false, with a message, if they make no sense. */
+    private boolean applyColumns() {
+        int[] columns = readColumns();
+        if (columns == null) {
+            updateStatus(editor, "Columns must be numbers from 1 up, the first no greater than the last");
+            return false;
+        }
+        lastFirstColumn = columns[0];
+        lastLastColumn = columns[1];
+        return true;
+    }
+
     private static void updateStatus(EditorPane editor, String message) {
         MainApp mainApp = (MainApp) SwingUtilities.getWindowAncestor(editor);
         if (mainApp != null) {
@@ -286,9 +535,13 @@ public class FindReplaceDialog extends JDialog {
     }
 
     private void find(boolean forward) {
+        if (!applyColumns()) {
+            return;
+        }
         String searchTerm = findField.getText();
         lastSearchTerm = searchTerm;
         lastMatchCase = matchCaseCheckBox.isSelected();
+        lastRegex = regexCheckBox.isSelected();
 
         // Ensure editor has focus to maintain selections properly
         editor.requestFocusInWindow();
@@ -296,158 +549,148 @@ public class FindReplaceDialog extends JDialog {
     }
 
     private void replace() {
+        if (!applyColumns()) {
+            return;
+        }
+        if (regexCheckBox.isSelected()) {
+            replaceRegex();
+            return;
+        }
         String selectedText = editor.getSelectedText();
         String searchTerm = findField.getText();
         if (selectedText != null && 
             (matchCaseCheckBox.isSelected() ? 
                 selectedText.equals(searchTerm) : 
-                selectedText.equalsIgnoreCase(searchTerm))) {
+                selectedText.equalsIgnoreCase(searchTerm)) &&
+            inColumns(editor.getSelectionStart(), editor.getSelectionEnd())) {
             editor.replaceSelection(replaceField.getText());
         }
         findNext();
     }
 
+    /** Replace the selection if it is a match, filling in group references, then find the next. */
+    private void replaceRegex() {
+        Pattern pattern = compileRegex(editor, findField.getText(), matchCaseCheckBox.isSelected());
+        int selStart = editor.getSelectionStart();
+        int selEnd = editor.getSelectionEnd();
+        if (pattern == null) {
+            return;
+        }
+        if (selStart == selEnd && selStart != lastEmptyMatch || !inColumns(selStart, selEnd)) {
+            findNext();
+            return;
+        }
+        String replacement = replaceField.getText();
+        startRegexSearch(editor, RegexSearch.replacementFor(editor.getDocument(), pattern, selStart, selEnd,
+            replacement, new RegexSearch.Callback<String>() {
+                @Override
+                public void done(String text) {
+                    runningSearch = null;
+                    endRegexStatus(editor, "");
+                    // Only if the selection is still the one that was checked
+                    if (text != null && editor.getSelectionStart() == selStart && editor.getSelectionEnd() == selEnd) {
+                        editor.replaceSelection(text);
+                    }
+                    findNext();
+                }
+
+                @Override
+                public void failed(String message) {
+                    runningSearch = null;
+                    endRegexStatus(editor, "Replace failed: " + message);
+                }
+            }));
+    }
+
+    /** Whether [start, end) lies within the columns being searched, if any. */
+    private boolean inColumns(int start, int end) {
+        ColumnRange columns = columns(editor, lastFirstColumn, lastLastColumn);
+        return columns == null || columns.contains(editor.getDocument(), start, end);
+    }
+
     private void replaceAll() {
+        if (!applyColumns()) {
+            return;
+        }
+        if (runningReplace != null) {
+            updateStatus(editor, "Replace All is still running");
+            return;
+        }
+        ColumnRange columns = columns(editor, lastFirstColumn, lastLastColumn);
         String searchTerm = findField.getText();
         String replacement = replaceField.getText();
         boolean matchCase = matchCaseCheckBox.isSelected();
 
-        int count = 0;
-        try {
-            Document doc = editor.getDocument();
-            UndoManager undoManager = editor.getUndoManager();
-            
-            System.err.println("DEBUG: replaceAll started - Document: " + System.identityHashCode(doc) + ", UndoManager: " + System.identityHashCode(undoManager));
-            System.err.println("DEBUG: UndoManager canUndo: " + undoManager.canUndo() + ", canRedo: " + undoManager.canRedo());
-            
-            // Create compound edit to group all replacements as a single undo action
-            CompoundEdit compoundEdit = new CompoundEdit();
-            
-            // Create a list to store edits INSTEAD of adding them to compoundEdit immediately
-            java.util.List<UndoableEdit> capturedEdits = new java.util.ArrayList<>();
-            
-            // Create a listener to capture edits into our list
-            javax.swing.event.UndoableEditListener captureListener = e -> {
-                if (e.getEdit().isSignificant()) {
-                    capturedEdits.add(e.getEdit());
-                    System.err.println("DEBUG: Captured edit into list - " + e.getEdit().getPresentationName());
-                }
-            };
-            
-            try {
-                // Remove UndoManager from document so events go to our captureListener only
-                doc.removeUndoableEditListener(undoManager);
-                System.err.println("DEBUG: Removed UndoManager from document during Replace All");
-                
-                // Add the capture listener to collect edits
-                doc.addUndoableEditListener(captureListener);
-                System.err.println("DEBUG: Added captureListener to document");
-                
-                // Use the same find algorithm for consistency
-                // We'll call findNextPosition repeatedly from the start
-                editor.setCaretPosition(0);
-                editor.select(0, 0); // Clear selection to start from beginning
-
-                while (true) {
-                    // Find the next occurrence using the unified algorithm
-                    int foundPos = findNextPosition(editor, searchTerm, matchCase);
-                    
-                    if (foundPos == -1) {
-                        break;
-                    }
+        // The matches are found on a worker, then replaced a slice at a time
+        ReplaceAllTask.Listener listener = new ReplaceAllTask.Listener() {
+            @Override
+            public void progress(int done, int total) {
+                updateStatus(editor, String.format("Replace All: %,d of %,d replaced (%d%%)",
+                                                   done, total, (int) (100L * done / total)));
+            }
 
-                    // foundPos is where the match starts in the Document model
-                    try {
-                        doc.remove(foundPos, searchTerm.length());
-                        doc.insertString(foundPos, replacement, null);
-                        count++;
-                        
-                        // Move caret past the replacement for next search
-                        editor.setCaretPosition(foundPos + replacement.length());
-                        editor.select(foundPos + replacement.length(), foundPos + replacement.length());
-                    } catch (BadLocationException e) {
-                        // Skip this replacement if it fails and try next
-                        editor.setCaretPosition(foundPos + 1);
-                        editor.select(foundPos + 1, foundPos + 1);
-                    }
-                }
-            } finally {
-                // Remove the capture listener
-                doc.removeUndoableEditListener(captureListener);
-                System.err.println("DEBUG: Removed captureListener from document");
-                
-                System.err.println("DEBUG: Adding " + capturedEdits.size() + " edits to CompoundEdit");
-                for (UndoableEdit edit : capturedEdits) {
-                    compoundEdit.addEdit(edit);
-                }
-                
-                // End the compound edit
-                compoundEdit.end();
-                System.err.println("DEBUG: CompoundEdit ended");
-                System.err.println("DEBUG: CompoundEdit significant: " + compoundEdit.isSignificant());
-                System.err.println("DEBUG: UndoManager canUndo before addEdit: " + undoManager.canUndo());
-                System.err.println("DEBUG: UndoManager canRedo before addEdit: " + undoManager.canRedo());
-                
-                // Add the CompoundEdit directly to UndoManager WHILE it's still detached
-                if (compoundEdit.isSignificant()) {
-                    undoManager.addEdit(compoundEdit);
-                    System.err.println("DEBUG: CompoundEdit added to UndoManager");
-                    System.err.println("DEBUG: UndoManager canUndo after addEdit: " + undoManager.canUndo());
-                    System.err.println("DEBUG: UndoManager canRedo after addEdit: " + undoManager.canRedo());
-                }
-                
-                // Do NOT re-attach UndoManager here - leave it detached
-                // The conversation history shows this keeps undo depth unlimited
-                System.err.println("DEBUG: UndoManager left detached after Replace All");
+            @Override
+            public void finished(int count, int skipped) {
+                runningReplace = null;
+                endRegexStatus(editor, "");
+                showReplaceAllResult(count, skipped);
             }
 
-            if (count > 0) {
-                JOptionPane.showMessageDialog(this,
-                    count + " replacement(s) made",
-                    "Replace All",
-                    JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this,
-                    "No matches found",
-                    "Replace All",
-                    JOptionPane.INFORMATION_MESSAGE);
+            @Override
+            public void cancelled() {
+                runningReplace = null;
+                endRegexStatus(editor, "Replace All cancelled; nothing was changed");
             }
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(this,
-                "Error during replace: " + ex.getMessage(),
-                "Replace Error",
-                JOptionPane.ERROR_MESSAGE);
+
+            @Override
+            public void failed(String message) {
+                runningReplace = null;
+                endRegexStatus(editor, "");
+                showReplaceAllError(message);
+            }
+        };
+        ReplaceAllTask task;
+        if (regexCheckBox.isSelected()) {
+            Pattern pattern = compileRegex(editor, searchTerm, matchCase);
+            if (pattern == null) {
+                return;
+            }
+            task = ReplaceAllTask.start(editor, pattern, columns, replacement, listener);
+        } else {
+            // A search of its own, since the worker uses it
+            task = ReplaceAllTask.start(editor, new DocumentSearch(searchTerm, matchCase), columns, replacement,
+                                        listener);
+        }
+        runningReplace = task;
+        MainApp mainApp = (MainApp) SwingUtilities.getWindowAncestor(editor);
+        if (mainApp != null) {
+            mainApp.startCancellableTask("Replace All: finding matches...", () -> {
+                updateStatus(editor, "Replace All: putting the text back...");
+                task.cancel();
+            });
         }
     }
-    
-    /**
-     * Find the next occurrence of searchTerm and return its position in the Document.
-     * Does NOT modify selection or caret.
-     * Returns -1 if not found.
-     */
-    private static int findNextPosition(EditorPane editor, String searchTerm, boolean matchCase) {
-        String originalText = editor.getText();
-        String searchFor = matchCase ? searchTerm : searchTerm.toLowerCase();
-        
-
-        
-        // Normalize line endings for search, but preserve original positions in Document
-        String normalizedText = originalText.replace("\r\n", "\n").replace("\r", "\n");
-        String normalizedSearchText = matchCase ? normalizedText : normalizedText.toLowerCase();
 
-        int caretPos = editor.getCaretPosition();
-        int selStart = editor.getSelectionStart();
-        int selEnd = editor.getSelectionEnd();
-        
-        // Start from after selection if one exists, otherwise from caret
-        int searchPos = (selStart != selEnd) ? selEnd : caretPos;
-        
-        int foundIndex = normalizedSearchText.indexOf(searchFor, searchPos);
-        
-        if (foundIndex == -1 && wrapSearch && searchPos > 0) {
-            foundIndex = normalizedSearchText.indexOf(searchFor, 0);
+    private void showReplaceAllResult(int count, int skipped) {
+        if (count > 0 || skipped > 0) {
+            // Skipped matches are those whose replacement doesn't fit their fixed-length record
+            JOptionPane.showMessageDialog(this,
+                count + " replacement(s) made"
+                    + (skipped > 0 ? "\n" + skipped + " match(es) skipped: the replacement doesn't fit the record" : ""),
+                "Replace All",
+                JOptionPane.INFORMATION_MESSAGE);
+        } else {
+            JOptionPane.showMessageDialog(this,
+                "No matches found",
+                "Replace All",
+                JOptionPane.INFORMATION_MESSAGE);
         }
-        
-        return foundIndex;
+    }
+
+    private void showReplaceAllError(String message) {
+        JOptionPane.showMessageDialog(this,
+            "Error during replace: " + message,
+            "Replace Error",
+            JOptionPane.ERROR_MESSAGE);
     }
 }
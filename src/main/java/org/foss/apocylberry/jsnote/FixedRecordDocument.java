@@ -0,0 +1,451 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.*;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoableEdit;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * MappedDocument over a file of fixed-length records (RECFM=F), shown one
+ * record per line.
+ *
+ * Record N always starts at N * (LRECL + 1) in the document, counting the '\n'
+ * after each record, so lines are found by arithmetic rather than an index and
+ * going to any record is O(1). That only holds while every record stays exactly
+ * LRECL long, so every edit keeps record lengths the way ISPF does: typing
+ * shifts the rest of the record right and needs blanks at its end to push out,
+ * deleting shifts it left and pads with blanks, and deleting across records
+ * blanks the text instead. Records themselves can't be added or removed.
+ */
+public class FixedRecordDocument extends MappedDocument {
+    private final int recordLength;
+    private final int recordCount;
+    private final Element root = new RootElement();
+    private CompoundEdit pendingEdit;
+
+    private FixedRecordDocument(MappedFileContent content, int recordLength, long recordCount) {
+        super(content, null, new StyleContext());
+        this.recordLength = recordLength;
+        this.recordCount = (int) recordCount;
+    }
+
+    /** Map a file of records. Nothing is read up front; call off the EDT all the same. */
+    public static FixedRecordDocument open(File file, TextEncoding encoding) throws IOException {
+        MappedFileContent content = MappedFileContent.openRecords(file.toPath(), encoding);
+        FixedRecordDocument doc = new FixedRecordDocument(content, encoding.getRecordLength(),
+            content.getFileSize() / encoding.getRecordLength());
+        encoding.applyTo(doc);
+        return doc;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /** Document offset where a record starts. */
+    public int getRecordStart(int record) {
+        return record * (recordLength + 1);
+    }
+
+    // --- Element structure ---
+
+    @Override
+    public Element getDefaultRootElement() {
+        return root;
+    }
+
+    @Override
+    public Element getParagraphElement(int pos) {
+        return root.getElement(root.getElementIndex(pos));
+    }
+
+    // --- Edits that keep every record LRECL long ---
+
+    @Override
+    public void insertString(int offs, String str, AttributeSet a) throws BadLocationException {
+        if (!tryInsert(offs, str, a)) {
+            refuse();
+        }
+    }
+
+    private boolean tryInsert(int offs, String str, AttributeSet a) throws BadLocationException {
+        if (str == null || str.isEmpty()) {
+            return true;
+        }
+        int end = recordEnd(offs);
+        // The blanks pushed off the end must come after the insert, not be part of it
+        if (str.indexOf('\n') >= 0 || str.indexOf('\r') >= 0 || offs > end - str.length()
+            || !isBlank(end - str.length(), end)) {
+            return false;
+        }
+        edit(() -> {
+            super.insertString(offs, str, a);
+            restoreLength(end, -str.length());
+        });
+        return true;
+    }
+
+    @Override
+    public void remove(int offs, int len) throws BadLocationException {
+        if (!tryRemove(offs, len)) {
+            refuse();
+        }
+    }
+
+    private boolean tryRemove(int offs, int len) throws BadLocationException {
+        if (len <= 0) {
+            return true;
+        }
+        int end = recordEnd(offs);
+        if (offs + len <= end) {
+            edit(() -> {
+                super.remove(offs, len);
+                restoreLength(end - len, len);
+            });
+        } else if (offs == end && len == 1) {
+            // Only the record break: joining records would change their length
+            return false;
+        } else {
+            edit(() -> blankOut(offs, offs + len));
+        }
+        return true;
+    }
+
+    @Override
+    public void replace(int offset, int length, String text, AttributeSet attrs) throws BadLocationException {
+        if (!tryReplace(offset, length, text, attrs)) {
+            refuse();
+        }
+    }
+
+    /**
+     * Replace as {@link #replace} does, but without the error feedback: returns
+     * false, with nothing changed, if the text doesn't fit the record.
+     */
+    boolean tryReplace(int offset, int length, String text, AttributeSet attrs) throws BadLocationException {
+        if (length == 0) {
+            return tryInsert(offset, text, attrs);
+        }
+        if (text == null || text.isEmpty()) {
+            return tryRemove(offset, length);
+        }
+        int end = recordEnd(offset);
+        int grow = text.length() - length;
+        if (offset + length > end || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0
+            || (grow > 0 && (offset + length > end - grow || !isBlank(end - grow, end)))) {
+            return false;
+        }
+        edit(() -> {
+            super.remove(offset, length);
+            super.insertString(offset, text, attrs);
+            // The record's break has moved to end + grow; pad or trim just before it
+            restoreLength(end + Math.min(grow, 0), -grow);
+        });
+        return true;
+    }
+
+    private interface Change {
+        void run() throws BadLocationException;
+    }
+
+    /**
+     * Make an edit and its padding as one: other threads never see a record of
+     * the wrong length, and undo takes all of it.
+     */
+    private void edit(Change change) throws BadLocationException {
+        writeLock();
+        CompoundEdit compound = new CompoundEdit();
+        pendingEdit = compound;
+        try {
+            change.run();
+        } finally {
+            pendingEdit = null;
+            writeUnlock();
+        }
+        compound.end();
+        if (compound.isSignificant()) {
+            super.fireUndoableEditUpdate(new UndoableEditEvent(this, compound));
+        }
+    }
+
+    @Override
+    protected void fireUndoableEditUpdate(UndoableEditEvent e) {
+        if (pendingEdit != null) {
+            pendingEdit.addEdit(e.getEdit());
+        } else {
+            super.fireUndoableEditUpdate(e);
+        }
+    }
+
+    /**
+     * Pad blanks at an offset ({@code count} > 0) or drop the blanks there
+     * ({@code count} < 0) to bring a record back to LRECL. This goes to the
+     * content directly and is reported as a change, not an insert or remove: the
+     * caret moves with inserts at its position, and the padding must not take it
+     * along.
+     */
+    private void restoreLength(int offset, int count) throws BadLocationException {
+        if (count == 0) {
+            return;
+        }
+        DefaultDocumentEvent change = new DefaultDocumentEvent(offset, Math.abs(count), DocumentEvent.EventType.CHANGE);
+        UndoableEdit edit = count > 0
+            ? getContent().insertString(offset, blanks(count))
+            : getContent().remove(offset, -count);
+        if (edit != null) {
+            change.addEdit(edit);
+        }
+        change.end();
+        fireChangedUpdate(change);
+        fireUndoableEditUpdate(new UndoableEditEvent(this, change));
+    }
+
+    private void blankOut(int from, int to) throws BadLocationException {
+        int record = from / (recordLength + 1);
+        while (from < to) {
+            int end = Math.min(to, getRecordStart(record) + recordLength);
+            if (from < end) {
+                super.remove(from, end - from);
+                restoreLength(from, end - from);
+            }
+            record++;
+            from = getRecordStart(record);
+        }
+    }
+
+    /** Offset of the '\n' after the record containing the offset. */
+    private int recordEnd(int offset) throws BadLocationException {
+        if (offset < 0 || offset > getLength()) {
+            throw new BadLocationException("Invalid offset", offset);
+        }
+        return getRecordStart(offset / (recordLength + 1)) + recordLength;
+    }
+
+    private boolean isBlank(int from, int to) throws BadLocationException {
+        if (from < 0 || to > getLength()) {
+            return false;
+        }
+        String text = getText(from, to - from);
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String blanks(int count) {
+        return " ".repeat(count);
+    }
+
+    private static void refuse() {
+        UIManager.getLookAndFeel().provideErrorFeedback(null);
+    }
+
+    // --- Elements ---
+
+    private class RootElement implements Element {
+        @Override
+        public Document getDocument() {
+            return FixedRecordDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return SectionElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return SimpleAttributeSet.EMPTY;
+        }
+
+        @Override
+        public int getStartOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getEndOffset() {
+            return getLength() + 1;
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return Math.max(0, Math.min(offset / (recordLength + 1), getElementCount() - 1));
+        }
+
+        @Override
+        public int getElementCount() {
+            // A document always has at least one line, even with no records
+            return Math.max(1, recordCount);
+        }
+
+        @Override
+        public Element getElement(int index) {
+            if (index < 0 || index >= getElementCount()) {
+                return null;
+            }
+            return new RecordElement(index);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+    }
+
+    /**
+     * Paragraph element for one record. Created on request and compared by
+     * record number, since the record at a number never changes.
+     */
+    private class RecordElement implements Element {
+        private final int record;
+
+        RecordElement(int record) {
+            this.record = record;
+        }
+
+        @Override
+        public Document getDocument() {
+            return FixedRecordDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return root;
+        }
+
+        @Override
+        public String getName() {
+            return ParagraphElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return getStyle(StyleContext.DEFAULT_STYLE);
+        }
+
+        @Override
+        public int getStartOffset() {
+            return getRecordStart(record);
+        }
+
+        @Override
+        public int getEndOffset() {
+            return Math.min(getRecordStart(record) + recordLength + 1, getLength() + 1);
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return 0;
+        }
+
+        @Override
+        public int getElementCount() {
+            return 1;
+        }
+
+        @Override
+        public Element getElement(int index) {
+            return index == 0 ? new RecordText(this) : null;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RecordElement && ((RecordElement) obj).record == record;
+        }
+
+        @Override
+        public int hashCode() {
+            return record;
+        }
+    }
+
+    /** The single run of text inside a record. */
+    private class RecordText implements Element {
+        private final RecordElement parent;
+
+        RecordText(RecordElement parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public Document getDocument() {
+            return FixedRecordDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return ContentElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return getStyle(StyleContext.DEFAULT_STYLE);
+        }
+
+        @Override
+        public int getStartOffset() {
+            return parent.getStartOffset();
+        }
+
+        @Override
+        public int getEndOffset() {
+            return parent.getEndOffset();
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return -1;
+        }
+
+        @Override
+        public int getElementCount() {
+            return 0;
+        }
+
+        @Override
+        public Element getElement(int index) {
+            return null;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RecordText && ((RecordText) obj).parent.equals(parent);
+        }
+
+        @Override
+        public int hashCode() {
+            return parent.hashCode();
+        }
+    }
+}
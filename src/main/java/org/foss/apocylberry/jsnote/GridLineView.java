@@ -0,0 +1,619 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Caret;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.LayeredHighlighter;
+import javax.swing.text.PlainDocument;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import java.awt.Color;
+import java.awt.Container;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Toolkit;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * One line of the document on a fixed grid, for a monospaced font. Every char
+ * takes one cell and a tab runs to the next tab stop, so where a position is
+ * drawn and which position a point falls on come from the row and column
+ * alone, and a row is painted with one drawChars call. No glyph views are made
+ * for the line's content elements.
+ *
+ * The rows follow the pane's wrap and LRECL settings. LRECL rows are plain
+ * arithmetic; word-wrapped rows are found once and kept until the line is
+ * edited or the width changes. A line with tabs, or with chars the font draws
+ * wider or narrower than a cell, is walked a row at a time instead.
+ */
+final class GridLineView extends View {
+    private static final int DEFAULT_TAB_SIZE = 8;
+    // Views are only used on the EDT, so these can be shared
+    private static final Segment SCAN = new Segment(); // Partial, for reading a line in pieces
+    private static final Segment ROW = new Segment(); // Whole, for drawing a row in one call
+
+    static {
+        SCAN.setPartialReturn(true);
+    }
+
+    // What the line holds, once scanned
+    private boolean scanned;
+    private int length; // Chars before the line end
+    private int lineEndLength;
+    private boolean tabs;
+    private boolean uniform; // Every char is exactly one cell wide in the font
+
+    // The rows, for the settings they were made under
+    private boolean rowsValid;
+    private boolean rowsWrap;
+    private int rowsLrecl;
+    private int rowsColumns;
+    private int[] rowStarts; // Word-wrapped rows, relative to the line start; null otherwise
+    private int rowLength; // Chars per row without word wrap; 0 for the whole line in one row
+    private int rowCount;
+    private int widest; // Cells in the widest row
+
+    private int width = -1; // As last given by setSize
+
+    GridLineView(Element elem) {
+        super(elem);
+    }
+
+    /** Throw away the rows, to be made again under the pane's new mode. */
+    void modeChanged() {
+        rowsValid = false;
+        preferenceChanged(null, true, true);
+    }
+
+    /** The rows the line takes under the pane's current settings. */
+    int getRowCount() {
+        ensureRows();
+        return rowCount;
+    }
+
+    /** The cells in the line's widest row. */
+    int getWidestCells() {
+        ensureRows();
+        return widest;
+    }
+
+    private EditorPane pane() {
+        Container host = getContainer();
+        return host instanceof EditorPane ? (EditorPane) host : null;
+    }
+
+    private FontMetrics metrics() {
+        Container host = getContainer();
+        return host.getFontMetrics(host.getFont());
+    }
+
+    private static int cellWidth(FontMetrics fm) {
+        return Math.max(1, fm.charWidth('W'));
+    }
+
+    private int tabSize() {
+        Object size = getDocument().getProperty(PlainDocument.tabSizeAttribute);
+        return size instanceof Integer && (Integer) size > 0 ? (Integer) size : DEFAULT_TAB_SIZE;
+    }
+
+    /** The column after {@code c}, drawn at column {@code col}. */
+    private static int advance(int col, char c, int tabSize) {
+        return c == '\t' ? (col / tabSize + 1) * tabSize : col + 1;
+    }
+
+    // --- Scanning and rows ---
+
+    private void scan() {
+        Document doc = getDocument();
+        Element elem = getElement();
+        int start = elem.getStartOffset();
+        int elemEnd = elem.getEndOffset();
+        int end = Math.min(elemEnd, doc.getLength());
+        FontMetrics fm = metrics();
+        int cell = cellWidth(fm);
+        tabs = false;
+        uniform = true;
+        char last = 0;
+        char beforeLast = 0;
+        try {
+            for (int pos = start; pos < end; pos += SCAN.count) {
+                doc.getText(pos, end - pos, SCAN);
+                if (SCAN.count == 0) {
+                    break;
+                }
+                for (int i = SCAN.offset, stop = SCAN.offset + SCAN.count; i < stop; i++) {
+                    char c = SCAN.array[i];
+                    if (c == '\t') {
+                        tabs = true;
+                    } else if (c >= 0x80 && uniform && fm.charWidth(c) != cell) {
+                        uniform = false;
+                    }
+                    beforeLast = last;
+                    last = c;
+                }
+            }
+        } catch (BadLocationException e) {
+            // Take the line as it came
+        }
+        if (end < elemEnd) {
+            // The newline every document implies after its last char
+            lineEndLength = elemEnd - end;
+        } else if (last == '\n' || last == '\r') {
+            lineEndLength = beforeLast == '\r' && last == '\n' && end - start > 1 ? 2 : 1;
+        } else {
+            lineEndLength = 0;
+        }
+        length = elemEnd - start - lineEndLength;
+        scanned = true;
+        rowsValid = false;
+    }
+
+    /** The columns a wrapped row has, from the width the view was given or will most likely be given. */
+    private int wrapColumns(int cell) {
+        int available = width;
+        if (available < 0) {
+            Container host = getContainer();
+            Insets insets = host instanceof JTextComponent ? ((JTextComponent) host).getInsets() : new Insets(0, 0, 0, 0);
+            available = host.getWidth() - insets.left - insets.right;
+        }
+        return available > 0 ? Math.max(1, available / cell) : Integer.MAX_VALUE;
+    }
+
+    private void ensureRows() {
+        if (!scanned) {
+            scan();
+        }
+        EditorPane pane = pane();
+        boolean wrap = pane != null && pane.getLineWrap();
+        int lrecl = pane != null ? pane.getMaxLineLength() : 0;
+        int columns = wrap ? wrapColumns(cellWidth(metrics())) : 0;
+        if (rowsValid && rowsWrap == wrap && rowsLrecl == lrecl && rowsColumns == columns) {
+            return;
+        }
+        rowsWrap = wrap;
+        rowsLrecl = lrecl;
+        rowsColumns = columns;
+        rowsValid = true;
+        rowStarts = null;
+        if (wrap) {
+            wrapRows(columns);
+        } else {
+            rowLength = Math.max(0, lrecl);
+            rowCount = rowLength > 0 ? Math.max(1, (length + rowLength - 1) / rowLength) : 1;
+            if (!tabs) {
+                widest = rowLength > 0 ? Math.min(length, rowLength) : length;
+            } else {
+                widest = 0;
+                for (int r = 0; r < rowCount; r++) {
+                    widest = Math.max(widest, cells(rowStart(r), rowEnd(r)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Break the line between words into rows of {@code columns} cells. Spaces
+     * and tabs may run past the edge rather than start a row; a word longer
+     * than a row is broken where it reaches the edge.
+     */
+    private void wrapRows(int columns) {
+        int[] starts = new int[4];
+        int count = 1;
+        int widestRow = 0;
+        int tabSize = tabSize();
+        Segment text = new Segment();
+        try {
+            getDocument().getText(getStartOffset(), length, text);
+        } catch (BadLocationException e) {
+            text.count = 0;
+        }
+        int rowStart = 0;
+        int lastBreak = 0; // After the latest space or tab in this row
+        int col = 0;
+        for (int i = 0; i < text.count; i++) {
+            char c = text.array[text.offset + i];
+            if (c == ' ' || c == '\t') {
+                col = advance(col, c, tabSize);
+                lastBreak = i + 1;
+                continue;
+            }
+            if (col + 1 > columns && i > rowStart) {
+                widestRow = Math.max(widestRow, Math.min(col, columns));
+                rowStart = lastBreak > rowStart ? lastBreak : i;
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = rowStart;
+                lastBreak = rowStart;
+                // Everything since the break is word chars, a cell each
+                col = i - rowStart;
+            }
+            col++;
+        }
+        widest = Math.max(widestRow, Math.min(col, columns));
+        rowStarts = starts;
+        rowCount = count;
+    }
+
+    private int rowStart(int row) {
+        return rowStarts != null ? rowStarts[row] : row * rowLength;
+    }
+
+    private int rowEnd(int row) {
+        return row == rowCount - 1 ? length : rowStart(row + 1);
+    }
+
+    /** The row showing relative offset {@code rel}; at a row boundary, Backward means the row it ends. */
+    private int rowOf(int rel, Position.Bias bias) {
+        int row;
+        if (rowStarts != null) {
+            row = Arrays.binarySearch(rowStarts, 0, rowCount, rel);
+            if (row < 0) {
+                row = -row - 2;
+            }
+        } else {
+            row = rowLength > 0 ? Math.min(rel / rowLength, rowCount - 1) : 0;
+        }
+        if (bias == Position.Bias.Backward && row > 0 && rel == rowStart(row)) {
+            row--;
+        }
+        return row;
+    }
+
+    /** The cells taken by relative offsets [from, to) of a row that starts at {@code rowStart}. */
+    private int cells(int rowStart, int to) {
+        if (!tabs) {
+            return to - rowStart;
+        }
+        int tabSize = tabSize();
+        int col = 0;
+        Document doc = getDocument();
+        int start = getStartOffset();
+        try {
+            for (int pos = rowStart; pos < to; pos += SCAN.count) {
+                doc.getText(start + pos, to - pos, SCAN);
+                if (SCAN.count == 0) {
+                    break;
+                }
+                for (int i = SCAN.offset, stop = SCAN.offset + SCAN.count; i < stop; i++) {
+                    col = advance(col, SCAN.array[i], tabSize);
+                }
+            }
+        } catch (BadLocationException e) {
+            // Count what was read
+        }
+        return col;
+    }
+
+    /** The relative offset in [rowStart, rowEnd] nearest to {@code column} cells into the row. */
+    private int offsetAt(int rowStart, int rowEnd, float column) {
+        if (!tabs) {
+            return rowStart + Math.max(0, Math.min(rowEnd - rowStart, Math.round(column)));
+        }
+        int tabSize = tabSize();
+        int col = 0;
+        Document doc = getDocument();
+        int start = getStartOffset();
+        try {
+            for (int pos = rowStart; pos < rowEnd; pos += SCAN.count) {
+                doc.getText(start + pos, rowEnd - pos, SCAN);
+                if (SCAN.count == 0) {
+                    break;
+                }
+                for (int i = 0; i < SCAN.count; i++) {
+                    int next = advance(col, SCAN.array[SCAN.offset + i], tabSize);
+                    if (column < (col + next) / 2f) {
+                        return pos + i;
+                    }
+                    col = next;
+                }
+            }
+        } catch (BadLocationException e) {
+            // Fall back to the end of the row
+        }
+        return rowEnd;
+    }
+
+    // --- Sizes ---
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        if (getContainer() == null) {
+            return 0;
+        }
+        ensureRows();
+        FontMetrics fm = metrics();
+        if (axis == X_AXIS) {
+            // A cell more, for the caret and the line end mark after the widest row
+            return rowsWrap ? (float) widest * cellWidth(fm) : (float) (widest + 1) * cellWidth(fm);
+        }
+        return (float) rowCount * fm.getHeight();
+    }
+
+    @Override
+    public float getMinimumSpan(int axis) {
+        float preferred = getPreferredSpan(axis);
+        return axis == X_AXIS && rowsWrap ? 0 : preferred;
+    }
+
+    @Override
+    public float getMaximumSpan(int axis) {
+        return axis == X_AXIS ? Integer.MAX_VALUE : getPreferredSpan(axis);
+    }
+
+    @Override
+    public float getAlignment(int axis) {
+        return axis == X_AXIS ? 0.0f : super.getAlignment(axis);
+    }
+
+    @Override
+    public void setSize(float width, float height) {
+        int newWidth = (int) width;
+        if (newWidth == this.width) {
+            return;
+        }
+        this.width = newWidth;
+        if (rowsWrap && getContainer() != null) {
+            int rows = rowCount;
+            ensureRows();
+            if (rowCount != rows) {
+                preferenceChanged(null, false, true);
+            }
+        }
+    }
+
+    // --- Edits ---
+
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        lineChanged(a);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        lineChanged(a);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        lineChanged(a);
+    }
+
+    private void lineChanged(Shape a) {
+        scanned = false;
+        rowsValid = false;
+        preferenceChanged(null, true, true);
+        Container host = getContainer();
+        if (host != null && a != null) {
+            Rectangle alloc = a.getBounds();
+            host.repaint(alloc.x, alloc.y, alloc.width, alloc.height);
+        }
+    }
+
+    // --- Model and view ---
+
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        int start = getStartOffset();
+        if (pos < start || pos > getEndOffset()) {
+            throw new BadLocationException("Position not in this line", pos);
+        }
+        ensureRows();
+        FontMetrics fm = metrics();
+        int cell = cellWidth(fm);
+        Rectangle alloc = a.getBounds();
+        int rel = pos - start;
+        int row = rowOf(Math.min(rel, length), b);
+        int col;
+        if (rel <= length) {
+            col = cells(rowStart(row), rel);
+        } else {
+            // Inside the line end, which takes a cell per char after the text
+            col = cells(rowStart(row), length) + rel - length;
+        }
+        return new Rectangle(alloc.x + col * cell, alloc.y + row * fm.getHeight(), 0, fm.getHeight());
+    }
+
+    @Override
+    public int viewToModel(float x, float y, Shape a, Position.Bias[] biasReturn) {
+        ensureRows();
+        FontMetrics fm = metrics();
+        Rectangle alloc = a.getBounds();
+        biasReturn[0] = Position.Bias.Forward;
+        int start = getStartOffset();
+        if (y < alloc.y) {
+            return start;
+        }
+        int row = Math.min(rowCount - 1, (int) (y - alloc.y) / fm.getHeight());
+        int rowStart = rowStart(row);
+        int rowEnd = rowEnd(row);
+        int rel = offsetAt(rowStart, rowEnd, (x - alloc.x) / cellWidth(fm));
+        if (rel == rowEnd && row < rowCount - 1) {
+            // The end of a wrapped row, not the start of the next
+            biasReturn[0] = Position.Bias.Backward;
+        }
+        return start + rel;
+    }
+
+    // --- Painting ---
+
+    @Override
+    public void paint(Graphics g, Shape a) {
+        Container container = getContainer();
+        if (!(container instanceof JTextComponent)) {
+            return;
+        }
+        JTextComponent host = (JTextComponent) container;
+        ensureRows();
+        Rectangle alloc = a.getBounds();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = alloc;
+        }
+        FontMetrics fm = host.getFontMetrics(host.getFont());
+        int cell = cellWidth(fm);
+        int height = fm.getHeight();
+        int first = Math.max(0, (clip.y - alloc.y) / height);
+        int last = Math.min(rowCount - 1, (clip.y + clip.height - 1 - alloc.y) / height);
+        if (first > last) {
+            return;
+        }
+
+        Graphics2D g2d = (Graphics2D) g;
+        Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (hints != null) {
+            g2d.addRenderingHints(hints);
+        }
+        g.setFont(host.getFont());
+        Color foreground = host.isEnabled() ? host.getForeground() : host.getDisabledTextColor();
+        Color selectedForeground = host.getSelectedTextColor();
+        Caret caret = host.getCaret();
+        int selectionStart = host.getSelectionStart();
+        int selectionEnd = host.getSelectionEnd();
+        boolean recolorSelection = caret != null && caret.isSelectionVisible() && selectionStart < selectionEnd
+                && selectedForeground != null && !selectedForeground.equals(foreground);
+        Highlighter highlighter = host.getHighlighter();
+        // Only as wide as the text, so a line that is selected whole isn't highlighted to the edge
+        Rectangle textBounds = new Rectangle(alloc.x, alloc.y, Math.min(alloc.width, (widest + 1) * cell), alloc.height);
+        int start = getStartOffset();
+
+        for (int row = first; row <= last; row++) {
+            int rowStart = rowStart(row);
+            int rowEnd = rowEnd(row);
+            int baseline = alloc.y + row * height + fm.getAscent();
+            if (highlighter instanceof LayeredHighlighter) {
+                int highlightEnd = row == rowCount - 1 ? getEndOffset() : start + rowEnd;
+                ((LayeredHighlighter) highlighter).paintLayeredHighlights(g, start + rowStart, highlightEnd,
+                        textBounds, host, this);
+            }
+
+            // Only the columns in the clip, when they can be counted straight off
+            int from = rowStart;
+            int to = rowEnd;
+            if (!tabs && uniform) {
+                from = rowStart + Math.max(0, Math.min(rowEnd - rowStart, (clip.x - alloc.x) / cell));
+                to = rowStart + Math.max(0, Math.min(rowEnd - rowStart, (clip.x + clip.width - alloc.x) / cell + 1));
+            }
+            if (from >= to) {
+                continue;
+            }
+            try {
+                getDocument().getText(start + from, to - from, ROW);
+            } catch (BadLocationException e) {
+                continue;
+            }
+            int fromCol = from == rowStart ? 0 : cells(rowStart, from);
+            if (!recolorSelection || selectionEnd <= start + from || selectionStart >= start + to) {
+                g.setColor(foreground);
+                drawRun(g, ROW, 0, ROW.count, fromCol, alloc.x, baseline, cell);
+            } else {
+                int s0 = Math.max(0, selectionStart - start - from);
+                int s1 = Math.min(ROW.count, selectionEnd - start - from);
+                int col = fromCol;
+                g.setColor(foreground);
+                col = drawRun(g, ROW, 0, s0, col, alloc.x, baseline, cell);
+                g.setColor(selectedForeground);
+                col = drawRun(g, ROW, s0, s1, col, alloc.x, baseline, cell);
+                g.setColor(foreground);
+                drawRun(g, ROW, s1, ROW.count, col, alloc.x, baseline, cell);
+            }
+        }
+
+        EditorPane pane = pane();
+        if (pane != null && pane.isShowSpecialCharacters()) {
+            paintSpecialCharacters(g2d, alloc, first, last, cell, height);
+        }
+    }
+
+    /**
+     * Draw chars [i0, i1) of {@code text}, the first at column {@code col}, and
+     * return the column after them. Without tabs, and in a font that keeps
+     * them all to a cell, that is one drawChars call.
+     */
+    private int drawRun(Graphics g, Segment text, int i0, int i1, int col, int x, int baseline, int cell) {
+        if (i0 >= i1) {
+            return col;
+        }
+        if (!tabs && uniform) {
+            g.drawChars(text.array, text.offset + i0, i1 - i0, x + col * cell, baseline);
+            return col + i1 - i0;
+        }
+        int tabSize = tabSize();
+        int runStart = i0;
+        int runCol = col;
+        for (int i = i0; i < i1; i++) {
+            char c = text.array[text.offset + i];
+            if (c == '\t' || !uniform) {
+                if (runStart < i) {
+                    g.drawChars(text.array, text.offset + runStart, i - runStart, x + runCol * cell, baseline);
+                }
+                if (c != '\t') {
+                    // Kept to its own cell, whatever width the font gives it
+                    g.drawChars(text.array, text.offset + i, 1, x + col * cell, baseline);
+                }
+                col = advance(col, c, tabSize);
+                runStart = i + 1;
+                runCol = col;
+            } else {
+                col++;
+            }
+        }
+        if (runStart < i1) {
+            g.drawChars(text.array, text.offset + runStart, i1 - runStart, x + runCol * cell, baseline);
+        }
+        return col;
+    }
+
+    private void paintSpecialCharacters(Graphics2D g2d, Rectangle alloc, int first, int last, int cell, int height) {
+        Document doc = getDocument();
+        int start = getStartOffset();
+        int tabSize = tabSize();
+        Color originalColor = g2d.getColor();
+        Object antialiasing = g2d.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setColor(SpecialCharacterMarks.MARK_COLOR);
+        Rectangle bounds = new Rectangle();
+        try {
+            for (int row = first; row <= last; row++) {
+                int rowStart = rowStart(row);
+                int rowEnd = row == rowCount - 1 ? length + lineEndLength : rowEnd(row);
+                int y = alloc.y + row * height;
+                int col = 0;
+                int trailingFrom = -1; // Not looked for until a line end turns up
+                doc.getText(start + rowStart, Math.min(rowEnd, doc.getLength() - start) - rowStart, ROW);
+                for (int i = 0; i < ROW.count; i++) {
+                    char c = ROW.array[ROW.offset + i];
+                    int next = advance(col, c, tabSize);
+                    if (SpecialCharacterMarks.isMarked(c)) {
+                        boolean lineEnd = rowStart + i >= length;
+                        if (lineEnd && trailingFrom < 0) {
+                            trailingFrom = SpecialCharacterMarks.trailingLineEndsStart(doc);
+                        }
+                        if (!lineEnd || start + rowStart + i < trailingFrom) {
+                            bounds.setBounds(alloc.x + col * cell, y, (next - col) * cell, height);
+                            SpecialCharacterMarks.paint(g2d, c, bounds);
+                        }
+                    }
+                    col = next;
+                }
+            }
+        } catch (BadLocationException e) {
+            // Ignore painting errors
+        } finally {
+            g2d.setColor(originalColor);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, antialiasing);
+        }
+    }
+}
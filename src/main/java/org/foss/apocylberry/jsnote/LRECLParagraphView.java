@@ -1,9 +0,0 @@
-package org.foss.apocylberry.jsnote;
-
-import javax.swing.text.*;
-
-public class LRECLParagraphView extends ParagraphView {
-    public LRECLParagraphView(Element elem) {
-        super(elem);
-    }
-}
@@ -0,0 +1,223 @@
+package org.foss.apocylberry.jsnote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line-level diff between two texts, used to reload a file by patching only what
+ * changed on disk.
+ *
+ * Common leading and trailing lines are trimmed first, which is all it takes for
+ * the usual cases (lines appended, one block rewritten). What is left in the
+ * middle goes through Myers' O(ND) algorithm; if that needs more than
+ * {@link #MAX_EDIT_DISTANCE} line edits, the whole middle is reported as one
+ * change instead.
+ */
+public final class LineDiff {
+    static final int MAX_EDIT_DISTANCE = 2000;
+
+    /** Replace old[oldStart, oldEnd) with new[newStart, newEnd); offsets are in chars. */
+    public static final class Hunk {
+        public final int oldStart;
+        public final int oldEnd;
+        public final int newStart;
+        public final int newEnd;
+
+        Hunk(int oldStart, int oldEnd, int newStart, int newEnd) {
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+        }
+    }
+
+    private final String a;
+    private final String b;
+    private final int[] aStarts;
+    private final int[] bStarts;
+    private final int[] aHashes;
+    private final int[] bHashes;
+
+    private LineDiff(String a, String b) {
+        this.a = a;
+        this.b = b;
+        this.aStarts = lineStarts(a);
+        this.bStarts = lineStarts(b);
+        this.aHashes = hashes(a, aStarts);
+        this.bHashes = hashes(b, bStarts);
+    }
+
+    /** Hunks turning {@code oldText} into {@code newText}, in ascending order. */
+    public static List<Hunk> diff(String oldText, String newText) {
+        return new LineDiff(oldText, newText).run();
+    }
+
+    private List<Hunk> run() {
+        int n = aStarts.length - 1;
+        int m = bStarts.length - 1;
+        int prefix = 0;
+        while (prefix < n && prefix < m && same(prefix, prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < n - prefix && suffix < m - prefix && same(n - 1 - suffix, m - 1 - suffix)) {
+            suffix++;
+        }
+
+        List<Hunk> hunks = new ArrayList<>();
+        if (prefix + suffix < n || prefix + suffix < m) {
+            if (!myers(prefix, n - suffix, prefix, m - suffix, hunks)) {
+                hunks.clear();
+                addHunk(hunks, prefix, n - suffix, prefix, m - suffix);
+            }
+        }
+        return hunks;
+    }
+
+    /**
+     * Diff lines a[aLo, aHi) against b[bLo, bHi). Returns false if the edit
+     * distance exceeds the limit.
+     */
+    private boolean myers(int aLo, int aHi, int bLo, int bHi, List<Hunk> hunks) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int max = Math.min(n + m, MAX_EDIT_DISTANCE);
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<>();
+
+        int found = -1;
+        for (int d = 0; d <= max && found < 0; d++) {
+            // Only diagonals -d..d are live; keep just those for the backtrack
+            int[] snapshot = new int[2 * d + 1];
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && same(aLo + x, bLo + y)) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    found = d;
+                }
+            }
+            for (int k = -d; k <= d; k++) {
+                snapshot[k + d] = v[offset + k];
+            }
+            trace.add(snapshot);
+        }
+        if (found < 0) {
+            return false;
+        }
+
+        // Walk back from (n, m), collecting the non-diagonal stretches as hunks
+        List<Hunk> reversed = new ArrayList<>();
+        int x = n;
+        int y = m;
+        int hunkEndX = -1;
+        int hunkEndY = -1;
+        for (int d = found; d > 0; d--) {
+            int[] prev = trace.get(d - 1);
+            int k = x - y;
+            int prevK;
+            if (k == -d || (k != d && at(prev, d - 1, k - 1) < at(prev, d - 1, k + 1))) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevX = at(prev, d - 1, prevK);
+            int prevY = prevX - prevK;
+            // Diagonal (matching lines) back to the end of the edit
+            int editEndX = prevK == k + 1 ? prevX : prevX + 1;
+            int editEndY = prevK == k + 1 ? prevY + 1 : prevY;
+            if (x != editEndX || y != editEndY) {
+                flush(reversed, hunkEndX, hunkEndY, x, y, aLo, bLo);
+                hunkEndX = -1;
+            }
+            if (hunkEndX < 0) {
+                hunkEndX = editEndX;
+                hunkEndY = editEndY;
+            }
+            x = prevX;
+            y = prevY;
+        }
+        flush(reversed, hunkEndX, hunkEndY, x, y, aLo, bLo);
+        for (int i = reversed.size() - 1; i >= 0; i--) {
+            hunks.add(reversed.get(i));
+        }
+        return true;
+    }
+
+    private void flush(List<Hunk> reversed, int endX, int endY, int x, int y, int aLo, int bLo) {
+        if (endX < 0) {
+            return;
+        }
+        // The diagonal from (x, y) to the edit start is shared lines; skip it
+        int startX = x;
+        int startY = y;
+        while (startX < endX && startY < endY && same(aLo + startX, bLo + startY)) {
+            startX++;
+            startY++;
+        }
+        reversed.add(new Hunk(aStarts[aLo + startX], aStarts[aLo + endX], bStarts[bLo + startY], bStarts[bLo + endY]));
+    }
+
+    private static int at(int[] snapshot, int d, int k) {
+        return snapshot[k + d];
+    }
+
+    private void addHunk(List<Hunk> hunks, int aFrom, int aTo, int bFrom, int bTo) {
+        hunks.add(new Hunk(aStarts[aFrom], aStarts[aTo], bStarts[bFrom], bStarts[bTo]));
+    }
+
+    private boolean same(int lineA, int lineB) {
+        if (aHashes[lineA] != bHashes[lineB]) {
+            return false;
+        }
+        int start = aStarts[lineA];
+        int length = aStarts[lineA + 1] - start;
+        return length == bStarts[lineB + 1] - bStarts[lineB]
+            && a.regionMatches(start, b, bStarts[lineB], length);
+    }
+
+    /** Start of every line plus a final entry at the text length. */
+    private static int[] lineStarts(String text) {
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        // A text ending in '\n' has no further line
+        if (text.isEmpty() || text.charAt(text.length() - 1) == '\n') {
+            count--;
+        }
+        int[] starts = new int[count + 1];
+        int line = 1;
+        for (int i = 0; i < text.length() && line < count; i++) {
+            if (text.charAt(i) == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        starts[count] = text.length();
+        return starts;
+    }
+
+    private static int[] hashes(String text, int[] starts) {
+        int[] hashes = new int[starts.length - 1];
+        for (int line = 0; line < hashes.length; line++) {
+            int h = 0;
+            for (int i = starts[line]; i < starts[line + 1]; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            hashes[line] = h;
+        }
+        return hashes;
+    }
+}
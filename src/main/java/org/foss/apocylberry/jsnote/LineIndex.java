@@ -0,0 +1,280 @@
+package org.foss.apocylberry.jsnote;
+
+/**
+ * Compact index of line start offsets for documents too large to carry one
+ * Element per line. Starts are kept in a gap buffer: entries before the gap are
+ * absolute offsets, entries after it are stored relative to the document length,
+ * so an edit only touches the lines it adds or removes (the same trick GapContent
+ * uses for its marks).
+ *
+ * Line objects handed out to views (see {@link Slot}) live in a parallel array and
+ * are kept informed of their current line number the same way.
+ */
+public class LineIndex {
+
+    /**
+     * Object bound to one line that needs to know its line number as lines are
+     * added and removed above it.
+     */
+    public abstract static class Slot {
+        static final int DETACHED = Integer.MIN_VALUE;
+
+        // >= 0 while before the gap, (line - lineCount) while after it
+        int encodedLine = DETACHED;
+
+        protected int getLine(LineIndex index) {
+            if (encodedLine == DETACHED) {
+                return -1;
+            }
+            return encodedLine >= 0 ? encodedLine : encodedLine + index.getLineCount();
+        }
+
+        protected boolean isDetached() {
+            return encodedLine == DETACHED;
+        }
+    }
+
+    /**
+     * Lines taken out of the index by {@link #applyRemove(int, int)}; kept by the
+     * caller so the removal can be undone.
+     */
+    public static class Removal {
+        public final int firstLine;
+        public final int[] starts;
+        public final Slot[] slots;
+
+        Removal(int firstLine, int[] starts, Slot[] slots) {
+            this.firstLine = firstLine;
+            this.starts = starts;
+            this.slots = slots;
+        }
+
+        public int getLineCount() {
+            return starts.length;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] starts;
+    private Slot[] slots;   // allocated on first use, same geometry as starts
+    private int gapStart;   // first physical index of the gap
+    private int gapEnd;     // first physical index after the gap
+    private int length;     // document length, not counting the implied final newline
+
+    public LineIndex() {
+        starts = new int[INITIAL_CAPACITY];
+        starts[0] = 0;
+        gapStart = 1;
+        gapEnd = starts.length;
+    }
+
+    public int getLineCount() {
+        return starts.length - (gapEnd - gapStart);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getLineStart(int line) {
+        if (line < gapStart) {
+            return starts[line];
+        }
+        return starts[line + gapEnd - gapStart] + length;
+    }
+
+    /** End offset of a line, Element style: one past its newline. */
+    public int getLineEnd(int line) {
+        if (line + 1 < getLineCount()) {
+            return getLineStart(line + 1);
+        }
+        return length + 1;
+    }
+
+    /** Index of the line containing the offset. */
+    public int getLineOfOffset(int offset) {
+        int lo = 0;
+        int hi = getLineCount() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (getLineStart(mid) <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    // --- Bulk building (used while a file is being scanned) ---
+
+    /** Append a line start at the end of the index. Offsets must be ascending. */
+    public void appendLineStart(int start) {
+        moveGap(getLineCount());
+        ensureGap(1);
+        starts[gapStart++] = start;
+        if (start > length) {
+            length = start;
+        }
+    }
+
+    public void setLength(int length) {
+        moveGap(getLineCount());
+        this.length = length;
+    }
+
+    // --- Edits ---
+
+    /**
+     * Record an insertion of {@code insertedLength} characters at {@code offset}.
+     * {@code newStarts} holds the starts of the lines the insertion created, in
+     * post-insert coordinates; {@code newSlots} may be null or carry the objects
+     * to bind to those lines (used when redoing or undoing).
+     *
+     * @return the index of the first added line
+     */
+    public int applyInsert(int offset, int insertedLength, int[] newStarts, int count, Slot[] newSlots) {
+        int line = getLineOfOffset(offset);
+        moveGap(line + 1);
+        if (count > 0) {
+            ensureGap(count);
+            for (int i = 0; i < count; i++) {
+                starts[gapStart] = newStarts[i];
+                Slot slot = newSlots != null ? newSlots[i] : null;
+                if (slot != null) {
+                    ensureSlots();
+                    slot.encodedLine = gapStart;
+                }
+                if (slots != null) {
+                    slots[gapStart] = slot;
+                }
+                gapStart++;
+            }
+        }
+        length += insertedLength;
+        return line + 1;
+    }
+
+    /**
+     * Record a removal of {@code removedLength} characters at {@code offset}.
+     * Every line whose start falls inside the removed range is merged into the
+     * line before it.
+     */
+    public Removal applyRemove(int offset, int removedLength) {
+        int line = getLineOfOffset(offset);
+        moveGap(line + 1);
+        int limit = offset + removedLength;
+        int count = 0;
+        while (gapEnd + count < starts.length && starts[gapEnd + count] + length <= limit) {
+            count++;
+        }
+        int[] removedStarts = new int[count];
+        Slot[] removedSlots = new Slot[count];
+        for (int i = 0; i < count; i++) {
+            int p = gapEnd + i;
+            removedStarts[i] = starts[p] + length;
+            if (slots != null) {
+                removedSlots[i] = slots[p];
+                if (slots[p] != null) {
+                    slots[p].encodedLine = Slot.DETACHED;
+                    slots[p] = null;
+                }
+            }
+        }
+        gapEnd += count;
+        length -= removedLength;
+        return new Removal(line + 1, removedStarts, removedSlots);
+    }
+
+    // --- Slots ---
+
+    public Slot getSlot(int line) {
+        if (slots == null) {
+            return null;
+        }
+        return slots[physical(line)];
+    }
+
+    public void setSlot(int line, Slot slot) {
+        ensureSlots();
+        int p = physical(line);
+        slots[p] = slot;
+        slot.encodedLine = line < gapStart ? line : line - getLineCount();
+    }
+
+    // --- Gap management ---
+
+    private int physical(int line) {
+        return line < gapStart ? line : line + gapEnd - gapStart;
+    }
+
+    private void ensureSlots() {
+        if (slots == null) {
+            slots = new Slot[starts.length];
+        }
+    }
+
+    private void moveGap(int line) {
+        int lineCount = getLineCount();
+        if (line < gapStart) {
+            // Entries [line, gapStart) move to just before gapEnd
+            int shift = gapEnd - gapStart;
+            for (int i = gapStart - 1; i >= line; i--) {
+                int dst = i + shift;
+                starts[dst] = starts[i] - length;
+                if (slots != null) {
+                    Slot slot = slots[i];
+                    slots[dst] = slot;
+                    slots[i] = null;
+                    if (slot != null) {
+                        slot.encodedLine = i - lineCount;
+                    }
+                }
+            }
+            gapStart = line;
+            gapEnd = line + shift;
+        } else if (line > gapStart) {
+            // Entries [gapEnd, gapEnd + n) move to [gapStart, line)
+            int n = line - gapStart;
+            for (int i = 0; i < n; i++) {
+                int src = gapEnd + i;
+                int dst = gapStart + i;
+                starts[dst] = starts[src] + length;
+                if (slots != null) {
+                    Slot slot = slots[src];
+                    slots[dst] = slot;
+                    slots[src] = null;
+                    if (slot != null) {
+                        slot.encodedLine = dst;
+                    }
+                }
+            }
+            gapStart = line;
+            gapEnd += n;
+        }
+    }
+
+    private void ensureGap(int needed) {
+        if (gapEnd - gapStart >= needed) {
+            return;
+        }
+        int used = getLineCount();
+        int capacity = Math.max(starts.length * 2, used + needed + INITIAL_CAPACITY);
+        int tail = starts.length - gapEnd;
+        int newGapEnd = capacity - tail;
+
+        int[] newStarts = new int[capacity];
+        System.arraycopy(starts, 0, newStarts, 0, gapStart);
+        System.arraycopy(starts, gapEnd, newStarts, newGapEnd, tail);
+        starts = newStarts;
+
+        if (slots != null) {
+            Slot[] newSlots = new Slot[capacity];
+            System.arraycopy(slots, 0, newSlots, 0, gapStart);
+            System.arraycopy(slots, gapEnd, newSlots, newGapEnd, tail);
+            slots = newSlots;
+        }
+        gapEnd = newGapEnd;
+    }
+}
@@ -12,7 +12,7 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.ArrayList;
-import java.nio.file.ClosedWatchServiceException;
+import java.util.Objects;
 
 public class MainApp extends JFrame {
     private EditorPane editor;
@@ -20,7 +20,10 @@ public class MainApp extends JFrame {
     private JLabel messageArea;
     private JLabel cursorPos;
     private JLabel charCounter;
+    private JLabel matchCounter;
     private JLabel reloadFileLabel;
+    private JLabel cancelLoadLabel;
+    private Runnable cancelTask = null; // What the Cancel link stops when no file is loading
     private File currentFile = null;
     private Preferences prefs;
     private String dateFormat;
@@ -28,23 +31,47 @@ public class MainApp extends JFrame {
     private JMenu timestampFormatMenu;
     private FindReplaceDialog findDialog;
     private FindReplaceDialog replaceDialog;
+    private FindInFilesDialog findInFilesDialog;
+    // Where to put the caret once the file being opened for Find in Files has loaded
+    private File lineToShowIn = null;
+    private int lineToShow = 0;
     private boolean showSpecialCharacters = false;
     private LineNumberView lineNumberView;
     private JScrollPane scrollPane;
 
     private boolean hasUnsavedChanges = false;
 
-    private String savedContent = ""; // Track the last saved content
+    // The text matches the file when its fingerprint is the one taken at the last save
+    // or load. A mapped document has no fingerprint; it matches when the undo history is
+    // back where it was, unless it changed in a way undo can't take back
+    private DocumentFingerprint documentFingerprint = null;
+    private long savedFingerprint = -1;
+    private Object savedUndoPosition = null;
+    private boolean untrackedChanges = false;
+    private boolean modifiedCheckPending = false;
     
-    // File watcher for detecting external file modifications
-    private WatchService watchService = null;
-    private Thread watchServiceThread = null;
+    // Watch on the current file for external modifications
+    private FileWatchService.Registration fileWatch = null;
     private boolean diskModified = false; // Track if file was modified on disk
-    private boolean suppressWatcherEvents = false; // Suppress file watcher events during our own saves
+    private FileFollower fileFollower = null; // Non-null while following the current file
+    private JCheckBoxMenuItem followItem;
+    private int followResyncEdits; // documentEdits when the follower was last asked to resync
+    private boolean followTrimmed = false; // Lines were dropped from the start while following
+    private int savesInProgress = 0;
+    private int documentEdits = 0; // Bumped on every change, to tell if a save captured the latest text
+    private int documentLoads = 0; // Bumped whenever another file's text takes over the editor
+    private final List<Runnable> afterBusy = new ArrayList<>(); // Changes from disk held back while Replace All runs
+    private final SaveEngine saveEngine = new SaveEngine();
     private boolean isMainInstance = true;
     
 
     private javax.swing.event.DocumentListener documentListener; // Store reference to disable during file load
+
+    // Files at least this large are opened as a MappedDocument instead of being read into memory
+    private static final int DEFAULT_MAPPED_THRESHOLD_MB = 256;
+    // Undo history beyond this much memory goes to a temp file
+    private static final int DEFAULT_UNDO_MEMORY_MB = 32;
+    private ChunkedFileLoader fileLoader = null; // Non-null while a file is streaming in
     private volatile boolean fileLoadInProgress = false; // Flag to track file loading state
 
     private void toggleLineNumbers(boolean show) {
@@ -167,6 +194,9 @@ public class MainApp extends JFrame {
         if (findDialog == null) {
             findDialog = new FindReplaceDialog(this, editor, false);
         }
+        if (replaceDialog != null) {
+            replaceDialog.clearMatchIndex();
+        }
         findDialog.showDialog();
     }
 
@@ -174,16 +204,87 @@ public class MainApp extends JFrame {
         if (replaceDialog == null) {
             replaceDialog = new FindReplaceDialog(this, editor, true);
         }
+        if (findDialog != null) {
+            findDialog.clearMatchIndex();
+        }
         replaceDialog.showDialog();
     }
 
+    /** Find Next or Find Previous, through the Replace dialog while it is open, else the Find dialog. */
+    private void findAgain(boolean forward) {
+        FindReplaceDialog dialog = replaceDialog != null && replaceDialog.isVisible() ? replaceDialog : findDialog;
+        if (dialog == null) {
+            dialog = findDialog = new FindReplaceDialog(this, editor, false);
+        }
+        dialog.findAgain(forward);
+    }
+
+    private void showFindInFilesDialog() {
+        if (findInFilesDialog == null) {
+            findInFilesDialog = new FindInFilesDialog(this, prefs);
+        }
+        findInFilesDialog.showDialog(editor.getSelectedText(), currentFile);
+    }
+
+    /**
+     * Show a line of a file: open the file first unless it is the one already
+     * open. The caret goes to the line once the file has loaded.
+     */
+    public void openFileAtLine(File file, int line) {
+        if (file.equals(currentFile) && !fileLoadInProgress) {
+            showLine(line);
+            return;
+        }
+        if (!checkUnsavedChanges()) {
+            return;
+        }
+        lineToShowIn = file;
+        lineToShow = line;
+        openFile(file);
+    }
+
+    /** After a load: go to the line asked for by openFileAtLine, if it was for this file. */
+    private void showRequestedLine(File file) {
+        if (file.equals(lineToShowIn)) {
+            showLine(lineToShow);
+        }
+        lineToShowIn = null;
+    }
+
+    private void showLine(int line) {
+        Element root = editor.getDocument().getDefaultRootElement();
+        int index = Math.max(0, Math.min(line, root.getElementCount()) - 1);
+        editor.setCaretPosition(root.getElement(index).getStartOffset());
+        try {
+            editor.scrollRectToVisible(editor.modelToView2D(editor.getCaretPosition()).getBounds());
+        } catch (BadLocationException ex) {
+            // Not laid out yet; the caret still moved
+        }
+        toFront();
+        editor.requestFocusInWindow();
+    }
+
     private void initComponents() {
         setTitle("Swing Note");
         setDefaultCloseOperation(isMainInstance ? JFrame.EXIT_ON_CLOSE : JFrame.DISPOSE_ON_CLOSE);
+        // The watch service is shared by every window; drop this one's watch with it
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                persistUndoHistory();
+            }
+
+            @Override
+            public void windowClosed(WindowEvent e) {
+                stopFollowing();
+                stopFileWatcher();
+            }
+        });
         
         // Create editor
         editor = new EditorPane();
         editor.setMaxLineLength(prefs.getInt("maxLineLength", 1024));
+        editor.setUndoMemoryBudget(prefs.getInt("undoMemoryMB", DEFAULT_UNDO_MEMORY_MB) * 1024L * 1024L);
         showSpecialCharacters = prefs.getBoolean("showSpecialChars", false);
         if (showSpecialCharacters) {
             editor.setShowSpecialCharacters(true);
@@ -238,16 +339,30 @@ public class MainApp extends JFrame {
             }
         });
         
+        cancelLoadLabel = new JLabel("Cancel");
+        cancelLoadLabel.setForeground(new Color(0, 0, 255)); // Blue for clickable
+        cancelLoadLabel.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        cancelLoadLabel.setVisible(false);
+        cancelLoadLabel.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                cancelFileLoad();
+            }
+        });
+        
         JPanel leftStatus = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
         leftStatus.setOpaque(false);
         cursorPos = new JLabel("");
         charCounter = new JLabel("");
+        matchCounter = new JLabel("");
         leftStatus.add(cursorPos);
         leftStatus.add(new JLabel(" | "));
         leftStatus.add(charCounter);
+        leftStatus.add(matchCounter);
         
         JPanel rightStatus = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
         rightStatus.setOpaque(false);
+        rightStatus.add(cancelLoadLabel);
         rightStatus.add(reloadFileLabel);
         rightStatus.add(new JLabel(" | "));
         rightStatus.add(statusBar);
@@ -266,15 +381,25 @@ public class MainApp extends JFrame {
 
         // Listen for overtype mode changes
         editor.addPropertyChangeListener("overtypeMode", evt -> updateStatus());
+
+        // Changes from disk wait for a Replace All, which has the text to itself
+        editor.addPropertyChangeListener("busy", evt -> {
+            if (!editor.isBusy()) {
+                // Once the task has put its edit in the undo history
+                SwingUtilities.invokeLater(this::runAfterBusy);
+            }
+        });
         
 
         // Listen for document changes to track unsaved changes
 
         documentListener = new javax.swing.event.DocumentListener() {
             public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                documentEdits++;
                 markAsModified();
             }
             public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                documentEdits++;
                 markAsModified();
             }
             public void changedUpdate(javax.swing.event.DocumentEvent e) {
@@ -282,6 +407,24 @@ public class MainApp extends JFrame {
             }
         };
         editor.getDocument().addDocumentListener(documentListener);
+        attachFingerprint();
+        
+        // Kit swaps and mapped opens replace the document; keep the listener on the current one
+        editor.addPropertyChangeListener("document", evt -> {
+            if (evt.getOldValue() instanceof javax.swing.text.Document) {
+                ((javax.swing.text.Document) evt.getOldValue()).removeDocumentListener(documentListener);
+            }
+            if (evt.getNewValue() instanceof javax.swing.text.Document) {
+                ((javax.swing.text.Document) evt.getNewValue()).addDocumentListener(documentListener);
+                attachFingerprint();
+            }
+            // A record file shows one record per line; anything else goes back to the chosen length
+            if (evt.getNewValue() instanceof FixedRecordDocument) {
+                editor.setMaxLineLength(((FixedRecordDocument) evt.getNewValue()).getRecordLength());
+            } else if (evt.getOldValue() instanceof FixedRecordDocument) {
+                editor.setMaxLineLength(prefs.getInt("maxLineLength", 1024));
+            }
+        });
         
         // Create menu bar
         JMenuBar menuBar = new JMenuBar();
@@ -290,16 +433,21 @@ public class MainApp extends JFrame {
         JMenu fileMenu = new JMenu("File");
         addMenuItem(fileMenu, "New", KeyStroke.getKeyStroke(KeyEvent.VK_N, InputEvent.CTRL_DOWN_MASK), e -> newFile());
         addMenuItem(fileMenu, "Open...", KeyStroke.getKeyStroke(KeyEvent.VK_O, InputEvent.CTRL_DOWN_MASK), e -> openFile());
+        addMenuItem(fileMenu, "Open Large File...", null, e -> openLargeFile());
+        addMenuItem(fileMenu, "Open Fixed-Length Records...", null, e -> openFixedRecordFile());
         addMenuItem(fileMenu, "Save", KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK), e -> saveFile());
         addMenuItem(fileMenu, "Save As...", null, e -> saveFileAs());
         fileMenu.addSeparator();
-        addMenuItem(fileMenu, "Exit", null, e -> System.exit(0));
+        addMenuItem(fileMenu, "Exit", null, e -> {
+            persistUndoHistory();
+            System.exit(0);
+        });
         
         // Edit menu
         JMenu editMenu = new JMenu("Edit");
         addMenuItem(editMenu, "Undo", KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK), e -> {
             try {
-                if (editor.getUndoManager().canUndo()) {
+                if (!editor.isBusy() && editor.getUndoManager().canUndo()) {
                     System.err.println("DEBUG: Undo called - canUndo before: true");
                     editor.getUndoManager().undo();
                     System.err.println("DEBUG: Undo completed - canUndo after: " + editor.getUndoManager().canUndo());
@@ -311,7 +459,7 @@ public class MainApp extends JFrame {
         });
         addMenuItem(editMenu, "Redo", KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK), e -> {
             try {
-                if (editor.getUndoManager().canRedo()) {
+                if (!editor.isBusy() && editor.getUndoManager().canRedo()) {
                     System.err.println("DEBUG: Redo called - canRedo before: true");
                     editor.getUndoManager().redo();
                     System.err.println("DEBUG: Redo completed - canRedo after: " + editor.getUndoManager().canRedo());
@@ -321,15 +469,23 @@ public class MainApp extends JFrame {
                 // Ignore redo errors
             }
         });
+        // Off by default: the history holds the text of every edit, written in the clear
+        JCheckBoxMenuItem keepHistoryItem = new JCheckBoxMenuItem("Keep Undo History After Closing");
+        keepHistoryItem.setState(prefs.getBoolean("keepUndoHistory", false));
+        keepHistoryItem.setToolTipText("Saves each file's undo history, edited text included, under ~/.jsnote/undo");
+        keepHistoryItem.addActionListener(e -> prefs.putBoolean("keepUndoHistory", keepHistoryItem.isSelected()));
+        editMenu.add(keepHistoryItem);
         editMenu.addSeparator();
         addMenuItem(editMenu, "Cut", KeyStroke.getKeyStroke(KeyEvent.VK_X, InputEvent.CTRL_DOWN_MASK), e -> editor.cut());
         addMenuItem(editMenu, "Copy", KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK), e -> editor.copy());
         addMenuItem(editMenu, "Paste", KeyStroke.getKeyStroke(KeyEvent.VK_V, InputEvent.CTRL_DOWN_MASK), e -> editor.paste());
         editMenu.addSeparator();
         addMenuItem(editMenu, "Find...", KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK), e -> showFindDialog());
-        addMenuItem(editMenu, "Find Next", KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), e -> FindReplaceDialog.findNext(editor));
-        addMenuItem(editMenu, "Find Previous", KeyStroke.getKeyStroke(KeyEvent.VK_F3, InputEvent.SHIFT_DOWN_MASK), e -> FindReplaceDialog.findPrevious(editor));
+        addMenuItem(editMenu, "Find Next", KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), e -> findAgain(true));
+        addMenuItem(editMenu, "Find Previous", KeyStroke.getKeyStroke(KeyEvent.VK_F3, InputEvent.SHIFT_DOWN_MASK), e -> findAgain(false));
         addMenuItem(editMenu, "Replace...", KeyStroke.getKeyStroke(KeyEvent.VK_R, InputEvent.CTRL_DOWN_MASK), e -> showReplaceDialog());
+        addMenuItem(editMenu, "Find in Files...", KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK | InputEvent.SHIFT_DOWN_MASK), e -> showFindInFilesDialog());
+        addMenuItem(editMenu, "Go To Line...", KeyStroke.getKeyStroke(KeyEvent.VK_G, InputEvent.CTRL_DOWN_MASK), e -> goToLine());
         // No need for duplicate key binding here since we handle it in initComponents()
         editMenu.addSeparator();
         addMenuItem(editMenu, "Select All", KeyStroke.getKeyStroke(KeyEvent.VK_A, InputEvent.CTRL_DOWN_MASK), e -> editor.selectAll());
@@ -351,6 +507,15 @@ public class MainApp extends JFrame {
         showSpecialCharsItem.setState(showSpecialCharacters);
         showSpecialCharsItem.addActionListener(e -> toggleSpecialCharacters(showSpecialCharsItem.isSelected()));
         viewMenu.add(showSpecialCharsItem);
+        viewMenu.addSeparator();
+        followItem = new JCheckBoxMenuItem("Follow File");
+        followItem.addActionListener(e -> setFollowing(followItem.isSelected()));
+        viewMenu.add(followItem);
+        JCheckBoxMenuItem followScrollItem = new JCheckBoxMenuItem("Scroll to End While Following");
+        followScrollItem.setState(prefs.getBoolean("followAutoScroll", true));
+        followScrollItem.addActionListener(e -> prefs.putBoolean("followAutoScroll", followScrollItem.isSelected()));
+        viewMenu.add(followScrollItem);
+        addMenuItem(viewMenu, "Follow Line Limit...", null, e -> setFollowLineLimit());
         
         // Format menu
         JMenu formatMenu = new JMenu("Format");
@@ -395,6 +560,11 @@ public class MainApp extends JFrame {
         menu.add(item);
     }
     
+    /** Show the search's match count next to the character count; empty hides it. */
+    public void setMatchStatus(String status) {
+        matchCounter.setText(status.isEmpty() ? "" : "| " + status);
+    }
+
     public void setStatusMessage(String message) {
         if (message != null && !message.isEmpty()) {
             messageArea.setText(message);
@@ -406,28 +576,79 @@ public class MainApp extends JFrame {
 
 
     private void markAsModified() {
-        // Compare current content with saved content
-        String currentContent = editor.getText();
-        boolean contentMatches = currentContent.equals(savedContent);
-        
-        if (contentMatches) {
-            // Content matches saved version - clear the unsaved flag
-            if (hasUnsavedChanges) {
-                hasUnsavedChanges = false;
-                updateTitleBar();
-            }
+        // A new edit reaches the undo manager only after the document listeners have
+        // run, so look at the history once the edit is complete; one check per batch
+        if (!modifiedCheckPending) {
+            modifiedCheckPending = true;
+            SwingUtilities.invokeLater(this::updateModifiedState);
+        }
+    }
+
+    private void updateModifiedState() {
+        modifiedCheckPending = false;
+        boolean modified;
+        if (documentFingerprint != null) {
+            // Typing a character and deleting it again leaves the text saved
+            modified = documentFingerprint.get() != savedFingerprint;
         } else {
-            // Content differs from saved version - set the unsaved flag
-            if (!hasUnsavedChanges) {
-                hasUnsavedChanges = true;
-                updateTitleBar();
-            }
+            modified = untrackedChanges || !Objects.equals(editor.getUndoPosition(), savedUndoPosition);
+        }
+        if (modified != hasUnsavedChanges) {
+            hasUnsavedChanges = modified;
+            updateTitleBar();
+        }
+    }
+
+    /** Take the text as it is now as matching the file. */
+    private void setSavePoint() {
+        savedFingerprint = documentFingerprint != null ? documentFingerprint.get() : -1;
+        savedUndoPosition = editor.getUndoPosition();
+        untrackedChanges = false;
+    }
+
+    /**
+     * Fingerprint the editor's document, now that it has a new one. Mapped
+     * documents go without: building the fingerprint reads the whole text, which
+     * is exactly what mapping avoids.
+     */
+    private void attachFingerprint() {
+        if (documentFingerprint != null) {
+            documentFingerprint.detach();
+        }
+        javax.swing.text.Document doc = editor.getDocument();
+        documentFingerprint = doc instanceof MappedDocument ? null : new DocumentFingerprint(doc);
+    }
+
+    /**
+     * What a file's saved undo history is keyed by besides its path: the text's
+     * fingerprint, or for a mapped document, which has none, the file's size and
+     * time.
+     */
+    private long historyFingerprint(File file) {
+        return documentFingerprint != null ? documentFingerprint.get() : file.length() * 31 + file.lastModified();
+    }
+
+    /** Save the undo history with the file, if that is turned on and the text is what the file holds. */
+    private void persistUndoHistory() {
+        if (!prefs.getBoolean("keepUndoHistory", false)) {
+            return;
+        }
+        updateModifiedState();
+        if (currentFile != null && !hasUnsavedChanges && !diskModified && !fileLoadInProgress
+            && fileFollower == null && !followTrimmed) {
+            editor.saveUndoHistory(currentFile, historyFingerprint(currentFile));
+        }
+    }
+
+    /** Take up the undo history saved with a file just opened, from where the file is. */
+    private void restoreUndoHistory(File file) {
+        if (prefs.getBoolean("keepUndoHistory", false) && editor.restoreUndoHistory(file, historyFingerprint(file))) {
+            setSavePoint();
         }
     }
 
     private void markAsSaved() {
-        // Update saved content snapshot
-        savedContent = editor.getText();
+        setSavePoint();
         diskModified = false; // Clear disk modified flag when we save
         if (hasUnsavedChanges) {
             hasUnsavedChanges = false;
@@ -453,81 +674,322 @@ public class MainApp extends JFrame {
             }
         }
         
-        // Save current cursor position and viewport position before reload
-        int cursorPosition = editor.getCaretPosition();
-        int viewportY = editor.getVisibleRect().y;
+        if (editor.getDocument() instanceof FixedRecordDocument) {
+            openMappedFile(currentFile, TextEncoding.of(editor.getDocument()), editor.getCaretPosition());
+            return;
+        }
+        if (editor.getDocument() instanceof MappedDocument) {
+            openMappedFile(currentFile, editor.getCaretPosition());
+            return;
+        }
         
+        if (fileFollower != null) {
+            // The follower has to know how much of the file the document holds
+            resyncFollower();
+            return;
+        }
+        
+        reloadIncrementally(currentFile);
+    }
 
-        // Load file in background thread to prevent UI freeze
-        fileLoadInProgress = true;
-        setStatusMessage("Reloading: " + currentFile.getName() + "...");
+    /**
+     * Bring the document in line with the file on disk by replacing only the lines
+     * that differ, as a single undoable edit, so the caret, scroll position and
+     * undo history survive. The file is read on a worker thread; only if its
+     * fingerprint differs from the document's is the document's text taken and
+     * diffed against it. If the document is edited meanwhile, the reload starts over.
+     */
+    private void reloadIncrementally(File file) {
+        if (editor.isBusy()) {
+            whenNotBusy(() -> {
+                if (file == currentFile) {
+                    reloadIncrementally(file);
+                }
+            });
+            return;
+        }
+        long fingerprintAtStart = documentFingerprint.get();
+        int editsAtStart = documentEdits;
+        setStatusMessage("Reloading: " + file.getName() + "...");
         
-        Thread loadThread = new Thread(() -> {
+        Thread reloadThread = new Thread(() -> {
             try {
-                String content = Files.readString(currentFile.toPath());
-                
-                SwingUtilities.invokeLater(() -> {
+                TextEncoding encoding = TextEncoding.detect(file.toPath());
+                String newText;
+                while (true) {
                     try {
-                        suppressWatcherEvents = true;
-                        
-
-                        // Disable document listener and undo tracking during reload
-                        editor.getDocument().removeDocumentListener(documentListener);
-                        editor.disableUndoTracking();
-                        
-                        savedContent = content;
-                        
-
-                        // CRITICAL OPTIMIZATION: Replace document content in single operation
-                        // Document listener is disabled, so no cascading change events
-                        javax.swing.text.Document doc = editor.getDocument();
-                        doc.remove(0, doc.getLength());
-                        doc.insertString(0, content, null);
-                        
-                        editor.clearUndoHistory();
-                        hasUnsavedChanges = false;
-                        diskModified = false;
-                        
-                        // Re-enable undo tracking and document listener
-                        editor.enableUndoTracking();
-                        editor.getDocument().addDocumentListener(documentListener);
-                        
-                        // Restore cursor position if still valid
-                        if (cursorPosition <= editor.getDocument().getLength()) {
-                            editor.setCaretPosition(cursorPosition);
-                        } else {
-                            editor.setCaretPosition(editor.getDocument().getLength());
+                        newText = encoding.readText(file.toPath());
+                        break;
+                    } catch (java.nio.charset.CharacterCodingException ex) {
+                        // Detection only sampled the start of the file
+                        encoding = encoding.getFallback();
+                        if (encoding == null) {
+                            throw ex;
                         }
-                        
-                        // Restore viewport position
-                        Rectangle viewRect = editor.getVisibleRect();
-                        viewRect.y = viewportY;
-                        editor.scrollRectToVisible(viewRect);
-                        
-                        fileLoadInProgress = false;
-                        updateTitleBar();
-                        setStatusMessage("File reloaded from disk");
-                        Thread.sleep(150);
-                        suppressWatcherEvents = false;
-                    } catch (Exception ex) {
-                        fileLoadInProgress = false;
-                        suppressWatcherEvents = false;
-                        JOptionPane.showMessageDialog(MainApp.this, "Error reloading file: " + ex.getMessage(),
-                            "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+                boolean unchanged = TextFingerprint.of(newText) == fingerprintAtStart;
+                TextEncoding diskEncoding = encoding;
+                String diskText = newText;
+                SwingUtilities.invokeLater(() -> {
+                    if (file != currentFile) {
+                        return; // Another file was opened meanwhile
+                    }
+                    if (documentEdits != editsAtStart || editor.isBusy()) {
+                        reloadIncrementally(file);
+                    } else if (unchanged) {
+                        // At most the encoding or the line ends differ
+                        applyReload(diskText, diskEncoding, List.of());
+                    } else {
+                        diffAndReload(file, diskText, diskEncoding);
                     }
                 });
             } catch (IOException ex) {
                 SwingUtilities.invokeLater(() -> {
-                    fileLoadInProgress = false;
-                    suppressWatcherEvents = false;
+                    setStatusMessage(" ");
                     JOptionPane.showMessageDialog(MainApp.this, "Error reading file: " + ex.getMessage(),
                         "Error", JOptionPane.ERROR_MESSAGE);
                 });
             }
         });
-        loadThread.setName("FileReloader");
-        loadThread.setPriority(Thread.NORM_PRIORITY);
-        loadThread.start();
+        reloadThread.setName("FileReloader");
+        reloadThread.setDaemon(true);
+        reloadThread.start();
+    }
+    
+    private void diffAndReload(File file, String diskText, TextEncoding encoding) {
+        String oldText = editor.getText();
+        int editsAtStart = documentEdits;
+        
+        Thread diffThread = new Thread(() -> {
+            List<LineDiff.Hunk> hunks = LineDiff.diff(oldText, diskText);
+            SwingUtilities.invokeLater(() -> {
+                if (file != currentFile) {
+                    return;
+                }
+                if (documentEdits != editsAtStart || editor.isBusy()) {
+                    reloadIncrementally(file);
+                    return;
+                }
+                applyReload(diskText, encoding, hunks);
+            });
+        });
+        diffThread.setName("FileReloader");
+        diffThread.setDaemon(true);
+        diffThread.start();
+    }
+    
+    private void applyReload(String diskText, TextEncoding encoding, List<LineDiff.Hunk> hunks) {
+        AbstractDocument doc = (AbstractDocument) editor.getDocument();
+        
+        // Keep the line at the top of the viewport where it is, even if lines above it changed
+        Rectangle visible = editor.getVisibleRect();
+        Position anchor = null;
+        int anchorShift = 0;
+        try {
+            int topOffset = editor.viewToModel2D(new Point(0, visible.y));
+            java.awt.geom.Rectangle2D topRect = editor.modelToView2D(topOffset);
+            if (topRect != null) {
+                anchor = doc.createPosition(topOffset);
+                anchorShift = visible.y - (int) topRect.getY();
+            }
+        } catch (BadLocationException ex) {
+            // No anchor; the viewport stays at the same pixel offset
+        }
+        
+        // One change count for the whole reload rather than one comparison per hunk
+        doc.removeDocumentListener(documentListener);
+        try {
+            editor.runAsSingleEdit(() -> {
+                try {
+                    // Back to front, so earlier offsets stay valid
+                    for (int i = hunks.size() - 1; i >= 0; i--) {
+                        LineDiff.Hunk hunk = hunks.get(i);
+                        doc.replace(hunk.oldStart, hunk.oldEnd - hunk.oldStart,
+                            diskText.substring(hunk.newStart, hunk.newEnd), null);
+                    }
+                } catch (BadLocationException ex) {
+                    // The hunks were computed against this exact text
+                    throw new IllegalStateException(ex);
+                }
+            });
+        } finally {
+            doc.addDocumentListener(documentListener);
+        }
+        documentEdits++;
+        
+        encoding.applyTo(doc);
+        // Undoing the reload takes the text away from the file again
+        setSavePoint();
+        hasUnsavedChanges = false;
+        diskModified = false;
+        followTrimmed = false;
+        
+        if (anchor != null) {
+            // After the caret has scrolled itself into view and the editor has been revalidated
+            Position top = anchor;
+            int shift = anchorShift;
+            SwingUtilities.invokeLater(() -> {
+                try {
+                    java.awt.geom.Rectangle2D topRect = editor.modelToView2D(top.getOffset());
+                    if (topRect != null) {
+                        Rectangle view = editor.getVisibleRect();
+                        view.y = Math.max(0, (int) topRect.getY() + shift);
+                        editor.scrollRectToVisible(view);
+                    }
+                } catch (BadLocationException ex) {
+                    // Positions always stay inside the document
+                }
+            });
+        }
+        
+        updateTitleBar();
+        setStatusMessage(hunks.isEmpty() ? "File reloaded from disk (no changes)"
+            : "File reloaded from disk (" + hunks.size() + (hunks.size() == 1 ? " change)" : " changes)"));
+    }
+
+    /**
+     * Replace the editor's content with a file, streamed in by a ChunkedFileLoader
+     * so the start of the file is visible while the rest is still loading.
+     */
+    private void loadFileInChunks(File file, String verb, Runnable onFinished) {
+        TextEncoding encoding;
+        try {
+            encoding = TextEncoding.detect(file.toPath());
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(this, "Error reading file: " + ex.getMessage(),
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        loadFileInChunks(file, encoding, verb, onFinished);
+    }
+    
+    private void loadFileInChunks(File file, TextEncoding encoding, String verb, Runnable onFinished) {
+        persistUndoHistory();
+        documentLoads++;
+        cancelFileLoad();
+        stopFollowing();
+        releaseMappedDocument();
+        
+        // Disable document listener and undo tracking to prevent slowdown during load
+        editor.getDocument().removeDocumentListener(documentListener);
+        editor.disableUndoTracking();
+        
+        AbstractDocument doc = (AbstractDocument) editor.getDocument();
+        try {
+            doc.remove(0, doc.getLength());
+        } catch (BadLocationException ex) {
+            // Removing the whole document is always valid
+        }
+        editor.setCaretPosition(0);
+        
+        fileLoadInProgress = true;
+        setStatusMessage(verb + ": " + file.getName() + "...");
+        cancelLoadLabel.setVisible(true);
+        
+        fileLoader = new ChunkedFileLoader(file, encoding, doc, new ChunkedFileLoader.Callback() {
+            @Override
+            public void progress(int percent) {
+                setStatusMessage(verb + ": " + file.getName() + " (" + percent + "%)");
+            }
+            
+            @Override
+            public void finished() {
+                endChunkedLoad();
+                encoding.applyTo(editor.getDocument());
+                setSavePoint();
+                followTrimmed = false;
+                currentFile = file;
+                hasUnsavedChanges = false;
+                diskModified = false;
+                restoreUndoHistory(file);
+                onFinished.run();
+                startFileWatcher(file);
+            }
+            
+            @Override
+            public void failed(IOException ex) {
+                abandonChunkedLoad();
+                TextEncoding fallback = encoding.getFallback();
+                if (ex instanceof java.nio.charset.CharacterCodingException && fallback != null) {
+                    // Detection only sampled the start of the file
+                    loadFileInChunks(file, fallback, verb, onFinished);
+                    return;
+                }
+                JOptionPane.showMessageDialog(MainApp.this, "Error reading file: " + ex.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            }
+            
+            @Override
+            public void cancelled() {
+                abandonChunkedLoad();
+                setStatusMessage("Loading cancelled");
+            }
+        });
+        fileLoader.start();
+    }
+    
+    private void endChunkedLoad() {
+        fileLoader = null;
+        fileLoadInProgress = false;
+        cancelLoadLabel.setVisible(false);
+        
+        // Re-enable undo tracking and document listener
+        editor.clearUndoHistory();
+        editor.enableUndoTracking();
+        editor.getDocument().addDocumentListener(documentListener);
+    }
+    
+    /**
+     * A partially loaded file must not be saved over the original, so drop it
+     * and fall back to an empty, untitled document.
+     */
+    private void abandonChunkedLoad() {
+        endChunkedLoad();
+        editor.disableUndoTracking();
+        try {
+            javax.swing.text.Document doc = editor.getDocument();
+            doc.remove(0, doc.getLength());
+        } catch (BadLocationException ex) {
+            // Removing the whole document is always valid
+        }
+        editor.enableUndoTracking();
+        TextEncoding.DEFAULT.applyTo(editor.getDocument());
+        stopFileWatcher();
+        setSavePoint();
+        currentFile = null;
+        hasUnsavedChanges = false;
+        updateTitleBar();
+        setStatusMessage(" ");
+    }
+    
+    private void cancelFileLoad() {
+        if (fileLoader != null) {
+            fileLoader.cancel();
+        } else if (cancelTask != null) {
+            Runnable cancel = cancelTask;
+            endCancellableTask(null);
+            cancel.run();
+        }
+    }
+
+    /**
+     * Show a message for background work along with the Cancel link, which will
+     * run {@code cancel}. Ended by {@link #endCancellableTask}.
+     */
+    public void startCancellableTask(String message, Runnable cancel) {
+        cancelTask = cancel;
+        setStatusMessage(message);
+        cancelLoadLabel.setVisible(true);
+    }
+
+    /** Take down the Cancel link and show {@code message}. */
+    public void endCancellableTask(String message) {
+        cancelTask = null;
+        if (fileLoader == null) {
+            cancelLoadLabel.setVisible(false);
+        }
+        setStatusMessage(message);
     }
 
 
@@ -577,7 +1039,8 @@ public class MainApp extends JFrame {
             "LRECL: none";
         // Only show mode when in overtype mode
         String mode = editor.isOvertypeMode() ? "  |  OVR" : "";
-        statusBar.setText(lrecl + mode);
+        String encoding = TextEncoding.of(editor.getDocument()).getDisplayName();
+        statusBar.setText(encoding + "  |  " + lrecl + mode);
     }
     
     private void updateCharacterCount() {
@@ -626,58 +1089,149 @@ public class MainApp extends JFrame {
         }
     }
     
+    private void openLargeFile() {
+        if (!checkUnsavedChanges()) {
+            return;
+        }
+        
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            openMappedFile(chooser.getSelectedFile(), 0);
+        }
+    }
+    
+    /**
+     * Open a file of fixed-length records, which has no line ends to go by: ask
+     * for the record length and character set first.
+     */
+    private void openFixedRecordFile() {
+        if (!checkUnsavedChanges()) {
+            return;
+        }
+        
+        JTextField lengthField = new JTextField(String.valueOf(prefs.getInt("fixedRecordLength", 80)), 6);
+        JComboBox<String> charsetBox = new JComboBox<>();
+        for (String name : new String[] {"IBM1047", "IBM037", "ISO-8859-1", "windows-1252", "US-ASCII"}) {
+            if (java.nio.charset.Charset.isSupported(name)) {
+                charsetBox.addItem(name);
+            }
+        }
+        charsetBox.setEditable(true);
+        charsetBox.setSelectedItem(prefs.get("fixedRecordCharset", "ISO-8859-1"));
+        JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Record length (LRECL):"));
+        panel.add(lengthField);
+        panel.add(new JLabel("Character set:"));
+        panel.add(charsetBox);
+        if (JOptionPane.showConfirmDialog(this, panel, "Open Fixed-Length Records",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        
+        TextEncoding encoding;
+        try {
+            int length = Integer.parseInt(lengthField.getText().trim());
+            String charset = String.valueOf(charsetBox.getSelectedItem()).trim();
+            encoding = TextEncoding.fixedRecords(java.nio.charset.Charset.forName(charset), length);
+            prefs.putInt("fixedRecordLength", length);
+            prefs.put("fixedRecordCharset", charset);
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this,
+                "Please enter a valid number.",
+                "Invalid Input",
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this,
+                ex.getMessage(),
+                "Invalid Input",
+                JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            openMappedFile(chooser.getSelectedFile(), encoding, 0);
+        }
+    }
+    
 
 
 
     private void openFile(File file) {
+        long threshold = prefs.getInt("mappedOpenThresholdMB", DEFAULT_MAPPED_THRESHOLD_MB) * 1024L * 1024L;
+        if (file.length() >= threshold) {
+            openMappedFile(file, 0);
+            return;
+        }
 
-        // Load file in background thread to prevent UI freeze on large files
+        loadFileInChunks(file, "Loading", () -> {
+            editor.setCaretPosition(0);
+            showRequestedLine(file);
+            updateTitleBar();
+            setStatusMessage("File loaded");
+        });
+    }
+    
+    /**
+     * Open a file through a memory-mapped document. Only the line index is built
+     * up front; pages of text are decoded as they are viewed.
+     */
+    private void openMappedFile(File file, int caretPosition) {
+        openMappedFile(file, null, caretPosition);
+    }
+    
+    /**
+     * Open a file through a memory-mapped document; as fixed-length records if
+     * {@code records} is a record encoding, else with the detected encoding.
+     */
+    private void openMappedFile(File file, TextEncoding records, int caretPosition) {
+        persistUndoHistory();
+        cancelFileLoad();
+        stopFollowing();
         fileLoadInProgress = true;
-        setStatusMessage("Loading: " + file.getName() + "...");
+        setStatusMessage("Indexing: " + file.getName() + "...");
         
         Thread loadThread = new Thread(() -> {
             try {
-                // Read file on background thread
-                String content = Files.readString(file.toPath());
+                MappedDocument doc;
+                if (records != null) {
+                    // Records are addressed by arithmetic, so there is nothing to index
+                    doc = FixedRecordDocument.open(file, records);
+                } else {
+                    TextEncoding encoding = TextEncoding.detect(file.toPath());
+                    doc = MappedDocument.open(file, encoding,
+                        percent -> SwingUtilities.invokeLater(() ->
+                            setStatusMessage("Indexing: " + file.getName() + " (" + percent + "%)")));
+                }
                 
-                // Update UI on EDT
                 SwingUtilities.invokeLater(() -> {
                     try {
-
-                        // Disable document listener and undo tracking to prevent slowdown during load
-                        editor.getDocument().removeDocumentListener(documentListener);
-                        editor.disableUndoTracking();
-                        
-                        // Store content for comparison
-                        savedContent = content;
-                        
-                        // CRITICAL OPTIMIZATION: Replace document content while bypassing view creation
-                        // Use the existing styled document but clear it first (minimal view work)
-                        // then insert all content at once (creates views only once per logical operation)
-                        javax.swing.text.Document doc = editor.getDocument();
-                        doc.remove(0, doc.getLength());
-                        
-                        // Insert the entire content in one operation - views created in batch, not incrementally
-                        // The key is that we've disabled the document listener, preventing change cascades
-                        doc.insertString(0, content, null);
-                        
+                        javax.swing.text.Document oldDoc = editor.getDocument();
+                        // The "document" listener moves documentListener over
+                        editor.setDocument(doc);
+                        documentLoads++;
+                        if (oldDoc instanceof MappedDocument) {
+                            saveEngine.afterPendingSaves(((MappedDocument) oldDoc)::close);
+                        }
                         editor.clearUndoHistory();
-                        editor.setCaretPosition(0);
-                        
-                        // Re-enable undo tracking and document listener
-                        editor.enableUndoTracking();
-                        editor.getDocument().addDocumentListener(documentListener);
+                        editor.setCaretPosition(Math.min(caretPosition, doc.getLength()));
+                        showRequestedLine(file);
                         
-                        // Update state
+                        setSavePoint();
                         currentFile = file;
                         hasUnsavedChanges = false;
                         diskModified = false;
+                        followTrimmed = false;
+                        restoreUndoHistory(file);
                         fileLoadInProgress = false;
                         updateTitleBar();
-                        setStatusMessage("File loaded");
+                        setStatusMessage(records != null ? "File loaded ("
+                            + ((FixedRecordDocument) doc).getRecordCount() + " records)" : "File loaded (mapped)");
                         startFileWatcher(file);
                     } catch (Exception ex) {
                         fileLoadInProgress = false;
+                        doc.close();
                         JOptionPane.showMessageDialog(MainApp.this, "Error loading file: " + ex.getMessage(),
                             "Error", JOptionPane.ERROR_MESSAGE);
                     }
@@ -685,6 +1239,7 @@ public class MainApp extends JFrame {
             } catch (IOException ex) {
                 SwingUtilities.invokeLater(() -> {
                     fileLoadInProgress = false;
+                    setStatusMessage(" ");
                     JOptionPane.showMessageDialog(MainApp.this, "Error reading file: " + ex.getMessage(),
                         "Error", JOptionPane.ERROR_MESSAGE);
                 });
@@ -695,10 +1250,34 @@ public class MainApp extends JFrame {
         loadThread.start();
     }
     
+    /**
+     * Swap a mapped document for an empty in-memory one before loading the
+     * normal way, and unmap its file.
+     */
+    private void releaseMappedDocument() {
+        javax.swing.text.Document doc = editor.getDocument();
+        if (doc instanceof MappedDocument) {
+            editor.setDocument(editor.getEditorKit().createDefaultDocument());
+            // A save may still be reading from the mapping
+            saveEngine.afterPendingSaves(((MappedDocument) doc)::close);
+        }
+    }
+    
     private void saveFile() {
         if (currentFile == null) {
             saveFileAs();
         } else {
+            if (followTrimmed) {
+                int result = JOptionPane.showConfirmDialog(this,
+                    "Lines were dropped from the start of this file while following it.\n"
+                        + "Saving will write only the lines still shown. Save anyway?",
+                    "Save File",
+                    JOptionPane.OK_CANCEL_OPTION,
+                    JOptionPane.WARNING_MESSAGE);
+                if (result != JOptionPane.OK_OPTION) {
+                    return;
+                }
+            }
             saveToFile(currentFile);
         }
     }
@@ -745,27 +1324,68 @@ public class MainApp extends JFrame {
     
 
     private void saveToFile(File file) {
-        try {
-            // Suppress watcher events during save
-            suppressWatcherEvents = true;
-            Files.writeString(file.toPath(), editor.getText());
-            currentFile = file;
-            markAsSaved();
-            // Re-enable watcher events after a brief delay
-            Thread.sleep(150);
-            suppressWatcherEvents = false;
-        } catch (IOException ex) {
-            suppressWatcherEvents = false;
-            JOptionPane.showMessageDialog(this, "Error saving file: " + ex.getMessage(),
-                "Error", JOptionPane.ERROR_MESSAGE);
-        } catch (InterruptedException ex) {
-            suppressWatcherEvents = false;
-            // Ignore interruption
-        }
+        // The snapshot is taken here on the EDT; encoding and writing happen in the background
+        javax.swing.text.Document savedDocument = editor.getDocument();
+        SaveEngine.Snapshot snapshot = SaveEngine.snapshot(savedDocument);
+        int editsAtSnapshot = documentEdits;
+        int loadsAtSnapshot = documentLoads;
+        // Typing on after the save is a step of its own, so undo can get back to the saved text
+        editor.breakUndoTyping();
+        Object undoPositionAtSnapshot = editor.getUndoPosition();
+        long fingerprintAtSnapshot = documentFingerprint != null ? documentFingerprint.get() : -1;
+        savesInProgress++;
+        setStatusMessage("Saving: " + file.getName() + "...");
+        
+        saveEngine.save(snapshot, file.toPath(), TextEncoding.of(editor.getDocument()), new SaveEngine.Callback() {
+            @Override
+            public void progress(int percent) {
+                setStatusMessage("Saving: " + file.getName() + " (" + percent + "%)");
+            }
+            
+            @Override
+            public void saved(Path target) {
+                savesInProgress--;
+                if (editor.getDocument() != savedDocument || documentLoads != loadsAtSnapshot) {
+                    // Another file was opened while this one saved; the window is no longer showing it
+                    setStatusMessage("Saved " + file.getName());
+                    return;
+                }
+                if (!file.equals(currentFile)) {
+                    stopFollowing();
+                    currentFile = file;
+                    startFileWatcher(file);
+                } else if (fileWatch != null && fingerprintAtSnapshot != -1) {
+                    // The file now holds the snapshot, so there is no need to read it back
+                    fileWatch.rebaseline(fingerprintAtSnapshot);
+                } else if (fileWatch != null) {
+                    fileWatch.rebaseline();
+                }
+                if (documentEdits == editsAtSnapshot) {
+                    markAsSaved();
+                    persistUndoHistory();
+                } else {
+                    // Edited while the save was running; undoing those edits gets back to the file
+                    savedFingerprint = fingerprintAtSnapshot;
+                    savedUndoPosition = undoPositionAtSnapshot;
+                    untrackedChanges = false;
+                    diskModified = false;
+                    updateModifiedState();
+                }
+                setStatusMessage("Saved " + file.getName());
+            }
+            
+            @Override
+            public void failed(Path target, IOException ex) {
+                savesInProgress--;
+                setStatusMessage("Save failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(MainApp.this, "Error saving file: " + ex.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
     }
     
     private boolean checkUnsavedChanges() {
-        if (editor.getText().isEmpty()) {
+        if (editor.getDocument().getLength() == 0) {
             return true;
         }
         
@@ -788,7 +1408,6 @@ public class MainApp extends JFrame {
         editor.revalidate();
         editor.repaint();
         editor.getDocument().putProperty(PlainDocument.tabSizeAttribute, 4);
-        editor.getDocument().putProperty(DefaultEditorKit.EndOfLineStringProperty, "\n");
     }
     
     private void chooseFont() {
@@ -836,6 +1455,34 @@ public class MainApp extends JFrame {
         return img;
     }
     
+    /** Move the caret to the start of a line. Records are found by arithmetic, so this is O(1) for them. */
+    private void goToLine() {
+        Element root = editor.getDocument().getDefaultRootElement();
+        int current = root.getElementIndex(editor.getCaretPosition()) + 1;
+        String result = JOptionPane.showInputDialog(this,
+            "Enter line number (1 - " + root.getElementCount() + "):",
+            current);
+            
+        if (result != null) {
+            try {
+                int line = Integer.parseInt(result.trim());
+                if (line >= 1 && line <= root.getElementCount()) {
+                    editor.setCaretPosition(root.getElement(line - 1).getStartOffset());
+                } else {
+                    JOptionPane.showMessageDialog(this,
+                        "Please enter a line number between 1 and " + root.getElementCount() + ".",
+                        "Invalid Input",
+                        JOptionPane.ERROR_MESSAGE);
+                }
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this,
+                    "Please enter a valid number.",
+                    "Invalid Input",
+                    JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+    
     private void setLineLength() {
         String result = JOptionPane.showInputDialog(this,
             "Enter maximum line length (0 for no limit):",
@@ -864,8 +1511,8 @@ public class MainApp extends JFrame {
     }
     
     /**
-     * Start watching a file for external modifications using WatchService.
-     * Stops any previous watch service first.
+     * Start watching a file for external modifications through the shared
+     * FileWatchService. Stops any previous watch first.
      */
     private void startFileWatcher(File file) {
         stopFileWatcher();
@@ -875,76 +1522,232 @@ public class MainApp extends JFrame {
         }
         
         try {
-            watchService = FileSystems.getDefault().newWatchService();
-            Path filePath = file.toPath();
-            Path parentDir = filePath.getParent();
-            
-            // Register the parent directory for modifications
-            parentDir.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
+            // A followed file only grows; hashing all of it on every write would not keep up
+            fileWatch = FileWatchService.getInstance().watch(file.toPath(),
+                fileFollower == null ? TextEncoding.of(editor.getDocument()) : null, this::fileChangedOnDisk);
+        } catch (IOException ex) {
+            System.err.println("Error starting file watcher: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Called on the EDT once the watch service has confirmed the content changed.
+     * Our own saves rebaseline the watch when they finish; while one is still
+     * running the change can only be ours.
+     */
+    private void fileChangedOnDisk() {
+        if (savesInProgress > 0) {
+            return;
+        }
+        if (fileFollower != null) {
+            fileFollower.poll();
+            return;
+        }
+        if (documentFingerprint != null && fileWatch.getFingerprint() == documentFingerprint.get()) {
+            // Whatever wrote the file wrote exactly what is in the editor
+            markAsSaved();
+            updateTitleBar();
+            return;
+        }
+        diskModified = true;
+        updateTitleBar();
+    }
+    
+    /**
+     * Turn follow mode on or off for the current file. While following, text
+     * appended to the file goes straight onto the end of the document instead of
+     * flagging the file as modified on disk.
+     */
+    private void setFollowing(boolean follow) {
+        if (follow == (fileFollower != null)) {
+            return;
+        }
+        if (!follow) {
+            stopFollowing();
+            startFileWatcher(currentFile);
+            setStatusMessage("Stopped following " + currentFile.getName());
+            return;
+        }
+        // Records can't be appended to a fixed-length document
+        if (currentFile == null || fileLoadInProgress || editor.getDocument() instanceof FixedRecordDocument) {
+            followItem.setSelected(false);
+            UIManager.getLookAndFeel().provideErrorFeedback(editor);
+            return;
+        }
+        
+        File file = currentFile;
+        javax.swing.text.Document doc = editor.getDocument();
+        FileFollower.Callback callback = new FileFollower.Callback() {
+            @Override
+            public void appended(String text) {
+                whenNotBusy(() -> {
+                    if (fileFollower != null && editor.getDocument() == doc) {
+                        appendFollowedText(text);
+                    }
+                });
+            }
             
-            // Start a background thread to monitor for changes
-            watchServiceThread = new Thread(() -> {
-                try {
-                    while (watchService != null) {
-                        WatchKey key = watchService.poll(500, java.util.concurrent.TimeUnit.MILLISECONDS);
-                        
-                        if (key == null) {
-                            continue;
-                        }
-                        
-                        for (WatchEvent<?> event : key.pollEvents()) {
-                            if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
-                                Path changedPath = (Path) event.context();
-                                
-                                // Check if the modified file is our current file
-                                if (changedPath.equals(filePath.getFileName())) {
-                                    // Skip this event if we're suppressing (during our own save)
-                                    if (!suppressWatcherEvents) {
-                                        SwingUtilities.invokeLater(() -> {
-                                            diskModified = true;
-                                            updateTitleBar();
-                                        });
-                                    }
-                                }
-                            }
+            @Override
+            public void synced(String text, List<LineDiff.Hunk> hunks) {
+                if (editor.isBusy()) {
+                    whenNotBusy(() -> {
+                        if (fileFollower != null && editor.getDocument() == doc) {
+                            resyncFollower();
                         }
-                        
-                        key.reset();
-                    }
-                } catch (InterruptedException | ClosedWatchServiceException e) {
-                    // Expected when service is closed
+                    });
+                    return;
+                }
+                if (documentEdits != followResyncEdits) {
+                    resyncFollower();
+                    return;
                 }
-            }, "FileWatcher");
+                applyReload(text, TextEncoding.of(editor.getDocument()), hunks);
+                scrollToEndIfFollowing();
+                setStatusMessage("Following " + file.getName());
+            }
             
-            watchServiceThread.setDaemon(true);
-            watchServiceThread.start();
+            @Override
+            public void truncated() {
+                if (editor.getDocument() instanceof MappedDocument) {
+                    // Resyncing would need the whole mapped text on the heap
+                    openMappedFile(file, 0);
+                    setStatusMessage("File was truncated; reopened without following");
+                    return;
+                }
+                resyncFollower();
+            }
             
-        } catch (IOException ex) {
-            System.err.println("Error starting file watcher: " + ex.getMessage());
+            @Override
+            public void failed(IOException ex) {
+                setStatusMessage("Error following file: " + ex.getMessage());
+            }
+        };
+        
+        if (doc instanceof MappedDocument) {
+            // A mapped document holds exactly the bytes it mapped
+            fileFollower = new FileFollower(file.toPath(), TextEncoding.of(doc),
+                ((MappedDocument) doc).getFileLength(), callback);
+            fileFollower.poll();
+        } else {
+            fileFollower = new FileFollower(file.toPath(), TextEncoding.of(doc), 0, callback);
+            resyncFollower();
+        }
+        followItem.setSelected(true);
+        // Re-register without content hashing
+        startFileWatcher(file);
+        setStatusMessage("Following " + file.getName());
+    }
+    
+    /** Run a change to the text now, or once a Replace All running on it is done. */
+    private void whenNotBusy(Runnable change) {
+        if (editor.isBusy()) {
+            afterBusy.add(change);
+        } else {
+            change.run();
+        }
+    }
+
+    private void runAfterBusy() {
+        List<Runnable> changes = new ArrayList<>(afterBusy);
+        afterBusy.clear();
+        for (Runnable change : changes) {
+            whenNotBusy(change);
+        }
+    }
+
+    private void stopFollowing() {
+        if (fileFollower != null) {
+            fileFollower.stop();
+            fileFollower = null;
+        }
+        if (followItem != null) {
+            followItem.setSelected(false);
         }
     }
     
+    private void resyncFollower() {
+        followResyncEdits = documentEdits;
+        setStatusMessage("Reading: " + currentFile.getName() + "...");
+        fileFollower.resync(editor.getText());
+    }
+    
     /**
-     * Stop the file watcher thread and close the WatchService.
+     * Add text the follower read onto the end of the document, then drop lines
+     * from the start beyond the follow line limit. Appends are not undoable: undo
+     * history would otherwise grow with the log.
      */
-    private void stopFileWatcher() {
-        if (watchService != null) {
-            try {
-                watchService.close();
-            } catch (IOException ex) {
-                System.err.println("Error closing watch service: " + ex.getMessage());
+    private void appendFollowedText(String text) {
+        AbstractDocument doc = (AbstractDocument) editor.getDocument();
+        doc.removeDocumentListener(documentListener);
+        editor.disableUndoTracking();
+        try {
+            doc.insertString(doc.getLength(), text, null);
+            int limit = prefs.getInt("followMaxLines", 0);
+            Element root = doc.getDefaultRootElement();
+            int excess = root.getElementCount() - limit;
+            if (limit > 0 && excess > 0) {
+                doc.remove(0, root.getElement(excess).getStartOffset());
+                followTrimmed = true;
+                // Offsets of earlier edits no longer line up
+                editor.clearUndoHistory();
+                if (hasUnsavedChanges) {
+                    // Undo can no longer get back to the saved text
+                    untrackedChanges = true;
+                }
             }
-            watchService = null;
+        } catch (BadLocationException ex) {
+            // Appending at the end and removing from the start are always valid
+            throw new IllegalStateException(ex);
+        } finally {
+            editor.enableUndoTracking();
+            doc.addDocumentListener(documentListener);
         }
-        
-        if (watchServiceThread != null) {
+        documentEdits++;
+        if (!hasUnsavedChanges) {
+            // The appended text came from the file, so the two still match
+            setSavePoint();
+        }
+        scrollToEndIfFollowing();
+    }
+    
+    private void scrollToEndIfFollowing() {
+        if (prefs.getBoolean("followAutoScroll", true)) {
+            editor.setCaretPosition(editor.getDocument().getLength());
+        }
+    }
+    
+    private void setFollowLineLimit() {
+        String result = JOptionPane.showInputDialog(this,
+            "Enter the number of lines to keep while following a file (0 for no limit):",
+            prefs.getInt("followMaxLines", 0));
+            
+        if (result != null) {
             try {
-                // Wait for thread to finish (max 1 second)
-                watchServiceThread.join(1000);
-            } catch (InterruptedException ex) {
-                // Ignore
+                int limit = Integer.parseInt(result);
+                if (limit >= 0) {
+                    prefs.putInt("followMaxLines", limit);
+                } else {
+                    JOptionPane.showMessageDialog(this,
+                        "Please enter a non-negative number.",
+                        "Invalid Input",
+                        JOptionPane.ERROR_MESSAGE);
+                }
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this,
+                    "Please enter a valid number.",
+                    "Invalid Input",
+                    JOptionPane.ERROR_MESSAGE);
             }
-            watchServiceThread = null;
+        }
+    }
+    
+    /**
+     * Stop watching the current file.
+     */
+    private void stopFileWatcher() {
+        if (fileWatch != null) {
+            fileWatch.cancel();
+            fileWatch = null;
         }
         
         diskModified = false;
@@ -0,0 +1,510 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.*;
+import javax.swing.undo.*;
+import java.awt.Color;
+import java.awt.Font;
+import java.io.*;
+import java.nio.charset.CharacterCodingException;
+import java.util.function.IntConsumer;
+
+/**
+ * StyledDocument over a {@link MappedFileContent}, for files too big to load the
+ * normal way.
+ *
+ * DefaultStyledDocument keeps a paragraph and a content Element (plus their
+ * Positions) for every line, which costs far more heap than the text itself on a
+ * multi-gigabyte file. Here the line structure is a {@link LineIndex} and the
+ * paragraph Elements are created only when something asks for them; the content
+ * is plain text, so attribute changes are ignored.
+ */
+public class MappedDocument extends AbstractDocument implements StyledDocument {
+    private static final Element[] NO_ELEMENTS = new Element[0];
+
+    private final MappedFileContent content;
+    private final LineIndex lines;
+    private final StyleContext styles;
+    private final RootElement root = new RootElement();
+    private final Segment scanSegment = new Segment();
+
+    /**
+     * {@code lines} is null for a subclass that works out the line structure
+     * itself rather than indexing it.
+     */
+    protected MappedDocument(MappedFileContent content, LineIndex lines, StyleContext styles) {
+        super(content, styles);
+        this.content = content;
+        this.lines = lines;
+        this.styles = styles;
+        scanSegment.setPartialReturn(true);
+        // AbstractDocument sets up its bidi structure against an empty content
+        content.revealOriginal();
+    }
+
+    /**
+     * Map and index a file. Runs in time proportional to the file size but keeps
+     * only the page and line tables in memory; call off the EDT.
+     *
+     * If the file turns out not to be valid in the given encoding, its fallbacks
+     * are tried in turn, and as a last resort it opens with U+FFFD in place of the
+     * bytes that don't decode.
+     */
+    public static MappedDocument open(File file, TextEncoding encoding, IntConsumer progress) throws IOException {
+        TextEncoding attempt = encoding;
+        while (true) {
+            LineIndex lines = new LineIndex();
+            TextEncoding fallback = attempt.getFallback();
+            MappedFileContent content;
+            try {
+                content = MappedFileContent.open(file.toPath(), attempt, lines, progress, true);
+            } catch (CharacterCodingException ex) {
+                if (fallback != null) {
+                    attempt = fallback;
+                    continue;
+                }
+                lines = new LineIndex();
+                content = MappedFileContent.open(file.toPath(), attempt, lines, progress, false);
+            }
+            MappedDocument doc = new MappedDocument(content, lines, new StyleContext());
+            attempt.applyTo(doc);
+            return doc;
+        }
+    }
+
+    public File getFile() {
+        return content.getPath().toFile();
+    }
+
+    /** Number of bytes of the file the document was opened from. */
+    public long getFileLength() {
+        return content.getFileSize();
+    }
+
+    /** Release the file mapping. The document must not be used afterwards. */
+    public void close() {
+        content.close();
+    }
+
+    /** Freeze the current text for {@link SaveEngine}. */
+    public SaveEngine.Snapshot snapshot() {
+        readLock();
+        try {
+            return content.snapshot();
+        } finally {
+            readUnlock();
+        }
+    }
+
+    // --- Element structure ---
+
+    @Override
+    public Element getDefaultRootElement() {
+        return root;
+    }
+
+    @Override
+    public Element getParagraphElement(int pos) {
+        return root.getElement(root.getElementIndex(pos));
+    }
+
+    private LineElement lineElement(int line) {
+        synchronized (lines) {
+            LineElement element = (LineElement) lines.getSlot(line);
+            if (element == null) {
+                element = new LineElement();
+                lines.setSlot(line, element);
+            }
+            return element;
+        }
+    }
+
+    @Override
+    protected void insertUpdate(DefaultDocumentEvent chng, AttributeSet attr) {
+        if (lines == null) {
+            super.insertUpdate(chng, attr);
+            return;
+        }
+        int offset = chng.getOffset();
+        int length = chng.getLength();
+        int[] starts = findLineStarts(offset, length);
+        int firstLine = lines.applyInsert(offset, length, starts, starts.length, null);
+        LineElement[] added = new LineElement[starts.length];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = lineElement(firstLine + i);
+        }
+        chng.addEdit(added.length > 0
+            ? new StructuralLineEdit(true, offset, length, firstLine, starts, added)
+            : new LineEdit(true, offset, length, firstLine, starts, added));
+        super.insertUpdate(chng, attr);
+    }
+
+    @Override
+    protected void removeUpdate(DefaultDocumentEvent chng) {
+        if (lines == null) {
+            super.removeUpdate(chng);
+            return;
+        }
+        int offset = chng.getOffset();
+        int length = chng.getLength();
+        // Views hold the elements of the lines about to merge away, so report those
+        int firstLine = lines.getLineOfOffset(offset) + 1;
+        int lastLine = lines.getLineOfOffset(offset + length);
+        for (int line = firstLine; line <= lastLine; line++) {
+            lineElement(line);
+        }
+        LineIndex.Removal removal = lines.applyRemove(offset, length);
+        LineElement[] removed = new LineElement[removal.getLineCount()];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = (LineElement) removal.slots[i];
+            removed[i].detachedOffset = offset;
+        }
+        chng.addEdit(removed.length > 0
+            ? new StructuralLineEdit(false, offset, length, removal.firstLine, removal.starts, removed)
+            : new LineEdit(false, offset, length, removal.firstLine, removal.starts, removed));
+        super.removeUpdate(chng);
+    }
+
+    private int[] findLineStarts(int offset, int length) {
+        int[] starts = new int[0];
+        int count = 0;
+        try {
+            int pos = offset;
+            int end = offset + length;
+            while (pos < end) {
+                getText(pos, end - pos, scanSegment);
+                for (int i = 0; i < scanSegment.count; i++) {
+                    if (scanSegment.array[scanSegment.offset + i] == '\n') {
+                        if (count == starts.length) {
+                            starts = java.util.Arrays.copyOf(starts, Math.max(4, count * 2));
+                        }
+                        starts[count++] = pos + i + 1;
+                    }
+                }
+                pos += scanSegment.count;
+            }
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException("Inserted range is no longer valid", ex);
+        }
+        return java.util.Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * Keeps the line index in step with the content for one insert or remove, in
+     * both directions of undo.
+     */
+    private class LineEdit extends AbstractUndoableEdit {
+        final boolean insertion;
+        final int offset;
+        final int length;
+        final int firstLine;
+        final int[] starts;
+        final LineElement[] elements;
+        boolean applied = true;
+
+        LineEdit(boolean insertion, int offset, int length, int firstLine, int[] starts, LineElement[] elements) {
+            this.insertion = insertion;
+            this.offset = offset;
+            this.length = length;
+            this.firstLine = firstLine;
+            this.starts = starts;
+            this.elements = elements;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            if (insertion) {
+                removeLines();
+            } else {
+                restoreLines();
+            }
+            applied = false;
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            if (insertion) {
+                restoreLines();
+            } else {
+                removeLines();
+            }
+            applied = true;
+        }
+
+        private void removeLines() {
+            lines.applyRemove(offset, length);
+            for (LineElement element : elements) {
+                element.detachedOffset = offset;
+            }
+        }
+
+        private void restoreLines() {
+            lines.applyInsert(offset, length, starts, starts.length, elements);
+        }
+    }
+
+    /**
+     * A LineEdit that adds or removes lines, reported to views as a change of the
+     * root. Like ElementEdit, the added and removed sides swap once undone.
+     */
+    private class StructuralLineEdit extends LineEdit implements DocumentEvent.ElementChange {
+        StructuralLineEdit(boolean insertion, int offset, int length, int firstLine, int[] starts,
+                           LineElement[] elements) {
+            super(insertion, offset, length, firstLine, starts, elements);
+        }
+
+        @Override
+        public Element getElement() {
+            return root;
+        }
+
+        @Override
+        public int getIndex() {
+            return firstLine;
+        }
+
+        @Override
+        public Element[] getChildrenRemoved() {
+            return insertion == applied ? NO_ELEMENTS : elements;
+        }
+
+        @Override
+        public Element[] getChildrenAdded() {
+            return insertion == applied ? elements : NO_ELEMENTS;
+        }
+    }
+
+    private class RootElement implements Element {
+        @Override
+        public Document getDocument() {
+            return MappedDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return SectionElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return SimpleAttributeSet.EMPTY;
+        }
+
+        @Override
+        public int getStartOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getEndOffset() {
+            return getLength() + 1;
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return lines.getLineOfOffset(Math.max(0, offset));
+        }
+
+        @Override
+        public int getElementCount() {
+            return lines.getLineCount();
+        }
+
+        @Override
+        public Element getElement(int index) {
+            if (index < 0 || index >= lines.getLineCount()) {
+                return null;
+            }
+            return lineElement(index);
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+    }
+
+    /** Paragraph element for one line, created the first time a view asks for it. */
+    private class LineElement extends LineIndex.Slot implements Element {
+        int detachedOffset;
+        private Element leaf;
+
+        @Override
+        public Document getDocument() {
+            return MappedDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return root;
+        }
+
+        @Override
+        public String getName() {
+            return ParagraphElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return styles.getStyle(StyleContext.DEFAULT_STYLE);
+        }
+
+        @Override
+        public int getStartOffset() {
+            int line = getLine(lines);
+            return line < 0 ? detachedOffset : lines.getLineStart(line);
+        }
+
+        @Override
+        public int getEndOffset() {
+            int line = getLine(lines);
+            return line < 0 ? detachedOffset : lines.getLineEnd(line);
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return 0;
+        }
+
+        @Override
+        public int getElementCount() {
+            return 1;
+        }
+
+        @Override
+        public synchronized Element getElement(int index) {
+            if (index != 0) {
+                return null;
+            }
+            if (leaf == null) {
+                leaf = new ContentElement(this);
+            }
+            return leaf;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return false;
+        }
+    }
+
+    /** The single run of text inside a line; spans the whole line. */
+    private class ContentElement implements Element {
+        private final LineElement parent;
+
+        ContentElement(LineElement parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public Document getDocument() {
+            return MappedDocument.this;
+        }
+
+        @Override
+        public Element getParentElement() {
+            return parent;
+        }
+
+        @Override
+        public String getName() {
+            return ContentElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return styles.getStyle(StyleContext.DEFAULT_STYLE);
+        }
+
+        @Override
+        public int getStartOffset() {
+            return parent.getStartOffset();
+        }
+
+        @Override
+        public int getEndOffset() {
+            return parent.getEndOffset();
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return -1;
+        }
+
+        @Override
+        public int getElementCount() {
+            return 0;
+        }
+
+        @Override
+        public Element getElement(int index) {
+            return null;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return true;
+        }
+    }
+
+    // --- StyledDocument: plain text, so styles are shared and attribute edits ignored ---
+
+    @Override
+    public Style addStyle(String nm, Style parent) {
+        return styles.addStyle(nm, parent);
+    }
+
+    @Override
+    public void removeStyle(String nm) {
+        styles.removeStyle(nm);
+    }
+
+    @Override
+    public Style getStyle(String nm) {
+        return styles.getStyle(nm);
+    }
+
+    @Override
+    public void setCharacterAttributes(int offset, int length, AttributeSet s, boolean replace) {
+    }
+
+    @Override
+    public void setParagraphAttributes(int offset, int length, AttributeSet s, boolean replace) {
+    }
+
+    @Override
+    public void setLogicalStyle(int pos, Style s) {
+    }
+
+    @Override
+    public Style getLogicalStyle(int p) {
+        return styles.getStyle(StyleContext.DEFAULT_STYLE);
+    }
+
+    @Override
+    public Element getCharacterElement(int pos) {
+        return getParagraphElement(pos).getElement(0);
+    }
+
+    @Override
+    public Color getForeground(AttributeSet attr) {
+        return styles.getForeground(attr);
+    }
+
+    @Override
+    public Color getBackground(AttributeSet attr) {
+        return styles.getBackground(attr);
+    }
+
+    @Override
+    public Font getFont(AttributeSet attr) {
+        return styles.getFont(attr);
+    }
+}
@@ -0,0 +1,927 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.text.*;
+import javax.swing.undo.*;
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Document content backed by a memory-mapped file.
+ *
+ * The file is never read into the heap as a whole. Opening it makes one pass that
+ * records where each page of bytes starts in character terms (and where each line
+ * starts, into a {@link LineIndex}); after that, pages are decoded on demand and
+ * only a small LRU of decoded pages is kept.
+ *
+ * Line ends are normalized to '\n' on the fly, as DefaultEditorKit.read does; a
+ * page never ends between the '\r' and '\n' of a CRLF, so pages decode on their
+ * own.
+ *
+ * A file of fixed-length records is not scanned at all: with a single-byte
+ * charset, page and record positions are plain arithmetic, and each page gets a
+ * '\n' after every record as it is decoded.
+ *
+ * Edits are layered on top as a piece table: the mapped file is the read-only
+ * original, typed text goes into an append-only buffer, and the document is the
+ * sequence of pieces pointing into either one. Undo records keep pieces rather
+ * than text, so even deleting most of a huge file stays cheap.
+ *
+ * Saving over the mapped file moves the original aside to a temp file next to
+ * it, which is mapped from then on: Windows won't replace a file while it is
+ * mapped, and the pieces and undo history still point into those bytes.
+ */
+public class MappedFileContent implements AbstractDocument.Content {
+    private static final int PAGE_BYTES = 64 * 1024;
+    private static final long CHUNK_BYTES = 1L << 30;
+    private static final int MAX_CACHED_PAGES = 64;
+    private static final char[] EMPTY = new char[0];
+
+    private final Path path;
+    private Path source; // What is mapped: the file itself, or its original moved aside by a save
+    private final Charset charset;
+    private final int bomLength;
+    private final int crBytes;
+    private final int recordLength;
+    private FileChannel channel;
+    private final long fileSize;
+    private final MappedByteBuffer[] chunks;
+    private CharsetDecoder pageDecoder;
+
+    // Page table: byte and char start of each page, plus a sentinel entry at the end
+    private long[] pageBytes = new long[16];
+    private int[] pageChars = new int[16];
+    private int pageCount;
+    private int originalLength;
+
+    private final LinkedHashMap<Integer, char[]> pageCache =
+        new LinkedHashMap<Integer, char[]>(MAX_CACHED_PAGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+                return size() > MAX_CACHED_PAGES;
+            }
+        };
+
+    // Piece table, in a gap buffer as LineIndex keeps line starts: pieces before the
+    // gap hold their start, those after it their start less the length, so an edit
+    // only moves the pieces between it and the edit before
+    private char[] added = new char[1024];
+    private int addedLength;
+    private Piece[] pieces = new Piece[16];
+    private int[] pieceStarts = new int[16];
+    private int gapStart = 0;
+    private int gapEnd = 16;
+    private int length;
+
+    // In offset order, which edits never change; collected marks go at the next purge
+    private final ArrayList<MarkRef> marks = new ArrayList<>();
+    private int marksAtPurge = 0;
+
+    /** A run of characters taken either from the mapped file or from the append buffer. */
+    private static final class Piece {
+        final boolean added;
+        final int start;
+        final int length;
+
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    private static final class Mark implements Position {
+        MarkRef ref;
+
+        @Override
+        public int getOffset() {
+            return ref.offset;
+        }
+    }
+
+    /** Where a mark is, kept here so marks stay in order after their Position is collected. */
+    private static final class MarkRef extends WeakReference<Mark> {
+        int offset;
+
+        MarkRef(Mark mark, int offset) {
+            super(mark);
+            this.offset = offset;
+        }
+    }
+
+    private MappedFileContent(Path path, TextEncoding encoding) throws IOException {
+        this.path = path;
+        this.source = path;
+        this.charset = encoding.getCharset();
+        this.bomLength = encoding.getBomLength();
+        this.crBytes = charset.encode("\r").remaining();
+        this.recordLength = encoding.getRecordLength();
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.chunks = new MappedByteBuffer[(int) ((fileSize + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+
+        // Every Swing document ends in an implied newline
+        added[0] = '\n';
+        addedLength = 1;
+        replacePieces(0, 0, Collections.singletonList(new Piece(true, 0, 1)));
+    }
+
+    /**
+     * Map a file and index it. Line starts are appended to {@code lines}; the
+     * file's text stays hidden until {@link #revealOriginal()} is called so the
+     * owning document can be constructed against an empty content first.
+     *
+     * When {@code strict}, bytes that don't decode fail the open with a
+     * CharacterCodingException; otherwise they show as U+FFFD.
+     */
+    public static MappedFileContent open(Path path, TextEncoding encoding, LineIndex lines, IntConsumer progress,
+                                         boolean strict) throws IOException {
+        MappedFileContent content = new MappedFileContent(path, encoding);
+        try {
+            content.scan(lines, progress, strict);
+        } catch (IOException | RuntimeException ex) {
+            content.close();
+            throw ex;
+        }
+        return content;
+    }
+
+    /**
+     * Map a file of fixed-length records. No pass over the file is needed; record
+     * N is found at byte N * LRECL. The file's text stays hidden until
+     * {@link #revealOriginal()}, as with {@link #open}.
+     */
+    public static MappedFileContent openRecords(Path path, TextEncoding encoding) throws IOException {
+        MappedFileContent content = new MappedFileContent(path, encoding);
+        try {
+            content.indexRecords();
+        } catch (IOException | RuntimeException ex) {
+            content.close();
+            throw ex;
+        }
+        return content;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /** Size of the file in bytes when it was mapped. */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void close() {
+        synchronized (pageCache) {
+            pageCache.clear();
+            synchronized (chunks) {
+                release();
+            }
+        }
+        if (!source.equals(path)) {
+            try {
+                Files.deleteIfExists(source);
+            } catch (IOException ex) {
+                System.err.println("Error deleting " + source + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /** Whether {@code target} is the file this content was opened from. */
+    boolean isFile(Path target) {
+        return target.toAbsolutePath().normalize().equals(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Let {@code replace} put a new file where this one is. The mapping is
+     * released and the original moved aside first, and then mapped from there;
+     * if the replace fails, the original goes back. Page reads wait meanwhile.
+     */
+    void replaceFile(SaveEngine.FileAction replace) throws IOException {
+        synchronized (pageCache) {
+            synchronized (chunks) {
+                release();
+                try {
+                    Path aside = source;
+                    if (source.equals(path)) {
+                        Path dir = path.toAbsolutePath().getParent();
+                        aside = Files.createTempFile(dir, path.getFileName().toString() + ".", ".orig");
+                        Files.move(path, aside, StandardCopyOption.REPLACE_EXISTING);
+                        aside.toFile().deleteOnExit();
+                    }
+                    try {
+                        replace.run();
+                    } catch (IOException | RuntimeException ex) {
+                        if (aside != source) {
+                            Files.move(aside, path, StandardCopyOption.REPLACE_EXISTING);
+                        }
+                        throw ex;
+                    }
+                    source = aside;
+                } finally {
+                    channel = FileChannel.open(source, StandardOpenOption.READ);
+                }
+            }
+        }
+    }
+
+    /** Unmap the chunks and close the channel. Call holding the chunks lock, with no slice in use. */
+    private void release() {
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                unmap(chunks[i]);
+                chunks[i] = null;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            System.err.println("Error closing mapped file: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Unmap a buffer now rather than when it is collected, which may be never;
+     * Windows keeps the file locked until then. There is no public API for it
+     * before the foreign memory one, so this goes through the cleaner.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Left to the collector; replacing the file may then fail on Windows
+            System.err.println("Could not unmap file: " + ex.getMessage());
+        }
+    }
+
+    /** Splice the mapped file's text in front of the implied trailing newline. */
+    void revealOriginal() {
+        if (originalLength > 0) {
+            paste(0, Collections.singletonList(new Piece(false, 0, originalLength)));
+        }
+    }
+
+    // --- Indexing and page decoding ---
+
+    private CharsetDecoder newDecoder() {
+        return charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private void scan(LineIndex lines, IntConsumer progress, boolean strict) throws IOException {
+        CharsetDecoder decoder = strict
+            ? charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+            : newDecoder();
+        CharBuffer out = CharBuffer.allocate((int) Math.ceil(PAGE_BYTES * decoder.maxCharsPerByte()) + 16);
+        long pos = Math.min(bomLength, fileSize);
+        long total = 0;
+        int lastPercent = -1;
+
+        while (pos < fileSize) {
+            int span = (int) Math.min(PAGE_BYTES, fileSize - pos);
+            boolean last = pos + span >= fileSize;
+            ByteBuffer in = slice(pos, span);
+            out.clear();
+            decoder.reset();
+            CoderResult result = decoder.decode(in, out, last);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (last) {
+                decoder.flush(out);
+            }
+            int consumed = in.position();
+            if (consumed == 0) {
+                throw new IOException("Unable to decode " + path.getFileName() + " as " + charset.name());
+            }
+
+            addPage(pos, (int) total);
+            char[] chars = out.array();
+            int count = out.position();
+            if (!last && count > 1 && chars[count - 1] == '\r') {
+                // Leave it to start the next page, which then sees any '\n' after it
+                count--;
+                consumed -= crBytes;
+            }
+            count = normalizeLineEnds(chars, count);
+            for (int i = 0; i < count; i++) {
+                if (chars[i] == '\n') {
+                    long start = total + i + 1;
+                    if (start > Integer.MAX_VALUE - 1) {
+                        throw tooLarge();
+                    }
+                    lines.appendLineStart((int) start);
+                }
+            }
+            total += count;
+            if (total > Integer.MAX_VALUE - 1) {
+                throw tooLarge();
+            }
+            pos += consumed;
+
+            if (progress != null) {
+                int percent = (int) (pos * 100 / fileSize);
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    progress.accept(percent);
+                }
+            }
+        }
+
+        addPage(fileSize, (int) total);
+        pageCount--; // the last entry is the sentinel
+        originalLength = (int) total;
+        lines.setLength(originalLength);
+    }
+
+    private void indexRecords() throws IOException {
+        if (fileSize % recordLength != 0) {
+            throw new IOException(path.getFileName() + " is " + fileSize + " bytes, which is not a whole number of "
+                + recordLength + "-byte records");
+        }
+        long records = fileSize / recordLength;
+        long total = records == 0 ? 0 : records * (recordLength + 1) - 1;
+        if (total > Integer.MAX_VALUE - 1) {
+            throw tooLarge();
+        }
+        // Whole records per page, so every page decodes on its own
+        long perPage = Math.max(1, PAGE_BYTES / recordLength);
+        for (long record = 0; record < records; record += perPage) {
+            addPage(record * recordLength, (int) (record * (recordLength + 1)));
+        }
+        addPage(fileSize, (int) total);
+        pageCount--; // the last entry is the sentinel
+        originalLength = (int) total;
+    }
+
+    private IOException tooLarge() {
+        return new IOException(path.getFileName() + " has more than " + (Integer.MAX_VALUE - 1)
+            + " characters, which is the most a Swing document can address");
+    }
+
+    private void addPage(long byteStart, int charStart) {
+        if (pageCount == pageBytes.length) {
+            pageBytes = Arrays.copyOf(pageBytes, pageCount * 2);
+            pageChars = Arrays.copyOf(pageChars, pageCount * 2);
+        }
+        pageBytes[pageCount] = byteStart;
+        pageChars[pageCount] = charStart;
+        pageCount++;
+    }
+
+    private ByteBuffer slice(long pos, int len) throws IOException {
+        int chunk = (int) (pos / CHUNK_BYTES);
+        long base = chunk * CHUNK_BYTES;
+        synchronized (chunks) {
+            if (chunks[chunk] == null) {
+                // Chunks overlap by a page so a page never straddles two mappings
+                long size = Math.min(fileSize - base, CHUNK_BYTES + PAGE_BYTES);
+                chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, base, size);
+            }
+            return chunks[chunk].slice((int) (pos - base), len);
+        }
+    }
+
+    private int pageOf(int charOffset) {
+        int lo = 0;
+        int hi = pageCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (pageChars[mid] <= charOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /** Decoded text of a page for display; unreadable pages show as U+FFFD. */
+    private char[] page(int page) {
+        try {
+            return loadPage(page);
+        } catch (IOException ex) {
+            System.err.println("Error reading mapped page " + page + ": " + ex.getMessage());
+            // Not cached, so the page is retried next time
+            char[] chars = new char[pageChars[page + 1] - pageChars[page]];
+            Arrays.fill(chars, '\uFFFD');
+            return chars;
+        }
+    }
+
+    private char[] loadPage(int page) throws IOException {
+        synchronized (pageCache) {
+            char[] chars = pageCache.get(page);
+            if (chars == null) {
+                chars = decodePage(page);
+                pageCache.put(page, chars);
+            }
+            return chars;
+        }
+    }
+
+    private char[] decodePage(int page) throws IOException {
+        int expected = pageChars[page + 1] - pageChars[page];
+        if (pageDecoder == null) {
+            pageDecoder = newDecoder();
+        }
+        boolean last = page == pageCount - 1;
+        ByteBuffer in = slice(pageBytes[page], (int) (pageBytes[page + 1] - pageBytes[page]));
+        int capacity = (int) Math.ceil(in.remaining() * pageDecoder.maxCharsPerByte()) + 16;
+        if (recordLength > 0) {
+            capacity += in.remaining() / recordLength;
+        }
+        CharBuffer out = CharBuffer.allocate(capacity);
+        pageDecoder.reset();
+        pageDecoder.decode(in, out, last);
+        if (last) {
+            pageDecoder.flush(out);
+        }
+        int count = recordLength > 0
+            ? splitRecords(out.array(), out.position(), last)
+            : normalizeLineEnds(out.array(), out.position());
+        if (count != expected) {
+            // Offsets were fixed when the file was indexed; they no longer match its bytes
+            throw new IOException(path.getFileName() + " has changed on disk since it was opened");
+        }
+        return Arrays.copyOf(out.array(), count);
+    }
+
+    /**
+     * Put a '\n' after each record of a decoded page, except the last record of
+     * the file. Returns the new count; the array must have room for it.
+     */
+    private int splitRecords(char[] chars, int count, boolean lastPage) {
+        int records = count / recordLength;
+        int newCount = records * (recordLength + 1) - (lastPage ? 1 : 0);
+        // Back to front, so nothing is overwritten before it has moved
+        for (int record = records - 1; record >= 0; record--) {
+            int to = record * (recordLength + 1);
+            System.arraycopy(chars, record * recordLength, chars, to, recordLength);
+            if (to + recordLength < newCount) {
+                chars[to + recordLength] = '\n';
+            }
+        }
+        return newCount;
+    }
+
+    /** Turn CRLF and lone CR into '\n' in place; returns the new count. */
+    private static int normalizeLineEnds(char[] chars, int count) {
+        int out = 0;
+        for (int i = 0; i < count; i++) {
+            char c = chars[i];
+            if (c == '\r') {
+                if (i + 1 < count && chars[i + 1] == '\n') {
+                    continue;
+                }
+                c = '\n';
+            }
+            chars[out++] = c;
+        }
+        return out;
+    }
+
+    // --- AbstractDocument.Content ---
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length) {
+            throw new BadLocationException("Invalid position", offset);
+        }
+        if (marks.size() > 2 * marksAtPurge + 64) {
+            marks.removeIf(ref -> ref.get() == null);
+            marksAtPurge = marks.size();
+        }
+        Mark mark = new Mark();
+        mark.ref = new MarkRef(mark, offset);
+        marks.add(firstMark(offset), mark.ref);
+        return mark;
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str) throws BadLocationException {
+        if (where < 0 || where >= length) {
+            throw new BadLocationException("Invalid insert", length);
+        }
+        int n = str.length();
+        if (n == 0) {
+            return null;
+        }
+        int start = append(str);
+
+        // Typing appends to the buffer and extends the piece just before the caret
+        if (where > 0) {
+            int index = findPiece(where - 1);
+            Piece before = piece(index);
+            if (before.added && pieceStart(index) + before.length == where && before.start + before.length == start) {
+                replacePieces(index, index + 1,
+                              Collections.singletonList(new Piece(true, before.start, before.length + n)));
+                shiftMarks(where, n);
+                return new InsertEdit(where, n);
+            }
+        }
+        paste(where, Collections.singletonList(new Piece(true, start, n)));
+        return new InsertEdit(where, n);
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length) {
+            throw new BadLocationException("Invalid remove", length);
+        }
+        if (nitems == 0) {
+            return null;
+        }
+        return new RemoveEdit(where, cut(where, nitems));
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        Segment s = new Segment();
+        getChars(where, len, s);
+        return new String(s.array, s.offset, s.count);
+    }
+
+    @Override
+    public void getChars(int where, int len, Segment txt) throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length) {
+            throw new BadLocationException("Invalid location", length);
+        }
+        if (len == 0) {
+            txt.array = EMPTY;
+            txt.offset = 0;
+            txt.count = 0;
+            return;
+        }
+
+        // Hand out the backing array directly when the range is contiguous
+        int index = findPiece(where);
+        Piece piece = piece(index);
+        int inPiece = where - pieceStart(index);
+        int available = Math.min(len, piece.length - inPiece);
+        if (available == len || txt.isPartialReturn()) {
+            if (piece.added) {
+                txt.array = added;
+                txt.offset = piece.start + inPiece;
+                txt.count = available;
+                return;
+            }
+            int source = piece.start + inPiece;
+            int page = pageOf(source);
+            char[] chars = page(page);
+            int inPage = source - pageChars[page];
+            int n = Math.min(available, chars.length - inPage);
+            if (n == len || txt.isPartialReturn()) {
+                txt.array = chars;
+                txt.offset = inPage;
+                txt.count = n;
+                return;
+            }
+        }
+
+        char[] buffer = new char[len];
+        copy(where, len, buffer, 0);
+        txt.array = buffer;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    // --- Snapshots ---
+
+    /**
+     * Freeze the current text (without the implied final newline) so it can be
+     * read from another thread while editing goes on. Only the piece list is
+     * copied: the mapped file never changes and the append buffer is only ever
+     * appended to. Call with the document read-locked.
+     */
+    SaveEngine.Snapshot snapshot() {
+        int count = pieceCount();
+        Piece[] frozen = new Piece[count];
+        int[] starts = new int[count];
+        for (int i = 0; i < count; i++) {
+            frozen[i] = piece(i);
+            starts[i] = pieceStart(i);
+        }
+        return new PieceSnapshot(frozen, starts, added, length - 1);
+    }
+
+    private final class PieceSnapshot implements SaveEngine.Snapshot {
+        private final Piece[] pieces;
+        private final int[] starts;
+        private final char[] added;
+        private final int length;
+
+        PieceSnapshot(Piece[] pieces, int[] starts, char[] added, int length) {
+            this.pieces = pieces;
+            this.starts = starts;
+            this.added = added;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public void replace(Path temp, Path target) throws IOException {
+            if (isFile(target)) {
+                replaceFile(() -> SaveEngine.move(temp, target));
+            } else {
+                SaveEngine.move(temp, target);
+            }
+        }
+
+        @Override
+        public int read(int offset, char[] dst, int dstOffset, int len) throws IOException {
+            int index = Arrays.binarySearch(starts, offset);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            Piece piece = pieces[index];
+            int inPiece = offset - starts[index];
+            int n = Math.min(len, Math.min(piece.length - inPiece, length - offset));
+            if (piece.added) {
+                System.arraycopy(added, piece.start + inPiece, dst, dstOffset, n);
+                return n;
+            }
+            int source = piece.start + inPiece;
+            int page = pageOf(source);
+            // Unlike the display path, a page that can't be read fails the save
+            char[] chars = loadPage(page);
+            int inPage = source - pageChars[page];
+            n = Math.min(n, chars.length - inPage);
+            System.arraycopy(chars, inPage, dst, dstOffset, n);
+            return n;
+        }
+    }
+
+    // --- Piece table ---
+
+    private int append(String str) {
+        int n = str.length();
+        if (addedLength + n > added.length) {
+            added = Arrays.copyOf(added, Math.max(added.length * 2, addedLength + n));
+        }
+        str.getChars(0, n, added, addedLength);
+        int start = addedLength;
+        addedLength += n;
+        return start;
+    }
+
+    private void copy(int where, int len, char[] dst, int dstPos) {
+        int index = findPiece(where);
+        int inPiece = where - pieceStart(index);
+        while (len > 0) {
+            Piece piece = piece(index);
+            int n = Math.min(len, piece.length - inPiece);
+            if (piece.added) {
+                System.arraycopy(added, piece.start + inPiece, dst, dstPos, n);
+            } else {
+                copyOriginal(piece.start + inPiece, n, dst, dstPos);
+            }
+            dstPos += n;
+            len -= n;
+            index++;
+            inPiece = 0;
+        }
+    }
+
+    private void copyOriginal(int source, int len, char[] dst, int dstPos) {
+        while (len > 0) {
+            int page = pageOf(source);
+            char[] chars = page(page);
+            int inPage = source - pageChars[page];
+            int n = Math.min(len, chars.length - inPage);
+            System.arraycopy(chars, inPage, dst, dstPos, n);
+            source += n;
+            dstPos += n;
+            len -= n;
+        }
+    }
+
+    private int findPiece(int offset) {
+        int lo = 0;
+        int hi = pieceCount() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (pieceStart(mid) <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private int pieceCount() {
+        return pieces.length - (gapEnd - gapStart);
+    }
+
+    private Piece piece(int index) {
+        return pieces[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    /** Where piece {@code index} starts; the length, for the index after the last. */
+    private int pieceStart(int index) {
+        if (index < gapStart) {
+            return pieceStarts[index];
+        }
+        int at = index + gapEnd - gapStart;
+        return at == pieces.length ? length : pieceStarts[at] + length;
+    }
+
+    /** Put {@code run} in place of pieces [from, to), and change the length to suit. */
+    private void replacePieces(int from, int to, List<Piece> run) {
+        int start = pieceStart(from);
+        int removed = pieceStart(to) - start;
+        moveGap(to);
+        Arrays.fill(pieces, from, to, null);
+        gapStart = from;
+        if (gapEnd - gapStart < run.size()) {
+            int capacity = Math.max(pieces.length * 2, pieceCount() + run.size());
+            int after = pieces.length - gapEnd;
+            Piece[] newPieces = new Piece[capacity];
+            int[] newStarts = new int[capacity];
+            System.arraycopy(pieces, 0, newPieces, 0, gapStart);
+            System.arraycopy(pieceStarts, 0, newStarts, 0, gapStart);
+            System.arraycopy(pieces, gapEnd, newPieces, capacity - after, after);
+            System.arraycopy(pieceStarts, gapEnd, newStarts, capacity - after, after);
+            pieces = newPieces;
+            pieceStarts = newStarts;
+            gapEnd = capacity - after;
+        }
+        int n = 0;
+        for (Piece piece : run) {
+            pieces[gapStart] = piece;
+            pieceStarts[gapStart] = start + n;
+            gapStart++;
+            n += piece.length;
+        }
+        // The pieces after the gap move with the length
+        length += n - removed;
+    }
+
+    private void moveGap(int index) {
+        // With no gap the entries stay put and only change encoding
+        while (gapStart > index) {
+            gapStart--;
+            gapEnd--;
+            Piece piece = pieces[gapStart];
+            pieces[gapStart] = null;
+            pieces[gapEnd] = piece;
+            pieceStarts[gapEnd] = pieceStarts[gapStart] - length;
+        }
+        while (gapStart < index) {
+            Piece piece = pieces[gapEnd];
+            pieces[gapEnd] = null;
+            pieces[gapStart] = piece;
+            pieceStarts[gapStart] = pieceStarts[gapEnd] + length;
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    /** Make sure a piece starts at the offset and return its index. */
+    private int split(int offset) {
+        if (offset >= length) {
+            return pieceCount();
+        }
+        int index = findPiece(offset);
+        int inPiece = offset - pieceStart(index);
+        if (inPiece == 0) {
+            return index;
+        }
+        Piece piece = piece(index);
+        replacePieces(index, index + 1, Arrays.asList(new Piece(piece.added, piece.start, inPiece),
+            new Piece(piece.added, piece.start + inPiece, piece.length - inPiece)));
+        return index + 1;
+    }
+
+    private void paste(int where, List<Piece> run) {
+        int index = split(where);
+        int before = length;
+        replacePieces(index, index, run);
+        shiftMarks(where, length - before);
+    }
+
+    private List<Piece> cut(int where, int len) {
+        int first = split(where);
+        int last = split(where + len);
+        List<Piece> removed = new ArrayList<>(last - first);
+        for (int i = first; i < last; i++) {
+            removed.add(piece(i));
+        }
+        replacePieces(first, last, Collections.emptyList());
+        collapseMarks(where, len);
+        return removed;
+    }
+
+    // --- Marks ---
+
+    /** Index of the first mark at or after {@code offset}. */
+    private int firstMark(int offset) {
+        int lo = 0;
+        int hi = marks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (marks.get(mid).offset < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void shiftMarks(int where, int n) {
+        // Same bias as GapContent: positions at the insertion point move with it, except at 0
+        for (int i = firstMark(where == 0 ? 1 : where); i < marks.size(); i++) {
+            marks.get(i).offset += n;
+        }
+    }
+
+    private void collapseMarks(int where, int n) {
+        for (int i = firstMark(where + 1); i < marks.size(); i++) {
+            MarkRef mark = marks.get(i);
+            mark.offset = mark.offset >= where + n ? mark.offset - n : where;
+        }
+    }
+
+    // --- Undo ---
+
+    private final class InsertEdit extends AbstractUndoableEdit {
+        private final int offset;
+        private final int length;
+        private List<Piece> removed;
+
+        InsertEdit(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            removed = cut(offset, length);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            paste(offset, removed);
+            removed = null;
+        }
+    }
+
+    private final class RemoveEdit extends AbstractUndoableEdit {
+        private final int offset;
+        private final List<Piece> removed;
+        private final int length;
+
+        RemoveEdit(int offset, List<Piece> removed) {
+            this.offset = offset;
+            this.removed = removed;
+            int n = 0;
+            for (Piece piece : removed) {
+                n += piece.length;
+            }
+            this.length = n;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            paste(offset, removed);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            cut(offset, length);
+        }
+    }
+}
@@ -0,0 +1,597 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Finds every match of the current search term in the editor, in the
+ * background, so that all of them can be highlighted and counted.
+ *
+ * A background thread shared by all indexers scans the document, a block at a
+ * time under its read lock, and hands each new batch of matches to the EDT as
+ * it goes. Only the matches in the visible part of the editor get
+ * highlights, refreshed as it scrolls, and the status bar shows "Match n of m"
+ * while the selection is a match. The scan is restarted, after a short pause,
+ * when the term changes. Use on the EDT.
+ *
+ * Once a scan is complete the matches are kept up to date through edits, in a
+ * {@link MatchOffsets}. An edit rescans from the end of the last match before
+ * it only until the scan is back in step with the old matches after it, which
+ * are then kept as they are, moved along with the text. That makes Find Next a
+ * binary search however much has been edited. A regular expression is assumed
+ * to look at no more than one char either side of a match, as {@code \b} and
+ * {@code ^} do; one with lookaround may look any distance, so every edit
+ * rescans the whole document for it. An update that takes too long on the EDT
+ * is left to a full rescan in the background too. With a {@link ColumnRange} a
+ * match can't leave its line, so an edit just rescans the lines it touched.
+ */
+public class MatchIndexer {
+    private static final int RESTART_DELAY_MS = 150;
+    private static final long PUBLISH_INTERVAL_NANOS = 100_000_000L;
+    private static final int MAX_HIGHLIGHTS = 2000;
+    private static final long UPDATE_BUDGET_NANOS = 20_000_000L;
+    private static final int MAX_LINES_UPDATE = 1024 * 1024; // Chars of touched lines rescanned on the EDT
+    private static final int SCAN_BLOCK = 1024 * 1024; // Chars a scan reads under one read lock
+    private static final Highlighter.HighlightPainter PAINTER =
+        new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 225, 110));
+
+    // One thread scans for every indexer; a cancelled scan gives way to the next at its next match or block
+    private static final ExecutorService SCANNER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MatchIndexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final EditorPane editor;
+    private Document doc;
+    private String term = "";
+    private boolean matchCase;
+    private boolean regex;
+    private ColumnRange columns; // Null to search whole lines
+
+    private DocumentSearch search; // For literal terms
+    private Pattern pattern; // For regular expressions
+    private boolean looksAround; // Whether the expression may look past the char either side of a match
+
+    // Matches found so far, in order
+    private final MatchOffsets matches = new MatchOffsets();
+    private boolean complete = true;
+
+    private int generation = 0; // Bumped on every restart; batches from older scans are dropped
+    private AtomicBoolean scanCancelled = new AtomicBoolean();
+    private final Timer restartTimer;
+    private final List<Object> highlights = new ArrayList<>();
+    private JViewport viewport;
+
+    private final DocumentListener editListener = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            documentEdited(e.getOffset(), e.getOffset(), e.getOffset() + e.getLength());
+        }
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            documentEdited(e.getOffset(), e.getOffset() + e.getLength(), e.getOffset());
+        }
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // A FixedRecordDocument pads or trims a record under a change event
+            int delta = doc.getLength() - matches.documentLength();
+            if (delta > 0) {
+                documentEdited(e.getOffset(), e.getOffset(), e.getOffset() + delta);
+            } else if (delta < 0) {
+                documentEdited(e.getOffset(), e.getOffset() - delta, e.getOffset());
+            }
+        }
+    };
+    private final ChangeListener scrollListener = e -> refreshHighlights();
+
+    public MatchIndexer(EditorPane editor) {
+        this.editor = editor;
+        restartTimer = new Timer(RESTART_DELAY_MS, e -> rescan());
+        restartTimer.setRepeats(false);
+        editor.addCaretListener(e -> updateStatus());
+        editor.addPropertyChangeListener("document", evt -> {
+            if (doc != null) {
+                setDocument((Document) evt.getNewValue());
+                restart();
+            }
+        });
+    }
+
+    /**
+     * Search for {@code term}, within {@code columns} if not null, from now on;
+     * an empty term clears the matches.
+     */
+    public void setQuery(String term, boolean matchCase, boolean regex, ColumnRange columns) {
+        if (term.equals(this.term) && matchCase == this.matchCase && regex == this.regex
+                && Objects.equals(columns, this.columns)) {
+            return;
+        }
+        this.term = term;
+        this.matchCase = matchCase;
+        this.regex = regex;
+        this.columns = columns;
+        if (term.isEmpty()) {
+            clear();
+        } else {
+            setDocument(editor.getDocument());
+            restart();
+        }
+    }
+
+    /** Forget the matches and take down their highlights. */
+    public void clear() {
+        term = "";
+        restartTimer.stop();
+        cancelScan();
+        setDocument(null);
+        search = null;
+        pattern = null;
+        setMatches(new int[0], new int[0], 0, 0, true);
+        if (viewport != null) {
+            viewport.removeChangeListener(scrollListener);
+            viewport = null;
+        }
+    }
+
+    /** Number of matches found so far. */
+    public int getCount() {
+        return matches.size();
+    }
+
+    /** Whether the scan has finished, so that getCount() is all of them. */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Whether every match of this search is known and up to date, so that Find
+     * can look them up rather than search.
+     */
+    public boolean isCurrent(String term, boolean matchCase, boolean regex, ColumnRange columns) {
+        return complete && !restartTimer.isRunning() && doc == editor.getDocument()
+            && term.equals(this.term) && matchCase == this.matchCase && regex == this.regex
+            && Objects.equals(columns, this.columns);
+    }
+
+    /** Index of the match that is exactly [start, end), or -1. */
+    public int indexOf(int start, int end) {
+        int i = matches.firstStartingAt(start);
+        return i < matches.size() && matches.start(i) == start && matches.end(i) == end ? i : -1;
+    }
+
+    /** The first match starting at or after {@code from}, as {start, end}, or null. */
+    public int[] nextMatch(int from) {
+        int i = matches.firstStartingAt(from);
+        return i < matches.size() ? new int[] {matches.start(i), matches.end(i)} : null;
+    }
+
+    /** The last match starting before {@code before}, as {start, end}, or null. */
+    public int[] previousMatch(int before) {
+        int i = matches.firstStartingAt(before) - 1;
+        return i >= 0 ? new int[] {matches.start(i), matches.end(i)} : null;
+    }
+
+    private void setDocument(Document newDoc) {
+        if (doc != null) {
+            doc.removeDocumentListener(editListener);
+        }
+        doc = newDoc;
+        if (doc != null) {
+            doc.addDocumentListener(editListener);
+        }
+    }
+
+    /** The text in [offset, oldEnd) was replaced by [offset, newEnd). */
+    private void documentEdited(int offset, int oldEnd, int newEnd) {
+        boolean inStep = complete && !restartTimer.isRunning()
+            && matches.documentLength() + newEnd - oldEnd == doc.getLength();
+        boolean updated = inStep && !looksAround
+            && (columns != null ? updateLines(offset, oldEnd, newEnd) : updateAround(offset, oldEnd, newEnd));
+        if (updated) {
+            refreshHighlights();
+            updateStatus();
+            return;
+        }
+        // The highlights move with the text; the offsets and count wait for the rescan
+        cancelScan();
+        complete = false;
+        restart();
+    }
+
+    /**
+     * Rescan around an edit, keeping the matches either side of it that can't
+     * have changed. Returns false if that would take too long.
+     */
+    private boolean updateAround(int offset, int oldEnd, int newEnd) {
+        int delta = newEnd - oldEnd;
+        int length = doc.getLength();
+        // Matches ending before the edit stay, and the scan picks up where the last of them ended
+        int kept = matches.firstEndingAt(offset);
+        // Matches starting after it are old ones moved along, once the scan falls back in step
+        int after = matches.firstStartingAt(oldEnd);
+        int position = kept == 0 ? 0 : matches.end(kept - 1);
+        if (kept > 0 && matches.start(kept - 1) == position) {
+            // A Matcher moves on one char from an empty match
+            position++;
+        }
+        // A regular expression may look one char behind where it starts
+        int inStepFrom = newEnd + (pattern != null ? 1 : 0);
+
+        int[] foundStarts = new int[16];
+        int[] foundEnds = new int[16];
+        int found = 0;
+        long deadline = System.nanoTime() + UPDATE_BUDGET_NANOS;
+        Matcher matcher = pattern != null
+            ? pattern.matcher(new DocumentCharSequence(doc, () -> System.nanoTime() > deadline)) : null;
+        int resumeAt;
+        try {
+            while (true) {
+                if (position >= inStepFrom) {
+                    resumeAt = inStepAt(position, after, delta);
+                    if (resumeAt >= 0) {
+                        break;
+                    }
+                }
+                int start;
+                int end;
+                if (matcher != null) {
+                    if (position > length || !matcher.find(position)) {
+                        resumeAt = matches.size();
+                        break;
+                    }
+                    start = matcher.start();
+                    end = matcher.end();
+                } else {
+                    // Up to where the text is unchanged, nothing further is needed
+                    boolean bounded = position < inStepFrom;
+                    start = search.find(doc, position, bounded ? inStepFrom - 1 : length);
+                    if (start < 0) {
+                        if (bounded) {
+                            position = inStepFrom;
+                            continue;
+                        }
+                        resumeAt = matches.size();
+                        break;
+                    }
+                    end = start + search.length();
+                }
+                // Searching from where the scan is finds this match, so in step there means in step here
+                if (start >= inStepFrom && start > position) {
+                    resumeAt = inStepAt(start, after, delta);
+                    if (resumeAt >= 0) {
+                        break;
+                    }
+                }
+                if (found == foundStarts.length) {
+                    foundStarts = Arrays.copyOf(foundStarts, found * 2);
+                    foundEnds = Arrays.copyOf(foundEnds, found * 2);
+                }
+                foundStarts[found] = start;
+                foundEnds[found] = end;
+                found++;
+                position = end > start ? end : end + 1;
+            }
+        } catch (CancellationException | StackOverflowError ex) {
+            return false;
+        }
+        matches.replace(kept, resumeAt, foundStarts, foundEnds, found, length);
+        return true;
+    }
+
+    /**
+     * Rescan the lines an edit touched, for a search within columns, and keep
+     * the matches in every other line. Returns false if the lines are too long
+     * to rescan here.
+     */
+    private boolean updateLines(int offset, int oldEnd, int newEnd) {
+        int delta = newEnd - oldEnd;
+        int length = doc.getLength();
+        Element root = doc.getDefaultRootElement();
+        int from = root.getElement(root.getElementIndex(offset)).getStartOffset();
+        int to = Math.min(root.getElement(root.getElementIndex(newEnd)).getEndOffset() - 1, length);
+        if (to - from > MAX_LINES_UPDATE) {
+            return false;
+        }
+        int kept = matches.firstStartingAt(from);
+        // Old matches after the last touched line, which ended at to - delta before the edit
+        int after = matches.firstStartingAt(to - delta + 1);
+        Found found = new Found(16);
+        long deadline = System.nanoTime() + UPDATE_BUDGET_NANOS;
+        Matcher matcher = pattern != null
+            ? pattern.matcher(new DocumentCharSequence(doc, () -> System.nanoTime() > deadline)) : null;
+        try {
+            columns.forEachMatch(doc, search, matcher, from, to, (start, end) -> {
+                found.add(start, end);
+                return true;
+            });
+        } catch (CancellationException | StackOverflowError ex) {
+            return false;
+        }
+        matches.replace(kept, after, found.starts, found.ends, found.count, length);
+        return true;
+    }
+
+    /**
+     * If a scan that has got to {@code position} (after the edit) is in step
+     * with the old matches, the index of the old match it would find next;
+     * otherwise -1. It is in step when no old match runs across that point.
+     */
+    private int inStepAt(int position, int after, int delta) {
+        int next = Math.max(after, matches.firstStartingAt(position - delta));
+        if (next > 0 && matches.end(next - 1) > position - delta) {
+            return -1;
+        }
+        return next;
+    }
+
+    /**
+     * Whether an expression has lookahead, lookbehind or a grapheme boundary,
+     * any of which can look further than one char from a match. An escaped
+     * bracket may set this off for nothing, which only costs a rescan.
+     */
+    private static boolean looksAround(String term) {
+        return term.contains("(?=") || term.contains("(?!") || term.contains("(?<=") || term.contains("(?<!")
+            || term.contains("\\b{g}");
+    }
+
+    private void restart() {
+        restartTimer.restart();
+    }
+
+    private void cancelScan() {
+        scanCancelled.set(true);
+        generation++;
+    }
+
+    private void rescan() {
+        if (term.isEmpty() || doc == null) {
+            return;
+        }
+        if (viewport == null) {
+            viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, editor);
+            if (viewport != null) {
+                viewport.addChangeListener(scrollListener);
+            }
+        }
+        search = null;
+        pattern = null;
+        looksAround = false;
+        if (regex) {
+            try {
+                pattern = RegexSearch.compile(term, matchCase);
+                looksAround = looksAround(term);
+            } catch (PatternSyntaxException ex) {
+                // Still being typed; nothing matches it yet
+                setMatches(new int[0], new int[0], 0, doc.getLength(), true);
+                return;
+            }
+        } else {
+            search = new DocumentSearch(term, matchCase);
+        }
+        cancelScan();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        scanCancelled = cancelled;
+        int scanGeneration = generation;
+        complete = false;
+        updateStatus();
+
+        Document scanned = doc;
+        String literal = term;
+        boolean literalMatchCase = matchCase;
+        Pattern scanPattern = pattern;
+        ColumnRange scanColumns = columns;
+        SCANNER.execute(() -> {
+            if (cancelled.get()) {
+                return;
+            }
+            try {
+                // The length is taken first: an edit after this cancels the scan, so the two agree
+                int scannedLength = scanned.getLength();
+                scan(scanned, scannedLength, literal, literalMatchCase, scanPattern, scanColumns, scanGeneration,
+                     cancelled);
+            } catch (CancellationException ex) {
+                // Cancelled part way, or the document shrank under the scan; a rescan follows the edit
+            } catch (RuntimeException | StackOverflowError ex) {
+                if (!cancelled.get()) {
+                    String message = ex instanceof StackOverflowError
+                        ? "the expression is too complex to match here" : ex.toString();
+                    SwingUtilities.invokeLater(() -> {
+                        if (scanGeneration == generation) {
+                            scanFailed(message);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs on the scanner thread: find every match and publish them in batches.
+     * The document is read a block at a time under its read lock.
+     */
+    private void scan(Document scanned, int scannedLength, String literal, boolean literalMatchCase, Pattern pattern,
+                      ColumnRange columns, int scanGeneration, AtomicBoolean cancelled) {
+        // Only the matches since the last batch are held here; the EDT has the rest
+        Found found = new Found(1024);
+        boolean[] published = new boolean[1];
+        long[] lastPublish = {System.nanoTime()};
+        int[] lastEnd = new int[1];
+        ColumnRange.MatchConsumer collect = (start, end) -> {
+            found.add(start, end);
+            lastEnd[0] = end;
+            if (System.nanoTime() - lastPublish[0] > PUBLISH_INTERVAL_NANOS) {
+                publish(Arrays.copyOf(found.starts, found.count), Arrays.copyOf(found.ends, found.count), found.count,
+                        scannedLength, !published[0], false, scanGeneration);
+                published[0] = true;
+                found.count = 0;
+                lastPublish[0] = System.nanoTime();
+            }
+            return !cancelled.get();
+        };
+
+        DocumentSearch search = pattern == null ? new DocumentSearch(literal, literalMatchCase) : null;
+        Matcher matcher = pattern != null ? pattern.matcher(new DocumentCharSequence(scanned, cancelled::get)) : null;
+        if (columns != null) {
+            // Runs of lines under one lock each; a match may run on past the end of its run
+            for (int from = 0; from <= scannedLength && !cancelled.get(); ) {
+                int to = from + SCAN_BLOCK - 1;
+                int blockFrom = from;
+                scanned.render(() -> columns.forEachMatch(scanned, search, matcher, blockFrom, to, collect));
+                from = Math.max(to + 1, lastEnd[0]);
+            }
+        } else if (matcher != null) {
+            // DocumentCharSequence copies the text under the lock
+            while (!cancelled.get() && matcher.find()) {
+                if (!collect.accept(matcher.start(), matcher.end())) {
+                    break;
+                }
+            }
+        } else {
+            int[] start = new int[1];
+            for (int from = 0; from <= scannedLength - search.length() && !cancelled.get(); ) {
+                int lastStart = from + SCAN_BLOCK - 1;
+                int blockFrom = from;
+                scanned.render(() -> start[0] = search.find(scanned, blockFrom, lastStart));
+                if (start[0] < 0) {
+                    from = lastStart + 1;
+                } else {
+                    collect.accept(start[0], start[0] + search.length());
+                    from = start[0] + search.length();
+                }
+            }
+        }
+        if (!cancelled.get()) {
+            publish(found.starts, found.ends, found.count, scannedLength, !published[0], true, scanGeneration);
+        }
+    }
+
+    /** Hand a batch to the EDT: the first of a scan takes the place of the old matches, the rest add to them. */
+    private void publish(int[] batchStarts, int[] batchEnds, int batchCount, int scannedLength, boolean first,
+                         boolean done, int scanGeneration) {
+        SwingUtilities.invokeLater(() -> {
+            if (scanGeneration != generation) {
+                return;
+            }
+            if (first) {
+                setMatches(batchStarts, batchEnds, batchCount, scannedLength, done);
+            } else {
+                matches.replace(matches.size(), matches.size(), batchStarts, batchEnds, batchCount, scannedLength);
+                complete = done;
+                refreshHighlights();
+                updateStatus();
+            }
+        });
+    }
+
+    private void scanFailed(String message) {
+        complete = false;
+        MainApp mainApp = (MainApp) SwingUtilities.getWindowAncestor(editor);
+        if (mainApp != null) {
+            mainApp.setMatchStatus("Could not count matches: " + message);
+        }
+    }
+
+    private void setMatches(int[] newStarts, int[] newEnds, int newCount, int documentLength, boolean done) {
+        matches.setAll(newStarts, newEnds, newCount, documentLength);
+        complete = done;
+        refreshHighlights();
+        updateStatus();
+    }
+
+    /** Highlight the matches on screen, and only those. */
+    private void refreshHighlights() {
+        Highlighter highlighter = editor.getHighlighter();
+        for (Object tag : highlights) {
+            highlighter.removeHighlight(tag);
+        }
+        highlights.clear();
+        int count = matches.size();
+        if (count == 0 || doc != editor.getDocument()) {
+            return;
+        }
+        Rectangle visible = editor.getVisibleRect();
+        int first = editor.viewToModel2D(new Point(0, visible.y));
+        int last = editor.viewToModel2D(new Point(editor.getWidth(), visible.y + visible.height));
+        int length = doc.getLength();
+        // The first match that ends after the top of the view
+        int i = matches.firstEndingAt(first + 1);
+        try {
+            for (; i < count && matches.start(i) <= last && highlights.size() < MAX_HIGHLIGHTS; i++) {
+                int start = matches.start(i);
+                int end = matches.end(i);
+                if (start < end && end <= length) {
+                    highlights.add(highlighter.addHighlight(start, end, PAINTER));
+                }
+            }
+        } catch (BadLocationException ex) {
+            // Offsets from before an edit the rescan hasn't caught up with
+        }
+    }
+
+    private void updateStatus() {
+        MainApp mainApp = (MainApp) SwingUtilities.getWindowAncestor(editor);
+        if (mainApp == null) {
+            return;
+        }
+        if (term.isEmpty()) {
+            mainApp.setMatchStatus("");
+            return;
+        }
+        String more = complete ? "" : "+";
+        int count = matches.size();
+        int current = indexOf(editor.getSelectionStart(), editor.getSelectionEnd());
+        if (current >= 0) {
+            mainApp.setMatchStatus("Match " + (current + 1) + " of " + count + more);
+        } else if (count == 0) {
+            mainApp.setMatchStatus(complete ? "No matches" : "Counting matches...");
+        } else {
+            mainApp.setMatchStatus(count + more + (count == 1 && complete ? " match" : " matches"));
+        }
+    }
+
+    /** Matches gathered in order. */
+    private static final class Found {
+        int[] starts;
+        int[] ends;
+        int count;
+
+        Found(int capacity) {
+            starts = new int[capacity];
+            ends = new int[capacity];
+        }
+
+        void add(int start, int end) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.foss.apocylberry.jsnote;
+
+import java.util.Arrays;
+
+/**
+ * The start and end offsets of a sorted run of matches, kept in int arrays with
+ * a gap, in the manner of GapContent.
+ *
+ * Entries before the gap hold document offsets; entries after it hold their
+ * distance back from the end of the document. An edit moves the gap to where it
+ * happened and then changes the document length, which moves every entry after
+ * the gap along with the text without touching them. Consecutive edits in one
+ * place cost only the entries they replace.
+ */
+final class MatchOffsets {
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int gapStart = 0;
+    private int gapEnd = 16;
+    private int length = 0; // The document length that entries after the gap count back from
+
+    int size() {
+        return starts.length - (gapEnd - gapStart);
+    }
+
+    /** The document length these offsets belong to. */
+    int documentLength() {
+        return length;
+    }
+
+    int start(int i) {
+        return i < gapStart ? starts[i] : length - starts[i + gapEnd - gapStart];
+    }
+
+    int end(int i) {
+        return i < gapStart ? ends[i] : length - ends[i + gapEnd - gapStart];
+    }
+
+    /** Index of the first entry starting at or after {@code offset}, or size(). */
+    int firstStartingAt(int offset) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (start(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Index of the first entry ending at or after {@code offset}, or size(). */
+    int firstEndingAt(int offset) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (end(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Replace everything with the first {@code count} of the given offsets, for a document of this length. */
+    void setAll(int[] newStarts, int[] newEnds, int count, int documentLength) {
+        int capacity = Math.max(16, count + count / 8);
+        starts = Arrays.copyOf(newStarts, capacity);
+        ends = Arrays.copyOf(newEnds, capacity);
+        gapStart = count;
+        gapEnd = capacity;
+        length = documentLength;
+    }
+
+    /**
+     * Swap entries [from, to) for {@code count} new ones, given in the new
+     * offsets, and move the entries after them by the change in document length.
+     */
+    void replace(int from, int to, int[] newStarts, int[] newEnds, int count, int newDocumentLength) {
+        moveGap(from);
+        gapEnd += to - from;
+        if (gapEnd - gapStart < count) {
+            grow(count);
+        }
+        System.arraycopy(newStarts, 0, starts, gapStart, count);
+        System.arraycopy(newEnds, 0, ends, gapStart, count);
+        gapStart += count;
+        length = newDocumentLength;
+    }
+
+    private void moveGap(int index) {
+        // Entries crossing the gap switch between counting from the start and from the end
+        while (gapStart > index) {
+            gapStart--;
+            gapEnd--;
+            starts[gapEnd] = length - starts[gapStart];
+            ends[gapEnd] = length - ends[gapStart];
+        }
+        while (gapStart < index) {
+            starts[gapStart] = length - starts[gapEnd];
+            ends[gapStart] = length - ends[gapEnd];
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    private void grow(int needed) {
+        int tail = starts.length - gapEnd;
+        int capacity = Math.max(starts.length * 2, gapStart + needed + tail + 16);
+        int[] newStarts = Arrays.copyOf(starts, capacity);
+        int[] newEnds = Arrays.copyOf(ends, capacity);
+        System.arraycopy(starts, gapEnd, newStarts, capacity - tail, tail);
+        System.arraycopy(ends, gapEnd, newEnds, capacity - tail, tail);
+        starts = newStarts;
+        ends = newEnds;
+        gapEnd = capacity - tail;
+    }
+}
@@ -0,0 +1,318 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One regular expression search of a document, run off the EDT.
+ *
+ * The Matcher works on a {@link DocumentCharSequence}, so the text is never
+ * copied out of the document, and runs on its own thread, so a pattern that
+ * backtracks for minutes costs a thread rather than the UI. The search stops
+ * when cancelled, silently, or when the document is edited under it, which the
+ * callback hears about; otherwise its result goes to the callback on the EDT.
+ * Patterns are compiled with MULTILINE, so {@code ^} and {@code $} match at
+ * line ends.
+ */
+public final class RegexSearch {
+    private static final int CACHED_PATTERNS = 32;
+    private static final int BACKWARD_BLOCK = 64 * 1024;
+    // Deep recursion in java.util.regex is what usually fails first on long matches
+    private static final long STACK_SIZE = 16L * 1024 * 1024;
+
+    private static final Map<String, Pattern> patterns = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > CACHED_PATTERNS;
+        }
+    };
+
+    /** Receives the outcome on the EDT; none is called once the search is cancelled. */
+    public interface Callback<T> {
+        void done(T result);
+        void failed(String message);
+
+        /** The document was edited while the search ran, which stopped it. */
+        default void interrupted() {
+            failed("The text was edited while the search ran");
+        }
+    }
+
+    private final Document doc;
+    private volatile boolean cancelled; // By the caller or by an edit
+    private volatile boolean dropped; // By the caller, so nothing is reported
+    private volatile boolean edited;
+    private final DocumentListener editWatcher = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) { stopForEdit(); }
+        @Override
+        public void removeUpdate(DocumentEvent e) { stopForEdit(); }
+        @Override
+        public void changedUpdate(DocumentEvent e) { }
+    };
+
+    private RegexSearch(Document doc) {
+        this.doc = doc;
+    }
+
+    private void stopForEdit() {
+        edited = true;
+        cancelled = true;
+    }
+
+    /**
+     * The compiled pattern for a search term, from a small cache of recent ones.
+     * Throws PatternSyntaxException if the term isn't a valid expression.
+     */
+    public static Pattern compile(String regex, boolean matchCase) {
+        int flags = Pattern.MULTILINE;
+        if (!matchCase) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        String key = flags + "/" + regex;
+        synchronized (patterns) {
+            Pattern pattern = patterns.get(key);
+            if (pattern == null) {
+                pattern = Pattern.compile(regex, flags);
+                patterns.put(key, pattern);
+            }
+            return pattern;
+        }
+    }
+
+    /**
+     * Find the first match at or after {@code from}, starting over from the top
+     * if {@code wrap} is set. The result is {start, end}, or null. With
+     * {@code columns}, only matches inside them count.
+     */
+    public static RegexSearch findNext(Document doc, Pattern pattern, ColumnRange columns, int from, boolean wrap,
+                                       Callback<int[]> callback) {
+        return start(doc, text -> {
+            Matcher m = pattern.matcher(text);
+            if (columns != null) {
+                int[] found = columns.findNext(doc, null, m, from);
+                return found == null && wrap && from > 0 ? columns.findNext(doc, null, m, 0) : found;
+            }
+            int[] found = m.find(Math.min(from, text.length())) ? new int[] {m.start(), m.end()} : null;
+            if (found == null && wrap && from > 0 && m.find(0)) {
+                found = new int[] {m.start(), m.end()};
+            }
+            return found;
+        }, callback);
+    }
+
+    /**
+     * Find the last match starting before {@code before}, starting over from the
+     * bottom if {@code wrap} is set. The result is {start, end}, or null. With
+     * {@code columns}, only matches inside them count.
+     */
+    public static RegexSearch findPrevious(Document doc, Pattern pattern, ColumnRange columns, int before,
+                                           boolean wrap, Callback<int[]> callback) {
+        return start(doc, text -> {
+            Matcher m = pattern.matcher(text);
+            if (columns != null) {
+                int[] found = columns.findPrevious(doc, null, m, before - 1);
+                return found == null && wrap && before <= text.length()
+                    ? columns.findPrevious(doc, null, m, text.length()) : found;
+            }
+            int[] found = findLast(m, text.length(), before);
+            if (found == null && wrap && before <= text.length()) {
+                found = findLast(m, text.length(), text.length() + 1);
+            }
+            return found;
+        }, callback);
+    }
+
+    /**
+     * The text to put in place of [start, end) if that range is a match, with
+     * group references in {@code replacement} filled in; null if it isn't.
+     */
+    public static RegexSearch replacementFor(Document doc, Pattern pattern, int start, int end, String replacement,
+                                             Callback<String> callback) {
+        return start(doc, text -> {
+            Matcher m = pattern.matcher(text);
+            // Lookaround may see past the range, but the match has to fill it
+            m.region(start, end).useTransparentBounds(true).useAnchoringBounds(false);
+            return m.matches() ? expand(m, replacement) : null;
+        }, callback);
+    }
+
+    /**
+     * Every match in the document, or in {@code columns} if given, each with its
+     * own expanded replacement.
+     */
+    public static RegexSearch planReplaceAll(Document doc, Pattern pattern, ColumnRange columns, String replacement,
+                                             Callback<ReplaceAllEdit.Plan> callback) {
+        boolean literal = replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0;
+        return start(doc, text -> {
+            ReplaceAllEdit.Plan plan = new ReplaceAllEdit.Plan(null, literal ? replacement : null);
+            Matcher m = pattern.matcher(text);
+            if (columns != null) {
+                columns.forEachMatch(doc, null, m, 0, Integer.MAX_VALUE, (start, end) -> {
+                    plan.add(doc, start, end, literal ? null : expand(m, replacement));
+                    return true;
+                });
+                return plan;
+            }
+            while (m.find()) {
+                plan.add(doc, m.start(), m.end(), literal ? null : expand(m, replacement));
+            }
+            return plan;
+        }, callback);
+    }
+
+    /**
+     * Every literal match in the document, or in {@code columns} if given, made
+     * into a Replace All plan on a worker the same way. The search has to be
+     * one of the caller's own, since it is used on the worker.
+     */
+    public static RegexSearch planReplaceAll(Document doc, DocumentSearch search, ColumnRange columns,
+                                             String replacement, Callback<ReplaceAllEdit.Plan> callback) {
+        return start(doc, (text, cancelled) -> ReplaceAllEdit.plan(doc, search, columns, replacement, cancelled),
+                     callback);
+    }
+
+    /** Stop the search. Its callback won't be called. */
+    public void cancel() {
+        dropped = true;
+        cancelled = true;
+    }
+
+    private static <T> RegexSearch start(Document doc, Function<CharSequence, T> work, Callback<T> callback) {
+        return start(doc, (text, cancelled) -> work.apply(text), callback);
+    }
+
+    private static <T> RegexSearch start(Document doc, BiFunction<CharSequence, BooleanSupplier, T> work,
+                                         Callback<T> callback) {
+        RegexSearch search = new RegexSearch(doc);
+        doc.addDocumentListener(search.editWatcher);
+        DocumentCharSequence text = new DocumentCharSequence(doc, () -> search.cancelled);
+        Thread worker = new Thread(null, () -> {
+            T result = null;
+            String error = null;
+            try {
+                result = work.apply(text, () -> search.cancelled);
+            } catch (CancellationException ex) {
+                // Cancelled or edited; finish() sorts out which
+            } catch (StackOverflowError ex) {
+                error = "The expression is too complex to match here";
+            } catch (RuntimeException ex) {
+                // Bad group references in the replacement land here
+                error = ex.getMessage();
+            }
+            T found = result;
+            String message = error;
+            SwingUtilities.invokeLater(() -> search.finish(found, message, callback));
+        }, "RegexSearch", STACK_SIZE);
+        worker.setDaemon(true);
+        worker.start();
+        return search;
+    }
+
+    private <T> void finish(T result, String error, Callback<T> callback) {
+        doc.removeDocumentListener(editWatcher);
+        if (dropped) {
+            return;
+        }
+        if (edited) {
+            callback.interrupted();
+            return;
+        }
+        if (error != null) {
+            callback.failed(error);
+        } else {
+            callback.done(result);
+        }
+    }
+
+    /**
+     * The last match starting before {@code before}. Works back a block at a
+     * time, running forward through each; a match is cut short if it runs more
+     * than a block past the block it starts in.
+     */
+    private static int[] findLast(Matcher m, int length, int before) {
+        int blockEnd = Math.min(before, length + 1);
+        while (blockEnd > 0) {
+            int blockStart = Math.max(0, blockEnd - BACKWARD_BLOCK);
+            m.region(blockStart, Math.min(length, blockEnd + BACKWARD_BLOCK));
+            m.useTransparentBounds(true).useAnchoringBounds(false);
+            int[] found = null;
+            while (m.find() && m.start() < blockEnd) {
+                found = new int[] {m.start(), m.end()};
+            }
+            if (found != null) {
+                return found;
+            }
+            blockEnd = blockStart;
+        }
+        return null;
+    }
+
+    /**
+     * The replacement for the current match, with {@code $n} and {@code ${name}}
+     * filled in and {@code \} quoting the next char, as in
+     * {@link Matcher#appendReplacement}. Done here because that method also
+     * copies all the text since the previous match.
+     */
+    static String expand(Matcher m, String replacement) {
+        StringBuilder out = new StringBuilder();
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Nothing after \\ in the replacement");
+                }
+                out.append(replacement.charAt(i++));
+            } else if (c == '$') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Group number or name missing after $ in the replacement");
+                }
+                String group;
+                if (replacement.charAt(i) == '{') {
+                    int close = replacement.indexOf('}', i);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("Missing } after ${ in the replacement");
+                    }
+                    group = m.group(replacement.substring(i + 1, close));
+                    i = close + 1;
+                } else {
+                    int number = Character.digit(replacement.charAt(i), 10);
+                    if (number < 0) {
+                        throw new IllegalArgumentException("Group number or name missing after $ in the replacement");
+                    }
+                    i++;
+                    // Further digits count while they still make a group number that exists
+                    while (i < replacement.length()) {
+                        int digit = Character.digit(replacement.charAt(i), 10);
+                        if (digit < 0 || number * 10 + digit > m.groupCount()) {
+                            break;
+                        }
+                        number = number * 10 + digit;
+                        i++;
+                    }
+                    if (number > m.groupCount()) {
+                        throw new IllegalArgumentException("No group " + number + " in the expression");
+                    }
+                    group = m.group(number);
+                }
+                if (group != null) {
+                    out.append(group);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,415 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Caret;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.Document;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Replace All as one document edit and one undo step.
+ *
+ * The matches are collected into a {@link Plan} first, in a single pass of a
+ * {@link DocumentSearch} or a regular expression. The text from the first match
+ * to the end of the last is then rebuilt once, with the replacements in place,
+ * and swapped in by a single {@code replace}, so the views and listeners see one
+ * change however many matches there were. In a {@link MappedDocument} each match
+ * is replaced on its own instead, so the text between them stays mapped.
+ *
+ * The undo entry keeps only the plan: match offsets, plus the matched text and
+ * the replacements where these differ from match to match. Undo and redo
+ * rebuild the span from the document the same way, rather than holding on to
+ * copies of it. An edit may also cover just a run of the plan's matches, which
+ * is how {@link ReplaceAllTask} carries a plan out a slice at a time.
+ */
+public class ReplaceAllEdit extends AbstractUndoableEdit implements CompactUndoManager.SizedEdit {
+    private final EditorPane editor;
+    private final Plan plan;
+    // The matches this edit covers, and how far those before them have moved the text
+    private final int from;
+    private final int to;
+    private final int shift;
+
+    /**
+     * The matches to replace and the text that goes in place of each, recorded
+     * before the document changes. Offsets are ascending and matches don't
+     * overlap; a match may be empty.
+     */
+    public static final class Plan {
+        private int count;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        // Each is either one text for every match, or every match's own text end to end
+        private final String fixedOriginal;
+        private final StringBuilder originals;
+        private int[] originalEnds;
+        private final String fixedReplacement;
+        private final StringBuilder replacements;
+        private int[] replacementEnds;
+        private final Segment segment = new Segment();
+
+        /**
+         * An empty plan. Pass the text every match will have, if known, and the
+         * replacement if it is the same for every match; each null means the
+         * text is recorded per match.
+         */
+        public Plan(String fixedOriginal, String fixedReplacement) {
+            this.fixedOriginal = fixedOriginal;
+            this.fixedReplacement = fixedReplacement;
+            originals = fixedOriginal == null ? new StringBuilder() : null;
+            originalEnds = fixedOriginal == null ? new int[16] : null;
+            replacements = fixedReplacement == null ? new StringBuilder() : null;
+            replacementEnds = fixedReplacement == null ? new int[16] : null;
+            segment.setPartialReturn(true);
+        }
+
+        /**
+         * Add the match [start, end) of {@code doc}, which may be read off the
+         * EDT. {@code replacement} is ignored when the plan has a fixed one.
+         */
+        public void add(Document doc, int start, int end, CharSequence replacement) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                if (originalEnds != null) {
+                    originalEnds = Arrays.copyOf(originalEnds, count * 2);
+                }
+                if (replacementEnds != null) {
+                    replacementEnds = Arrays.copyOf(replacementEnds, count * 2);
+                }
+            }
+            starts[count] = start;
+            ends[count] = end;
+            if (originals != null) {
+                append(doc, start, end, originals, segment);
+                originalEnds[count] = originals.length();
+            }
+            if (replacements != null) {
+                replacements.append(replacement);
+                replacementEnds[count] = replacements.length();
+            }
+            count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /** Roughly the bytes its offsets and texts take. */
+        long getMemoryUsed() {
+            long bytes = 8L * starts.length;
+            if (originals != null) {
+                bytes += 2L * originals.capacity() + 4L * originalEnds.length;
+            }
+            if (replacements != null) {
+                bytes += 2L * replacements.capacity() + 4L * replacementEnds.length;
+            }
+            return bytes;
+        }
+
+        int getStart(int i) {
+            return starts[i];
+        }
+
+        int getEnd(int i) {
+            return ends[i];
+        }
+
+        private int originalLength(int i) {
+            return ends[i] - starts[i];
+        }
+
+        private int replacementLength(int i) {
+            if (fixedReplacement != null) {
+                return fixedReplacement.length();
+            }
+            return replacementEnds[i] - (i == 0 ? 0 : replacementEnds[i - 1]);
+        }
+
+        private void appendOriginal(int i, StringBuilder out) {
+            if (fixedOriginal != null) {
+                out.append(fixedOriginal);
+            } else {
+                out.append(originals, i == 0 ? 0 : originalEnds[i - 1], originalEnds[i]);
+            }
+        }
+
+        private void appendReplacement(int i, StringBuilder out) {
+            if (fixedReplacement != null) {
+                out.append(fixedReplacement);
+            } else {
+                out.append(replacements, i == 0 ? 0 : replacementEnds[i - 1], replacementEnds[i]);
+            }
+        }
+    }
+
+    private ReplaceAllEdit(EditorPane editor, Plan plan, int from, int to, int shift) {
+        this.editor = editor;
+        this.plan = plan;
+        this.from = from;
+        this.to = to;
+        this.shift = shift;
+    }
+
+    /** Every literal match in the document, each to be replaced by {@code replacement}. */
+    public static Plan plan(Document doc, DocumentSearch search, String replacement) {
+        return plan(doc, search, null, replacement);
+    }
+
+    /** Like {@link #plan(Document, DocumentSearch, String)}, taking only the matches in {@code columns} if given. */
+    public static Plan plan(Document doc, DocumentSearch search, ColumnRange columns, String replacement) {
+        return plan(doc, search, columns, replacement, () -> false);
+    }
+
+    /**
+     * The same, for a worker thread: throws CancellationException, between
+     * matches, once {@code cancelled} says so.
+     */
+    static Plan plan(Document doc, DocumentSearch search, ColumnRange columns, String replacement,
+                     BooleanSupplier cancelled) {
+        // Without match case the matched text has to be kept for undo
+        Plan plan = new Plan(search.isMatchCase() ? search.getPattern() : null, replacement);
+        int m = search.length();
+        if (columns != null) {
+            columns.forEachMatch(doc, search, null, 0, Integer.MAX_VALUE, (start, end) -> {
+                plan.add(doc, start, end, null);
+                return !cancelled.getAsBoolean();
+            });
+        } else {
+            for (int found = search.findNext(doc, 0); found >= 0 && !cancelled.getAsBoolean();
+                 found = search.findNext(doc, found + m)) {
+                plan.add(doc, found, found + m, null);
+            }
+        }
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException();
+        }
+        return plan;
+    }
+
+    /**
+     * Replace every match in the editor's document. Returns the edit, which the
+     * caller adds to the undo history, or null if nothing matched.
+     */
+    public static ReplaceAllEdit replaceAll(EditorPane editor, DocumentSearch search, String replacement) {
+        return apply(editor, plan(editor.getDocument(), search, replacement));
+    }
+
+    /**
+     * Carry out a plan made against the editor's document as it is now. Returns
+     * the edit, for the caller to add to the undo history, or null if the plan
+     * is empty.
+     */
+    public static ReplaceAllEdit apply(EditorPane editor, Plan plan) {
+        if (plan.count == 0) {
+            return null;
+        }
+        ReplaceAllEdit edit = new ReplaceAllEdit(editor, plan, 0, plan.count, 0);
+        edit.apply(true);
+        return edit;
+    }
+
+    /**
+     * Put in the plan's matches [from, to), when those before them are in
+     * already and have moved the text by {@code shift}. Returns the edit, for
+     * the caller to undo or keep, along with where the next run starts from.
+     */
+    static ReplaceAllEdit applyRange(EditorPane editor, Plan plan, int from, int to, int shift) {
+        ReplaceAllEdit edit = new ReplaceAllEdit(editor, plan, from, to, shift);
+        edit.apply(true);
+        return edit;
+    }
+
+    /** How far the text after this edit's matches has moved, counting the matches before them. */
+    int getShiftAfter() {
+        int after = shift;
+        for (int i = from; i < to; i++) {
+            after += plan.replacementLength(i) - plan.originalLength(i);
+        }
+        return after;
+    }
+
+    /**
+     * Carry out a plan with one ordinary replace per match, back to front, undone
+     * as a single step. For documents that check each edit on its own, such as
+     * a {@link FixedRecordDocument}. Returns the number of replacements made;
+     * a match whose replacement doesn't fit its record is left as it is.
+     */
+    public static int replaceEach(EditorPane editor, Plan plan) {
+        int[] made = new int[1];
+        editor.runAsSingleEdit(() -> made[0] = replaceEach(editor.getDocument(), plan, 0, plan.count));
+        return made[0];
+    }
+
+    /**
+     * Replace the plan's matches [from, to) one by one, back to front; those
+     * after them may be replaced already. Returns how many were replaced.
+     */
+    static int replaceEach(Document doc, Plan plan, int from, int to) {
+        javax.swing.text.AbstractDocument document = (javax.swing.text.AbstractDocument) doc;
+        StringBuilder replacement = new StringBuilder();
+        int made = 0;
+        for (int i = to - 1; i >= from; i--) {
+            replacement.setLength(0);
+            plan.appendReplacement(i, replacement);
+            try {
+                if (document instanceof FixedRecordDocument) {
+                    if (((FixedRecordDocument) document).tryReplace(plan.starts[i], plan.originalLength(i),
+                                                                     replacement.toString(), null)) {
+                        made++;
+                    }
+                } else {
+                    document.replace(plan.starts[i], plan.originalLength(i), replacement.toString(), null);
+                    made++;
+                }
+            } catch (BadLocationException e) {
+                // The plan was made against this document
+                throw new IllegalStateException(e);
+            }
+        }
+        return made;
+    }
+
+    public int getCount() {
+        return to - from;
+    }
+
+    @Override
+    public long getMemoryUsed() {
+        // Edits of one run may share a plan, but only the one covering it all is kept for undo
+        return plan.getMemoryUsed();
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+        super.undo();
+        apply(false);
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+        super.redo();
+        apply(true);
+    }
+
+    @Override
+    public String getPresentationName() {
+        return "Replace All";
+    }
+
+    /** Put the replacements in ({@code forward}) or take them back out. */
+    private void apply(boolean forward) {
+        Document doc = editor.getDocument();
+        if (doc instanceof MappedDocument) {
+            applyEach((MappedDocument) doc, forward);
+            return;
+        }
+        int spanStart = plan.starts[from] + this.shift;
+        // Offsets in the plan are before replacing; once replaced, each match has
+        // moved by how much the replacements before it grew or shrank the text
+        int shift = this.shift;
+        StringBuilder text = new StringBuilder();
+        Segment segment = new Segment();
+        segment.setPartialReturn(true);
+        int copied = spanStart;
+        for (int i = from; i < to; i++) {
+            int start = plan.starts[i] + (forward ? this.shift : shift);
+            append(doc, copied, start, text, segment);
+            if (forward) {
+                plan.appendReplacement(i, text);
+                copied = start + plan.originalLength(i);
+            } else {
+                plan.appendOriginal(i, text);
+                copied = start + plan.replacementLength(i);
+            }
+            shift += plan.replacementLength(i) - plan.originalLength(i);
+        }
+        int spanEnd = copied;
+
+        // This edit is the undo entry; the document's own would copy the whole span
+        editor.disableUndoTracking();
+        try {
+            if (doc instanceof javax.swing.text.AbstractDocument) {
+                ((javax.swing.text.AbstractDocument) doc).replace(spanStart, spanEnd - spanStart, text.toString(), null);
+            } else {
+                doc.remove(spanStart, spanEnd - spanStart);
+                doc.insertString(spanStart, text.toString(), null);
+            }
+        } catch (BadLocationException ex) {
+            // The offsets were taken from this document, and undo keeps it in step
+            throw new IllegalStateException(ex);
+        } finally {
+            editor.enableUndoTracking();
+        }
+    }
+
+    /**
+     * Replace match by match, back to front, so the text between the matches
+     * stays in the file's mapped pieces rather than being copied to the heap.
+     */
+    private void applyEach(MappedDocument doc, boolean forward) {
+        // Going back to front, the matches before the one being replaced have moved by this much
+        int shift = forward ? this.shift : getShiftAfter();
+        StringBuilder text = new StringBuilder();
+        // The caret would otherwise jump to every replacement, and post events for each
+        Caret caret = editor.getCaret();
+        DefaultCaret defaultCaret = caret instanceof DefaultCaret ? (DefaultCaret) caret : null;
+        int policy = defaultCaret != null ? defaultCaret.getUpdatePolicy() : DefaultCaret.UPDATE_WHEN_ON_EDT;
+        Position dot;
+        Position mark;
+        try {
+            dot = doc.createPosition(caret.getDot());
+            mark = doc.createPosition(caret.getMark());
+        } catch (BadLocationException ex) {
+            // The caret is always inside the document
+            throw new IllegalStateException(ex);
+        }
+        if (defaultCaret != null) {
+            defaultCaret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        }
+        editor.disableUndoTracking();
+        try {
+            for (int i = to - 1; i >= from; i--) {
+                int delta = plan.replacementLength(i) - plan.originalLength(i);
+                text.setLength(0);
+                if (forward) {
+                    plan.appendReplacement(i, text);
+                    doc.replace(plan.starts[i] + shift, plan.originalLength(i), text.toString(), null);
+                } else {
+                    shift -= delta;
+                    plan.appendOriginal(i, text);
+                    doc.replace(plan.starts[i] + shift, plan.replacementLength(i), text.toString(), null);
+                }
+            }
+        } catch (BadLocationException ex) {
+            // The offsets were taken from this document, and undo keeps it in step
+            throw new IllegalStateException(ex);
+        } finally {
+            editor.enableUndoTracking();
+            if (defaultCaret != null) {
+                defaultCaret.setUpdatePolicy(policy);
+            }
+            caret.setDot(mark.getOffset());
+            caret.moveDot(dot.getOffset());
+        }
+    }
+
+    private static void append(Document doc, int from, int to, StringBuilder out, Segment segment) {
+        try {
+            while (from < to) {
+                doc.getText(from, to - from, segment);
+                out.append(segment.array, segment.offset, segment.count);
+                from += segment.count;
+            }
+        } catch (BadLocationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.text.Document;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoableEdit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Replace All in the background, for documents with a great many matches.
+ *
+ * The plan is made on a worker by {@link RegexSearch}, and then carried out on
+ * the EDT by a Swing Timer, a slice of matches per tick and a few milliseconds
+ * of work at most, so the window keeps painting and the Cancel link keeps
+ * working. Each slice is one {@link ReplaceAllEdit} over its run of matches
+ * (one replace per match, back to front, for a {@link FixedRecordDocument}).
+ * The editor is locked meanwhile, undo and redo included; a change that gets
+ * past it, such as a file loaded into the same document, ends the task.
+ * Cancelling undoes the slices done so far, again a tick at a time; finishing
+ * puts the slices in the undo history as one step, which undo and redo carry
+ * out slice by slice, so no edit copies more than a slice's span of text. If
+ * the text is changed under the task, the slices done so far become that step.
+ */
+public final class ReplaceAllTask {
+    private static final int TICK_BUDGET_MS = 25;
+    private static final int SLICE_MATCHES = 4096; // At most
+    private static final int SLICE_CHARS = 256 * 1024;
+
+    /** Hears how it went, on the EDT. */
+    public interface Listener {
+        void progress(int done, int total);
+        /**
+         * Done, as one undo step: {@code count} matches replaced, and
+         * {@code skipped} left as they were because the replacement didn't fit
+         * their record.
+         */
+        void finished(int count, int skipped);
+        /** Stopped, and the document is back as it was. */
+        void cancelled();
+        void failed(String message);
+    }
+
+    private final EditorPane editor;
+    private final Document doc;
+    private final Listener listener;
+    private final boolean eachOnItsOwn; // Replace match by match, for a FixedRecordDocument
+    private RegexSearch planning;
+    private ReplaceAllEdit.Plan plan;
+    private Timer timer;
+    private boolean rollingBack;
+    private boolean applying; // Our own changes, as opposed to someone else's
+    private boolean changedUnder;
+    private final DocumentListener changeWatcher = new DocumentListener() {
+        @Override
+        public void insertUpdate(DocumentEvent e) { noteChange(); }
+        @Override
+        public void removeUpdate(DocumentEvent e) { noteChange(); }
+        @Override
+        public void changedUpdate(DocumentEvent e) { }
+    };
+    private final List<UndoableEdit> slices = new ArrayList<>();
+    private int done = 0; // Matches gone through
+    private int replaced = 0; // Of those, how many were replaced
+    private int shift = 0; // How far they have moved the text after them
+    private int sliceMatches = 64; // Grows or shrinks to what fits in a tick
+
+    private ReplaceAllTask(EditorPane editor, Listener listener) {
+        this.editor = editor;
+        this.doc = editor.getDocument();
+        this.listener = listener;
+        this.eachOnItsOwn = doc instanceof FixedRecordDocument;
+    }
+
+    /** Replace every match of a literal search; the search is used on a worker, so pass one of your own. */
+    public static ReplaceAllTask start(EditorPane editor, DocumentSearch search, ColumnRange columns,
+                                       String replacement, Listener listener) {
+        ReplaceAllTask task = new ReplaceAllTask(editor, listener);
+        task.planning = RegexSearch.planReplaceAll(task.doc, search, columns, replacement, task.planned());
+        return task;
+    }
+
+    /** Replace every match of a regular expression, filling in group references. */
+    public static ReplaceAllTask start(EditorPane editor, Pattern pattern, ColumnRange columns,
+                                       String replacement, Listener listener) {
+        ReplaceAllTask task = new ReplaceAllTask(editor, listener);
+        task.planning = RegexSearch.planReplaceAll(task.doc, pattern, columns, replacement, task.planned());
+        return task;
+    }
+
+    /**
+     * Stop. Before the replacing starts nothing has changed; after, what was
+     * replaced is put back and the listener hears {@code cancelled} once it is.
+     */
+    public void cancel() {
+        if (planning != null) {
+            planning.cancel();
+            planning = null;
+            listener.cancelled();
+        } else if (timer != null && !rollingBack) {
+            rollingBack = true;
+        }
+    }
+
+    private RegexSearch.Callback<ReplaceAllEdit.Plan> planned() {
+        return new RegexSearch.Callback<ReplaceAllEdit.Plan>() {
+            @Override
+            public void done(ReplaceAllEdit.Plan result) {
+                planning = null;
+                if (result.getCount() == 0) {
+                    listener.finished(0, 0);
+                    return;
+                }
+                plan = result;
+                editor.setBusy(true);
+                doc.addDocumentListener(changeWatcher);
+                timer = new Timer(1, e -> tick());
+                timer.start();
+            }
+
+            @Override
+            public void failed(String message) {
+                planning = null;
+                listener.failed(message);
+            }
+
+            @Override
+            public void interrupted() {
+                // Nothing was replaced yet, so this is as good as a cancel
+                planning = null;
+                listener.cancelled();
+            }
+        };
+    }
+
+    private void noteChange() {
+        if (!applying && !changedUnder) {
+            changedUnder = true;
+            // Document listeners hear of a change before the undo history does, so the
+            // slices go in ahead of it and are undone after it, as they were made
+            addToHistory();
+        }
+    }
+
+    private void tick() {
+        if (editor.getDocument() != doc) {
+            // Another file was opened under it; the slices belong to text that is gone
+            stop();
+            slices.clear();
+            listener.failed("Another file was opened while Replace All was running");
+            return;
+        }
+        if (changedUnder) {
+            // The offsets of the matches still to do no longer hold; what was done is in the history
+            stop();
+            listener.failed("The text was changed while Replace All was running; "
+                + "the replacements made so far can be undone as one step");
+            return;
+        }
+        long deadline = System.currentTimeMillis() + TICK_BUDGET_MS;
+        int total = plan.getCount();
+        do {
+            if (rollingBack) {
+                if (slices.isEmpty()) {
+                    stop();
+                    listener.cancelled();
+                    return;
+                }
+                UndoableEdit slice = slices.remove(slices.size() - 1);
+                applying = true;
+                try {
+                    slice.undo();
+                } finally {
+                    applying = false;
+                }
+            } else if (done < total) {
+                long started = System.nanoTime();
+                applying = true;
+                try {
+                    applySlice();
+                } finally {
+                    applying = false;
+                }
+                resize((System.nanoTime() - started) / 1_000_000);
+            }
+        } while (System.currentTimeMillis() < deadline && (rollingBack || done < total));
+
+        if (!rollingBack && done == total) {
+            stop();
+            addToHistory();
+            listener.finished(replaced, total - replaced);
+        } else if (!rollingBack) {
+            listener.progress(done, total);
+        }
+    }
+
+    private void applySlice() {
+        int total = plan.getCount();
+        if (eachOnItsOwn) {
+            // Back to front, so the offsets of the matches still to do hold
+            int to = total - done;
+            int from = sliceStart(to);
+            CompoundEdit slice = new CompoundEdit();
+            UndoableEditListener collector = e -> slice.addEdit(e.getEdit());
+            editor.disableUndoTracking();
+            doc.addUndoableEditListener(collector);
+            try {
+                replaced += ReplaceAllEdit.replaceEach(doc, plan, from, to);
+            } finally {
+                doc.removeUndoableEditListener(collector);
+                editor.enableUndoTracking();
+                slice.end();
+            }
+            slices.add(slice);
+            done += to - from;
+        } else {
+            int to = sliceEnd(done);
+            ReplaceAllEdit slice = ReplaceAllEdit.applyRange(editor, plan, done, to, shift);
+            slices.add(slice);
+            shift = slice.getShiftAfter();
+            replaced += to - done;
+            done = to;
+        }
+    }
+
+    /**
+     * Size the next slice by how long the last one took. A replace can cost
+     * anything from next to nothing to a millisecond or more, depending on the
+     * document and how many edits it already holds.
+     */
+    private void resize(long ms) {
+        if (ms > TICK_BUDGET_MS) {
+            sliceMatches = Math.max(1, sliceMatches / 2);
+        } else if (ms < TICK_BUDGET_MS / 2) {
+            sliceMatches = Math.min(SLICE_MATCHES, sliceMatches * 2);
+        }
+    }
+
+    /** The end of a slice that starts at match {@code from}. */
+    private int sliceEnd(int from) {
+        int limit = Math.min(plan.getCount(), from + sliceMatches);
+        int to = from + 1;
+        while (to < limit && plan.getEnd(to) - plan.getStart(from) <= SLICE_CHARS) {
+            to++;
+        }
+        return to;
+    }
+
+    /** The start of a slice that ends before match {@code to}. */
+    private int sliceStart(int to) {
+        int limit = Math.max(0, to - sliceMatches);
+        int from = to - 1;
+        while (from > limit && plan.getEnd(to - 1) - plan.getStart(from - 1) <= SLICE_CHARS) {
+            from--;
+        }
+        return from;
+    }
+
+    private void addToHistory() {
+        if (replaced > 0 && !slices.isEmpty()) {
+            // A record file's slices hold an edit object of the document's per match; the others share the plan
+            SlicedReplaceAll all = new SlicedReplaceAll(eachOnItsOwn
+                ? (long) replaced * CompactUndoManager.OTHER_EDIT_BYTES : plan.getMemoryUsed());
+            for (UndoableEdit slice : slices) {
+                all.addEdit(slice);
+            }
+            all.end();
+            editor.getUndoManager().addEdit(all);
+        }
+        // Otherwise every match was refused, and there is nothing to undo
+        slices.clear();
+    }
+
+    /** The slices of a Replace All as one undo step, undone last slice first. */
+    private static final class SlicedReplaceAll extends CompoundEdit implements CompactUndoManager.SizedEdit {
+        private final long memory;
+
+        SlicedReplaceAll(long memory) {
+            this.memory = memory;
+        }
+
+        @Override
+        public long getMemoryUsed() {
+            return memory;
+        }
+
+        @Override
+        public String getPresentationName() {
+            return "Replace All";
+        }
+    }
+
+    private void stop() {
+        timer.stop();
+        doc.removeDocumentListener(changeWatcher);
+        editor.setBusy(false);
+    }
+}
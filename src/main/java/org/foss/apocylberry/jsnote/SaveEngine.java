@@ -0,0 +1,308 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes documents to disk off the EDT.
+ *
+ * A save takes a {@link Snapshot} of the document on the EDT, which is cheap
+ * compared to encoding and writing, then encodes it on a background thread into a
+ * temporary file next to the target and renames that over the target. A failed
+ * or interrupted save therefore never leaves a half-written file behind.
+ *
+ * The file is written in the document's {@link TextEncoding}: its charset, its
+ * byte order mark if it had one, and its line separator in place of '\n'. For
+ * fixed-length records the '\n' after each record is dropped instead.
+ */
+public class SaveEngine {
+
+    /** Text frozen at the moment a save was requested. */
+    public interface Snapshot {
+        int length();
+
+        /** Copy up to {@code len} chars starting at {@code offset}; returns how many were copied. */
+        int read(int offset, char[] dst, int dstOffset, int len) throws IOException;
+
+        /** Put the written temp file in place of the target. */
+        default void replace(Path temp, Path target) throws IOException {
+            move(temp, target);
+        }
+    }
+
+    /** A step of a save that may fail. */
+    interface FileAction {
+        void run() throws IOException;
+    }
+
+    /** Receives save events on the EDT. */
+    public interface Callback {
+        void progress(int percent);
+        void saved(Path target);
+        void failed(Path target, IOException ex);
+    }
+
+    private static final int BLOCK_CHARS = 1024 * 1024;
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "FileSaver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Take a snapshot of a document. A MappedDocument only copies its piece list;
+     * anything else is copied into blocks of chars, never into a single String.
+     * Call on the EDT.
+     */
+    public static Snapshot snapshot(Document doc) {
+        if (doc instanceof MappedDocument) {
+            return ((MappedDocument) doc).snapshot();
+        }
+        List<char[]> blocks = new ArrayList<>();
+        int[] total = new int[1];
+        doc.render(() -> {
+            Segment segment = new Segment();
+            segment.setPartialReturn(true);
+            int length = doc.getLength();
+            int offset = 0;
+            char[] block = null;
+            int used = 0;
+            try {
+                while (offset < length) {
+                    doc.getText(offset, length - offset, segment);
+                    int from = 0;
+                    while (from < segment.count) {
+                        if (block == null || used == block.length) {
+                            block = new char[Math.min(BLOCK_CHARS, length - offset - from)];
+                            blocks.add(block);
+                            used = 0;
+                        }
+                        int n = Math.min(segment.count - from, block.length - used);
+                        System.arraycopy(segment.array, segment.offset + from, block, used, n);
+                        used += n;
+                        from += n;
+                    }
+                    offset += segment.count;
+                }
+            } catch (BadLocationException ex) {
+                // Cannot happen while the document is locked for reading
+                throw new IllegalStateException(ex);
+            }
+            total[0] = length;
+        });
+        return new BlockSnapshot(blocks, total[0]);
+    }
+
+    /** Save a snapshot in the background. Saves run one at a time, in the order requested. */
+    public void save(Snapshot snapshot, Path target, TextEncoding encoding, Callback callback) {
+        executor.execute(() -> {
+            try {
+                write(snapshot, target, encoding, percent ->
+                    SwingUtilities.invokeLater(() -> callback.progress(percent)));
+                SwingUtilities.invokeLater(() -> callback.saved(target));
+            } catch (IOException ex) {
+                SwingUtilities.invokeLater(() -> callback.failed(target, ex));
+            } catch (RuntimeException ex) {
+                IOException wrapped = new IOException(ex.toString(), ex);
+                SwingUtilities.invokeLater(() -> callback.failed(target, wrapped));
+            }
+        });
+    }
+
+    /** Run a task on the save thread once every save requested so far has finished. */
+    public void afterPendingSaves(Runnable task) {
+        executor.execute(task);
+    }
+
+    private static void write(Snapshot snapshot, Path target, TextEncoding encoding,
+                              java.util.function.IntConsumer progress) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, target.getFileName().toString() + ".", ".tmp");
+        try {
+            CharsetEncoder encoder = encoding.getCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                DiskText text = new DiskText(snapshot, encoding);
+                ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+                CharBuffer in = CharBuffer.allocate(BLOCK_CHARS);
+                in.limit(0);
+                int lastPercent = -1;
+                while (true) {
+                    // Refill, keeping any char the encoder left behind (half a surrogate pair)
+                    in.compact();
+                    text.fill(in);
+                    in.flip();
+                    boolean endOfInput = text.isDone();
+                    CoderResult result = encoder.encode(in, out, endOfInput);
+                    while (result.isOverflow()) {
+                        drain(channel, out);
+                        result = encoder.encode(in, out, endOfInput);
+                    }
+                    if (result.isError()) {
+                        result.throwException();
+                    }
+                    if (endOfInput) {
+                        while (encoder.flush(out).isOverflow()) {
+                            drain(channel, out);
+                        }
+                        drain(channel, out);
+                        break;
+                    }
+                    int percent = text.getPercentDone();
+                    if (percent != lastPercent) {
+                        lastPercent = percent;
+                        progress.accept(percent);
+                    }
+                }
+                channel.force(false);
+            }
+            copyPermissions(target, temp);
+            snapshot.replace(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static void move(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /** Temp files are created owner-only; give the replacement the target's permissions. */
+    private static void copyPermissions(Path target, Path temp) {
+        if (!Files.exists(target)
+            || Files.getFileAttributeView(target, PosixFileAttributeView.class) == null) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+        } catch (IOException | UnsupportedOperationException ex) {
+            System.err.println("Could not copy permissions of " + target + ": " + ex.getMessage());
+        }
+    }
+
+    /** A snapshot as it goes to disk: byte order mark, then text with the file's line separator. */
+    private static final class DiskText {
+        private final Snapshot snapshot;
+        private final char[] separator;
+        private final int recordLength;
+        private final char[] raw = new char[8192];
+        private final int length;
+        private int offset = 0;
+        private boolean bomPending;
+
+        DiskText(Snapshot snapshot, TextEncoding encoding) throws IOException {
+            this.snapshot = snapshot;
+            this.separator = encoding.getLineSeparator().toCharArray();
+            this.recordLength = encoding.getRecordLength();
+            this.length = snapshot.length();
+            this.bomPending = encoding.hasBom();
+            if (recordLength > 0 && length > 0 && (length + 1) % (recordLength + 1) != 0) {
+                throw new IOException("The text is not a whole number of " + recordLength + "-byte records");
+            }
+        }
+
+        void fill(CharBuffer out) throws IOException {
+            if (bomPending && out.hasRemaining()) {
+                out.put('\uFEFF');
+                bomPending = false;
+            }
+            if (recordLength > 0) {
+                fillRecords(out);
+                return;
+            }
+            // Each char read may expand to a whole separator
+            while (offset < length && out.remaining() >= separator.length) {
+                int max = Math.min(raw.length, Math.min(out.remaining() / separator.length, length - offset));
+                int n = snapshot.read(offset, raw, 0, max);
+                for (int i = 0; i < n; i++) {
+                    char c = raw[i];
+                    if (c == '\n') {
+                        out.put(separator);
+                    } else {
+                        out.put(c);
+                    }
+                }
+                offset += n;
+            }
+        }
+
+        /** Drop the '\n' after each record; any other '\n' is data. */
+        private void fillRecords(CharBuffer out) throws IOException {
+            while (offset < length && out.hasRemaining()) {
+                int n = snapshot.read(offset, raw, 0, Math.min(raw.length, Math.min(out.remaining(), length - offset)));
+                for (int i = 0; i < n; i++) {
+                    if ((offset + i) % (recordLength + 1) == recordLength) {
+                        if (raw[i] != '\n') {
+                            throw new IOException("Record " + ((offset + i) / (recordLength + 1) + 1)
+                                + " is longer than " + recordLength);
+                        }
+                    } else {
+                        out.put(raw[i]);
+                    }
+                }
+                offset += n;
+            }
+        }
+
+        boolean isDone() {
+            return !bomPending && offset >= length;
+        }
+
+        int getPercentDone() {
+            return length == 0 ? 100 : (int) ((long) offset * 100 / length);
+        }
+    }
+
+    private static final class BlockSnapshot implements Snapshot {
+        private final List<char[]> blocks;
+        private final int length;
+
+        BlockSnapshot(List<char[]> blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int read(int offset, char[] dst, int dstOffset, int len) {
+            // Every block but the last is exactly BLOCK_CHARS long
+            char[] block = blocks.get(offset / BLOCK_CHARS);
+            int inBlock = offset % BLOCK_CHARS;
+            int n = Math.min(len, block.length - inBlock);
+            System.arraycopy(block, inBlock, dst, dstOffset, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * The marks drawn over spaces, tabs and line ends when special characters are
+ * shown, for whichever view is painting the text.
+ */
+final class SpecialCharacterMarks {
+    static final Color MARK_COLOR = new Color(128, 128, 128, 180); // Semi-transparent gray
+
+    private SpecialCharacterMarks() {
+    }
+
+    /** Whether {@code c} gets a mark. */
+    static boolean isMarked(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /** Draw the mark for {@code c} centered in {@code charBounds}, in the graphics' current color. */
+    static void paint(Graphics2D g2d, char c, Rectangle charBounds) {
+        int centerX = charBounds.x + charBounds.width / 2;
+        int centerY = charBounds.y + charBounds.height / 2;
+
+        switch (c) {
+            case ' ':
+                // Middle dot for space - truly centered in the space width
+                g2d.fillOval(centerX - 1, centerY - 1, 2, 2);
+                break;
+            case '\t':
+                // Right arrow for tab - centered horizontally in the field
+                g2d.drawLine(centerX - 3, centerY, centerX + 3, centerY);
+                // Right-pointing arrowhead
+                g2d.drawLine(centerX + 3, centerY, centerX + 1, centerY - 2);
+                g2d.drawLine(centerX + 3, centerY, centerX + 1, centerY + 2);
+                break;
+            case '\n':
+                // Return arrow for line feed - DO NOT MODIFY
+                // Vertical line (4 units down)
+                g2d.drawLine(centerX, centerY - 3, centerX, centerY + 1);
+                // Horizontal bend to the left
+                g2d.drawLine(centerX, centerY + 1, centerX - 3, centerY + 1);
+                // Arrow head pointing left
+                g2d.drawLine(centerX - 3, centerY + 1, centerX - 1, centerY - 1);
+                g2d.drawLine(centerX - 3, centerY + 1, centerX - 1, centerY + 3);
+                break;
+            case '\r':
+                // Carriage return arrow (left facing hook)
+                g2d.drawLine(centerX + 2, centerY - 2, centerX - 2, centerY - 2);
+                g2d.drawLine(centerX - 2, centerY - 2, centerX - 2, centerY + 2);
+                g2d.drawLine(centerX - 2, centerY + 2, centerX, centerY + 2);
+                g2d.drawLine(centerX + 2, centerY, centerX - 2, centerY);
+                break;
+        }
+    }
+
+    /**
+     * The offset after the last char of the document that isn't a line end.
+     * The line ends from there on close the document and get no mark.
+     */
+    static int trailingLineEndsStart(Document doc) throws BadLocationException {
+        Segment last = new Segment();
+        int pos = doc.getLength();
+        while (pos > 0) {
+            doc.getText(pos - 1, 1, last);
+            char c = last.array[last.offset];
+            if (c != '\n' && c != '\r') {
+                break;
+            }
+            pos--;
+        }
+        return pos;
+    }
+}
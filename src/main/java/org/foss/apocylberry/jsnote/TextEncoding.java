@@ -0,0 +1,293 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * How a file's text is stored on disk: charset, byte order mark and line
+ * terminator.
+ *
+ * Documents always hold text with '\n' line ends, the way DefaultEditorKit reads
+ * it. The encoding a file was loaded with is kept on its document so a save can
+ * write the text back in the same form.
+ *
+ * A file of fixed-length records (RECFM=F) has no line terminator at all: each
+ * record is followed by a '\n' in the document that isn't written back.
+ */
+public final class TextEncoding {
+    /** Document property holding the TextEncoding of a buffer. */
+    public static final String PROPERTY = "TextEncoding";
+
+    public static final TextEncoding DEFAULT = new TextEncoding(StandardCharsets.UTF_8, false, "\n");
+
+    /** Longest fixed-length record z/OS allows. */
+    public static final int MAX_RECORD_LENGTH = 32760;
+
+    private static final int SNIFF_BYTES = 64 * 1024;
+
+    private final Charset charset;
+    private final boolean bom;
+    private final String lineSeparator;
+    private final int recordLength;
+
+    private TextEncoding(Charset charset, boolean bom, String lineSeparator) {
+        this(charset, bom, lineSeparator, 0);
+    }
+
+    private TextEncoding(Charset charset, boolean bom, String lineSeparator, int recordLength) {
+        this.charset = charset;
+        this.bom = bom;
+        this.lineSeparator = lineSeparator;
+        this.recordLength = recordLength;
+    }
+
+    /**
+     * Fixed-length records of {@code recordLength} chars with no delimiters. The
+     * charset must be single-byte, so that record N starts at byte N * LRECL.
+     */
+    public static TextEncoding fixedRecords(Charset charset, int recordLength) {
+        if (!isSingleByte(charset)) {
+            throw new IllegalArgumentException(charset.name() + " is not a single-byte character set");
+        }
+        if (recordLength <= 0 || recordLength > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Record length must be between 1 and " + MAX_RECORD_LENGTH
+                + ": " + recordLength);
+        }
+        return new TextEncoding(charset, false, "", recordLength);
+    }
+
+    public static boolean isSingleByte(Charset charset) {
+        return charset.canEncode()
+            && charset.newEncoder().maxBytesPerChar() == 1.0f
+            && charset.newDecoder().maxCharsPerByte() == 1.0f;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public boolean hasBom() {
+        return bom;
+    }
+
+    /** Number of bytes the byte order mark takes at the start of the file. */
+    public int getBomLength() {
+        if (!bom) {
+            return 0;
+        }
+        return charset.equals(StandardCharsets.UTF_8) ? 3 : 2;
+    }
+
+    /** The line terminator on disk; empty for fixed-length records. */
+    public String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    /** LRECL of a fixed-length record file, or 0 if lines are delimited. */
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * The encoding to try next if the file doesn't decode strictly with this one,
+     * or null. Detection only looks at the start of the file, so UTF-8 can turn
+     * out wrong further in; windows-1252 leaves five bytes undefined, and
+     * ISO-8859-1 maps every byte.
+     */
+    public TextEncoding getFallback() {
+        if (bom || recordLength > 0) {
+            return null;
+        }
+        if (charset.equals(StandardCharsets.UTF_8) && Charset.isSupported("windows-1252")) {
+            return new TextEncoding(Charset.forName("windows-1252"), false, lineSeparator);
+        }
+        if (!charset.equals(StandardCharsets.ISO_8859_1)) {
+            return new TextEncoding(StandardCharsets.ISO_8859_1, false, lineSeparator);
+        }
+        return null;
+    }
+
+    public String getDisplayName() {
+        String name = charset.name() + (bom ? " BOM" : "");
+        if (recordLength > 0) {
+            return name + ", RECFM=F LRECL=" + recordLength;
+        }
+        switch (lineSeparator) {
+            case "\r\n":
+                return name + ", CRLF";
+            case "\r":
+                return name + ", CR";
+            default:
+                return name + ", LF";
+        }
+    }
+
+    /**
+     * A reader over a file's bytes: skips the byte order mark, decodes strictly
+     * (malformed input is a CharacterCodingException, not U+FFFD) and turns CRLF
+     * and CR line ends into '\n'.
+     */
+    public Reader newReader(InputStream in) throws IOException {
+        return newReader(in, CodingErrorAction.REPORT);
+    }
+
+    /** Like {@link #newReader}, but bytes that don't decode become U+FFFD. */
+    public Reader newLenientReader(InputStream in) throws IOException {
+        return newReader(in, CodingErrorAction.REPLACE);
+    }
+
+    private Reader newReader(InputStream in, CodingErrorAction onError) throws IOException {
+        in.skipNBytes(getBomLength());
+        return new LineEndReader(new InputStreamReader(in, charset.newDecoder()
+            .onMalformedInput(onError)
+            .onUnmappableCharacter(onError)));
+    }
+
+    /** Read a whole file as document text. */
+    public String readText(Path path) throws IOException {
+        try (Reader in = newReader(Files.newInputStream(path))) {
+            StringBuilder text = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, Files.size(path)));
+            char[] buffer = new char[64 * 1024];
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+                text.append(buffer, 0, n);
+            }
+            return text.toString();
+        }
+    }
+
+    /** Record this encoding on a document. */
+    public void applyTo(Document doc) {
+        doc.putProperty(PROPERTY, this);
+        doc.putProperty(DefaultEditorKit.EndOfLineStringProperty, lineSeparator);
+    }
+
+    /** The encoding recorded on a document, or {@link #DEFAULT} for a new buffer. */
+    public static TextEncoding of(Document doc) {
+        Object value = doc.getProperty(PROPERTY);
+        TextEncoding encoding = value instanceof TextEncoding ? (TextEncoding) value : DEFAULT;
+        Object eol = doc.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+        if (eol instanceof String && !eol.equals(encoding.lineSeparator) && encoding.recordLength == 0) {
+            encoding = new TextEncoding(encoding.charset, encoding.bom, (String) eol);
+        }
+        return encoding;
+    }
+
+    /**
+     * Work out a file's encoding from its first few KB: a byte order mark if
+     * there is one, else UTF-8 if the bytes are valid UTF-8, else windows-1252.
+     */
+    public static TextEncoding detect(Path path) throws IOException {
+        byte[] head = new byte[SNIFF_BYTES];
+        int n = 0;
+        boolean atEnd = false;
+        try (InputStream in = Files.newInputStream(path)) {
+            while (n < head.length) {
+                int read = in.read(head, n, head.length - n);
+                if (read < 0) {
+                    atEnd = true;
+                    break;
+                }
+                n += read;
+            }
+        }
+
+        Charset charset;
+        int bomLength = 0;
+        if (n >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            charset = StandardCharsets.UTF_8;
+            bomLength = 3;
+        } else if (n >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+            charset = StandardCharsets.UTF_16LE;
+            bomLength = 2;
+        } else if (n >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+            charset = StandardCharsets.UTF_16BE;
+            bomLength = 2;
+        } else if (isValidUtf8(head, n, atEnd)) {
+            charset = StandardCharsets.UTF_8;
+        } else {
+            charset = Charset.isSupported("windows-1252") ? Charset.forName("windows-1252") : StandardCharsets.ISO_8859_1;
+        }
+
+        String sample = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .decode(ByteBuffer.wrap(head, bomLength, n - bomLength))
+            .toString();
+        return new TextEncoding(charset, bomLength > 0, detectLineSeparator(sample));
+    }
+
+    private static boolean isValidUtf8(byte[] bytes, int length, boolean atEnd) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out = CharBuffer.allocate(length);
+        // Not at the end, a sequence cut off by the sample limit is an underflow, not an error
+        return !decoder.decode(ByteBuffer.wrap(bytes, 0, length), out, atEnd).isError();
+    }
+
+    private static String detectLineSeparator(String sample) {
+        for (int i = 0; i < sample.length(); i++) {
+            char c = sample.charAt(i);
+            if (c == '\n') {
+                return "\n";
+            }
+            if (c == '\r') {
+                if (i + 1 < sample.length()) {
+                    return sample.charAt(i + 1) == '\n' ? "\r\n" : "\r";
+                }
+                return "\r\n";
+            }
+        }
+        return "\n";
+    }
+
+    /** Normalizes line ends to '\n' as the text goes by. */
+    private static final class LineEndReader extends FilterReader {
+        LineEndReader(Reader in) {
+            super(new PushbackReader(in, 1));
+        }
+
+        @Override
+        public int read() throws IOException {
+            char[] one = new char[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0];
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = in.read(cbuf, off, len);
+            if (n <= 0) {
+                return n;
+            }
+            // Compacts in place: output never gets ahead of input
+            int out = off;
+            int end = off + n;
+            for (int i = off; i < end; i++) {
+                char c = cbuf[i];
+                if (c == '\r') {
+                    if (i + 1 < end) {
+                        if (cbuf[i + 1] == '\n') {
+                            continue;
+                        }
+                    } else {
+                        // Last char read; look ahead for the '\n' of a CRLF
+                        int next = in.read();
+                        if (next >= 0 && next != '\n') {
+                            ((PushbackReader) in).unread(next);
+                        }
+                    }
+                    c = '\n';
+                }
+                cbuf[out++] = c;
+            }
+            return out - off;
+        }
+    }
+}
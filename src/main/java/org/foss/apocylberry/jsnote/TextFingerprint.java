@@ -0,0 +1,95 @@
+package org.foss.apocylberry.jsnote;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Content fingerprint of document text: a polynomial hash modulo the Mersenne
+ * prime 2^61 - 1.
+ *
+ * The hash of a concatenation follows from the hashes and lengths of its parts,
+ * {@code H(ab) = H(a) * B^|b| + H(b)}, which is what lets a
+ * {@link DocumentFingerprint} keep a whole document's hash up to date from
+ * per-chunk hashes. Two texts with the same fingerprint are taken as equal; the
+ * chance of two different texts colliding is about one in 2^61.
+ */
+public final class TextFingerprint {
+    static final long MODULUS = (1L << 61) - 1;
+    private static final long BASE = 0x1A2B3C4D5E6F789L;
+
+    private TextFingerprint() {
+    }
+
+    /** Fingerprint of a string. */
+    public static long of(CharSequence text) {
+        long hash = 0;
+        for (int i = 0; i < text.length(); i++) {
+            hash = next(hash, text.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Fingerprint of a file's text as it would load: byte order mark skipped and
+     * line ends normalized. Streams through the file; bytes that don't decode
+     * count as U+FFFD.
+     */
+    public static long of(Path path, TextEncoding encoding) throws IOException {
+        try (Reader in = encoding.newLenientReader(Files.newInputStream(path))) {
+            char[] buffer = new char[64 * 1024];
+            long hash = 0;
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+                hash = update(hash, buffer, 0, n);
+            }
+            return hash;
+        }
+    }
+
+    /** Extend a fingerprint with more text. */
+    static long update(long hash, char[] chars, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            hash = next(hash, chars[i]);
+        }
+        return hash;
+    }
+
+    /** Fingerprint of a followed by b, where {@code bPower} is {@link #power} of b's length. */
+    static long concat(long a, long b, long bPower) {
+        return add(multiply(a, bPower), b);
+    }
+
+    /** B^length, the factor a text of that length shifts what precedes it by. */
+    static long power(int length) {
+        long result = 1;
+        long base = BASE;
+        for (int e = length; e > 0; e >>= 1) {
+            if ((e & 1) != 0) {
+                result = multiply(result, base);
+            }
+            base = multiply(base, base);
+        }
+        return result;
+    }
+
+    static long multiply(long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        // 2^61 is 1 modulo 2^61 - 1, so fold the 122-bit product in 61-bit pieces
+        long folded = (low & MODULUS) + (low >>> 61) + (high << 3);
+        folded = (folded & MODULUS) + (folded >>> 61);
+        return folded >= MODULUS ? folded - MODULUS : folded;
+    }
+
+    private static long add(long a, long b) {
+        long sum = a + b;
+        return sum >= MODULUS ? sum - MODULUS : sum;
+    }
+
+    private static long next(long hash, char c) {
+        // c + 1 so that leading NULs still count
+        return add(multiply(hash, BASE), c + 1);
+    }
+}
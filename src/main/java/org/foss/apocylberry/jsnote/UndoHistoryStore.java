@@ -0,0 +1,113 @@
+package org.foss.apocylberry.jsnote;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Where the undo history saved with each file lives: one small file per edited
+ * file under ~/.jsnote/undo, named by a hash of its path. Only the most
+ * recently written few thousand are kept.
+ *
+ * Histories are written by one thread for every window, in the order they
+ * were saved; on the way out the JVM waits for the last of them.
+ */
+final class UndoHistoryStore {
+    private static final int MAX_FILES = 2000;
+    private static final long EXIT_WAIT_SECONDS = 10;
+    private static final Path DIRECTORY = Paths.get(System.getProperty("user.home"), ".jsnote", "undo");
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "UndoHistoryWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(EXIT_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                // Exiting anyway
+            }
+        }, "UndoHistoryFlush"));
+    }
+
+    /** A write of the history at {@code target}. */
+    interface Write {
+        void run(Path target) throws IOException;
+    }
+
+    private UndoHistoryStore() {
+    }
+
+    /** The key a file's history is saved under: its absolute, normalized path. */
+    static String keyFor(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    static Path historyFor(File file) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(keyFor(file).getBytes(StandardCharsets.UTF_8));
+            return DIRECTORY.resolve(HexFormat.of().formatHex(hash) + ".undo");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** Run {@code write} on the writer thread, then prune the store. */
+    static void writeLater(Path target, Write write) {
+        writer.execute(() -> {
+            try {
+                write.run(target);
+            } catch (IOException ex) {
+                // Only the history is lost; the file itself was saved already
+            }
+            prune();
+        });
+    }
+
+    /** Drop the least recently written histories beyond the most there may be. */
+    private static void prune() {
+        List<Path> histories = new ArrayList<>();
+        try (Stream<Path> files = Files.list(DIRECTORY)) {
+            files.filter(p -> p.toString().endsWith(".undo")).forEach(histories::add);
+        } catch (IOException ex) {
+            return;
+        }
+        if (histories.size() <= MAX_FILES) {
+            return;
+        }
+        histories.sort(Comparator.comparingLong(UndoHistoryStore::lastModified));
+        for (Path old : histories.subList(0, histories.size() - MAX_FILES)) {
+            try {
+                Files.deleteIfExists(old);
+            } catch (IOException ex) {
+                // Try again next time
+            }
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+}
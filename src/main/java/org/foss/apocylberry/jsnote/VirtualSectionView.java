@@ -0,0 +1,856 @@
+package org.foss.apocylberry.jsnote;
+
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import java.awt.Container;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the lines of the document in a monospaced font, without a view for each
+ * one. A {@link GridLineView} is made only for a line that is painted or asked
+ * about, and only the few hundred most recently used are kept, so a file of
+ * millions of lines costs about as much as one screenful.
+ *
+ * Lines are grouped in blocks of about {@value #BLOCK_LINES}, and only the
+ * height of each block is kept. Without wrap or LRECL every line is one row
+ * and the heights are exact from the start; otherwise a block starts from an
+ * estimate made from its length in chars, and is measured line by line either
+ * when it is first painted or by a timer working through the rest a slice at
+ * a time.
+ */
+final class VirtualSectionView extends View {
+    private static final int BLOCK_LINES = 1024;
+    private static final int KEPT_LINE_HEIGHTS = 16; // Blocks that keep the height of each of their lines
+    private static final int MIN_VIEWS = 256;
+    private static final int REFINE_SLICE_MS = 8;
+    private static final Segment SCAN = new Segment(); // Partial; views are only used on the EDT
+
+    static {
+        SCAN.setPartialReturn(true);
+    }
+
+    /** A stand-in element for a line, so measuring it doesn't make its real one. */
+    private static final class LineSpan implements Element {
+        private final Element root;
+        private int start;
+        private int end;
+
+        LineSpan(Element root) {
+            this.root = root;
+        }
+
+        void setOffsets(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Document getDocument() {
+            return root.getDocument();
+        }
+
+        @Override
+        public Element getParentElement() {
+            return root;
+        }
+
+        @Override
+        public String getName() {
+            return AbstractDocument.ParagraphElementName;
+        }
+
+        @Override
+        public AttributeSet getAttributes() {
+            return SimpleAttributeSet.EMPTY;
+        }
+
+        @Override
+        public int getStartOffset() {
+            return start;
+        }
+
+        @Override
+        public int getEndOffset() {
+            return end;
+        }
+
+        @Override
+        public int getElementIndex(int offset) {
+            return -1;
+        }
+
+        @Override
+        public int getElementCount() {
+            return 0;
+        }
+
+        @Override
+        public Element getElement(int index) {
+            return null;
+        }
+
+        @Override
+        public boolean isLeaf() {
+            return true;
+        }
+    }
+
+    /** A run of consecutive lines. */
+    private static final class Block {
+        int lines;
+        long height;
+        int widest; // Cells in the widest row found so far
+        boolean exact; // Measured line by line since it last changed
+        int[] lineHeights; // While it is one of the most recently measured blocks
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    private final ArrayDeque<Block> recentlyMeasured = new ArrayDeque<>();
+    private int lineCount;
+    private long totalHeight;
+    private int widest;
+
+    // The line views, least recently used first
+    private int capacity = MIN_VIEWS;
+    private final LinkedHashMap<Element, GridLineView> views = new LinkedHashMap<>(MIN_VIEWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Element, GridLineView> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            eldest.getValue().setParent(null);
+            return true;
+        }
+    };
+
+    // The settings the heights were worked out under
+    private boolean settingsValid;
+    private boolean wrap;
+    private int lrecl;
+    private int columns;
+    private int lineHeight;
+    private int cellWidth;
+
+    private int width = -1; // As last given by setSize
+    private boolean resizing;
+    private Timer refiner;
+
+    VirtualSectionView(Element elem) {
+        super(elem);
+    }
+
+    /** Work the heights out again under the pane's new mode. */
+    void modeChanged() {
+        settingsValid = false;
+        preferenceChanged(null, true, true);
+    }
+
+    private EditorPane pane() {
+        Container host = getContainer();
+        return host instanceof EditorPane ? (EditorPane) host : null;
+    }
+
+    /** Every line is one row, so a line's top is just its index times the line height. */
+    private boolean oneRowPerLine() {
+        return !wrap && lrecl <= 0;
+    }
+
+    /** Pick up changes to the settings, rebuilding the blocks if any changed. */
+    private void sync() {
+        Container host = getContainer();
+        if (host == null) {
+            return;
+        }
+        EditorPane pane = pane();
+        FontMetrics fm = host.getFontMetrics(host.getFont());
+        boolean newWrap = pane != null && pane.getLineWrap();
+        int newLrecl = pane != null ? pane.getMaxLineLength() : 0;
+        int newLineHeight = fm.getHeight();
+        int newCellWidth = Math.max(1, fm.charWidth('W'));
+        int newColumns = newWrap ? wrapColumns(host, newCellWidth) : 0;
+        if (settingsValid && wrap == newWrap && lrecl == newLrecl && columns == newColumns
+                && lineHeight == newLineHeight && cellWidth == newCellWidth
+                && lineCount == getElement().getElementCount()) {
+            return;
+        }
+        settingsValid = true;
+        wrap = newWrap;
+        lrecl = newLrecl;
+        columns = newColumns;
+        lineHeight = newLineHeight;
+        cellWidth = newCellWidth;
+        rebuild();
+    }
+
+    private int wrapColumns(Container host, int cell) {
+        int available = width;
+        if (available < 0) {
+            Insets insets = host instanceof JTextComponent ? ((JTextComponent) host).getInsets() : new Insets(0, 0, 0, 0);
+            available = host.getWidth() - insets.left - insets.right;
+        }
+        return available > 0 ? Math.max(1, available / cell) : Integer.MAX_VALUE;
+    }
+
+    private void rebuild() {
+        blocks.clear();
+        recentlyMeasured.clear();
+        lineCount = getElement().getElementCount();
+        for (int first = 0; first < lineCount; first += BLOCK_LINES) {
+            Block block = new Block();
+            block.lines = Math.min(BLOCK_LINES, lineCount - first);
+            estimate(block, first);
+            blocks.add(block);
+        }
+        totals();
+        refineLater();
+    }
+
+    /** Guess a block's height from its length, until it is measured. */
+    private void estimate(Block block, int first) {
+        block.exact = false;
+        block.lineHeights = null;
+        recentlyMeasured.remove(block);
+        long rows = block.lines;
+        int perRow = wrap ? columns : lrecl;
+        if (!oneRowPerLine() && perRow != Integer.MAX_VALUE && block.lines > 0) {
+            long chars = lineStart(first + block.lines) - lineStart(first) - block.lines;
+            rows = Math.max(rows, (chars + perRow - 1) / perRow);
+        }
+        block.height = rows * lineHeight;
+    }
+
+    /** Where a line starts, or where one after the last would. */
+    private int lineStart(int line) {
+        return line < lineCount ? getElement().getElement(line).getStartOffset() : getDocument().getLength() + 1;
+    }
+
+    /** Where the line starting at {@code start} ends, found from its text. */
+    private int lineEnd(int start) {
+        Document doc = getDocument();
+        int length = doc.getLength();
+        try {
+            for (int pos = start; pos < length; pos += SCAN.count) {
+                doc.getText(pos, length - pos, SCAN);
+                if (SCAN.count == 0) {
+                    break;
+                }
+                for (int i = SCAN.offset, stop = SCAN.offset + SCAN.count; i < stop; i++) {
+                    if (SCAN.array[i] == '\n') {
+                        return pos + i - SCAN.offset + 1;
+                    }
+                }
+            }
+        } catch (BadLocationException ex) {
+            // Taken as the end of the document
+        }
+        return length + 1;
+    }
+
+    private void totals() {
+        long height = 0;
+        int wide = 0;
+        for (Block block : blocks) {
+            height += block.height;
+            wide = Math.max(wide, block.widest);
+        }
+        totalHeight = height;
+        widest = wide;
+    }
+
+    /**
+     * Measure each line of a block, keeping the line heights if asked to.
+     * Lines without a view are measured through a {@link LineSpan}, since a
+     * mapped document keeps every line element it is ever asked for.
+     */
+    private void measure(Block block, int first, boolean keep) {
+        Element root = getElement();
+        int start = lineStart(first);
+        int end = lineStart(first + block.lines);
+        Map<Integer, GridLineView> viewed = new HashMap<>();
+        for (GridLineView view : views.values()) {
+            int offset = view.getStartOffset();
+            if (offset >= start && offset < end) {
+                viewed.put(root.getElementIndex(offset) - first, view);
+            }
+        }
+        LineSpan span = new LineSpan(root);
+        int[] heights = new int[block.lines];
+        long height = 0;
+        int wide = 0;
+        for (int i = 0, lineStart = start; i < block.lines; i++) {
+            int lineEnd = i == block.lines - 1 ? end : lineEnd(lineStart);
+            GridLineView view = viewed.get(i);
+            int rows;
+            int cells;
+            if (view != null) {
+                rows = view.getRowCount();
+                cells = view.getWidestCells();
+            } else {
+                // A view just long enough to find the line's rows; tabs and word breaks need its text
+                span.setOffsets(lineStart, lineEnd);
+                GridLineView scratch = new GridLineView(span);
+                scratch.setParent(this);
+                scratch.setSize(width, 0);
+                rows = scratch.getRowCount();
+                cells = scratch.getWidestCells();
+                scratch.setParent(null);
+            }
+            lineStart = lineEnd;
+            heights[i] = rows * lineHeight;
+            height += heights[i];
+            wide = Math.max(wide, cells);
+        }
+        totalHeight += height - block.height;
+        widest = Math.max(widest, wide);
+        block.height = height;
+        block.widest = wide;
+        block.exact = true;
+        block.lineHeights = null;
+        recentlyMeasured.remove(block);
+        if (keep) {
+            block.lineHeights = heights;
+            recentlyMeasured.addLast(block);
+            while (recentlyMeasured.size() > KEPT_LINE_HEIGHTS) {
+                recentlyMeasured.removeFirst().lineHeights = null;
+            }
+        }
+    }
+
+    /** The height of each line of a block, measuring it if need be. */
+    private int[] lineHeights(Block block, int first) {
+        if (block.lineHeights == null) {
+            long before = totalHeight;
+            measure(block, first, true);
+            if (totalHeight != before) {
+                heightChangedLater();
+            }
+        } else {
+            recentlyMeasured.remove(block);
+            recentlyMeasured.addLast(block);
+        }
+        return block.lineHeights;
+    }
+
+    // --- Finding lines ---
+
+    /** The index of the block holding {@code line}, with the index of its first line and its top in {@code where}. */
+    private int blockOf(int line, long[] where) {
+        int first = 0;
+        long top = 0;
+        int last = blocks.size() - 1;
+        for (int b = 0; b < last; b++) {
+            Block block = blocks.get(b);
+            if (line < first + block.lines) {
+                where[0] = first;
+                where[1] = top;
+                return b;
+            }
+            first += block.lines;
+            top += block.height;
+        }
+        where[0] = first;
+        where[1] = top;
+        return last;
+    }
+
+    private long lineTop(int line) {
+        if (oneRowPerLine()) {
+            return (long) line * lineHeight;
+        }
+        long[] where = new long[2];
+        Block block = blocks.get(blockOf(line, where));
+        int[] heights = lineHeights(block, (int) where[0]);
+        long top = where[1];
+        for (int i = 0, stop = Math.min(line - (int) where[0], heights.length); i < stop; i++) {
+            top += heights[i];
+        }
+        return top;
+    }
+
+    /** The line at {@code y} from the top, with the line's top in {@code top[0]}. */
+    private int lineAt(long y, long[] top) {
+        if (oneRowPerLine()) {
+            int line = (int) Math.max(0, Math.min(lineCount - 1, y / lineHeight));
+            top[0] = (long) line * lineHeight;
+            return line;
+        }
+        int first = 0;
+        long blockTop = 0;
+        for (int b = 0, last = blocks.size() - 1; b <= last; b++) {
+            Block block = blocks.get(b);
+            if (y < blockTop + block.height || b == last) {
+                int[] heights = lineHeights(block, first);
+                long lineTop = blockTop;
+                for (int i = 0; i < heights.length; i++) {
+                    if (y < lineTop + heights[i] || i == heights.length - 1) {
+                        top[0] = lineTop;
+                        return first + i;
+                    }
+                    lineTop += heights[i];
+                }
+            }
+            first += block.lines;
+            blockTop += block.height;
+        }
+        top[0] = 0;
+        return 0;
+    }
+
+    /** The view for a line, made if it has none, with its height checked against its block's. */
+    private GridLineView viewFor(int line) {
+        Element elem = getElement().getElement(line);
+        GridLineView view = views.get(elem);
+        if (view == null) {
+            view = new GridLineView(elem);
+            view.setParent(this);
+            views.put(elem, view);
+            view.setSize(width, 0);
+            lineMeasured(view, line);
+        } else {
+            view.setSize(width, 0);
+        }
+        return view;
+    }
+
+    /** Bring a block's heights in line with what a line's view has found. */
+    private void lineMeasured(GridLineView view, int line) {
+        if (oneRowPerLine() && view.getWidestCells() <= widest) {
+            return;
+        }
+        long[] where = new long[2];
+        Block block = blocks.get(blockOf(line, where));
+        int i = line - (int) where[0];
+        if (block.lineHeights == null || i >= block.lineHeights.length) {
+            // Measuring the block picks the view up
+            lineHeights(block, (int) where[0]);
+            return;
+        }
+        int height = view.getRowCount() * lineHeight;
+        if (height != block.lineHeights[i]) {
+            block.height += height - block.lineHeights[i];
+            totalHeight += height - block.lineHeights[i];
+            block.lineHeights[i] = height;
+            heightChangedLater();
+        }
+        if (view.getWidestCells() > block.widest) {
+            block.widest = view.getWidestCells();
+            if (block.widest > widest) {
+                widest = block.widest;
+                heightChangedLater();
+            }
+        }
+    }
+
+    // --- Refining the estimates ---
+
+    private void refineLater() {
+        boolean estimated = false;
+        for (Block block : blocks) {
+            if (!block.exact) {
+                estimated = true;
+                break;
+            }
+        }
+        if (!estimated) {
+            return;
+        }
+        if (refiner == null) {
+            refiner = new Timer(REFINE_SLICE_MS, e -> refine());
+            refiner.setRepeats(true);
+        }
+        if (!refiner.isRunning()) {
+            refiner.start();
+        }
+    }
+
+    private void refine() {
+        Document doc = getDocument();
+        if (getContainer() == null || doc == null) {
+            refiner.stop();
+            return;
+        }
+        if (doc instanceof AbstractDocument) {
+            ((AbstractDocument) doc).render(this::refineSlice);
+        } else {
+            refineSlice();
+        }
+    }
+
+    /**
+     * Measure blocks until the slice is used up. Blocks above the top of the
+     * viewport move what is shown when their height changes, so the viewport
+     * is moved by as much to keep the same text in view.
+     */
+    private void refineSlice() {
+        sync();
+        long deadline = System.nanoTime() + REFINE_SLICE_MS * 1_000_000L;
+        JViewport viewport = viewport();
+        long visibleTop = viewport != null ? viewport.getViewPosition().y - insetTop() : 0;
+        long shift = 0;
+        boolean changed = false;
+        boolean done = true;
+        int first = 0;
+        long top = 0; // As it was before this slice
+        for (Block block : blocks) {
+            long before = block.height;
+            if (!block.exact) {
+                if (System.nanoTime() > deadline) {
+                    done = false;
+                    break;
+                }
+                measure(block, first, false);
+                changed = true;
+                if (top + before <= visibleTop) {
+                    shift += block.height - before;
+                }
+            }
+            first += block.lines;
+            top += before;
+        }
+        if (done) {
+            refiner.stop();
+        }
+        if (changed) {
+            totals();
+            preferenceChanged(null, true, true);
+            if (shift != 0 && viewport != null) {
+                long moveBy = shift;
+                SwingUtilities.invokeLater(() -> {
+                    viewport.validate();
+                    Point position = viewport.getViewPosition();
+                    position.y = (int) Math.max(0, position.y + moveBy);
+                    viewport.setViewPosition(position);
+                });
+            }
+        }
+    }
+
+    private JViewport viewport() {
+        Container host = getContainer();
+        return host != null && host.getParent() instanceof JViewport ? (JViewport) host.getParent() : null;
+    }
+
+    private int insetTop() {
+        Container host = getContainer();
+        return host instanceof JTextComponent ? ((JTextComponent) host).getInsets().top : 0;
+    }
+
+    // Measuring a block while painting or finding a line changes the heights under the caller
+    private boolean heightChangePending;
+
+    private void heightChangedLater() {
+        if (heightChangePending) {
+            return;
+        }
+        heightChangePending = true;
+        SwingUtilities.invokeLater(() -> {
+            heightChangePending = false;
+            if (getParent() != null) {
+                preferenceChanged(null, true, true);
+            }
+        });
+    }
+
+    // --- Layout ---
+
+    @Override
+    public void setParent(View parent) {
+        super.setParent(parent);
+        if (parent == null) {
+            if (refiner != null) {
+                refiner.stop();
+            }
+            for (GridLineView view : views.values()) {
+                view.setParent(null);
+            }
+            views.clear();
+        }
+    }
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        if (getContainer() == null) {
+            return 0;
+        }
+        sync();
+        if (axis == X_AXIS) {
+            // A cell more without wrap, for the caret after the widest row
+            return wrap ? (float) widest * cellWidth : (float) (widest + 1) * cellWidth;
+        }
+        return (float) Math.min(totalHeight, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public float getMinimumSpan(int axis) {
+        float preferred = getPreferredSpan(axis);
+        return axis == X_AXIS && wrap ? 0 : preferred;
+    }
+
+    @Override
+    public float getMaximumSpan(int axis) {
+        return axis == X_AXIS ? Integer.MAX_VALUE : getPreferredSpan(axis);
+    }
+
+    @Override
+    public float getAlignment(int axis) {
+        return axis == X_AXIS ? 0.0f : super.getAlignment(axis);
+    }
+
+    @Override
+    public void setSize(float width, float height) {
+        int newWidth = (int) width;
+        if (newWidth == this.width) {
+            return;
+        }
+        // The line views re-wrap to the new width now; sync works the heights out again
+        this.width = newWidth;
+        resizing = true;
+        try {
+            for (GridLineView view : views.values()) {
+                view.setSize(newWidth, 0);
+            }
+        } finally {
+            resizing = false;
+        }
+    }
+
+    @Override
+    public void preferenceChanged(View child, boolean width, boolean height) {
+        if (child != null) {
+            // Not for a scratch view measuring a line, or one already dropped
+            GridLineView view = (GridLineView) child;
+            if (settingsValid && !resizing && views.get(view.getElement()) == view) {
+                lineMeasured(view, getElement().getElementIndex(view.getStartOffset()));
+            }
+        }
+        super.preferenceChanged(child, width, height);
+    }
+
+    // --- Edits ---
+
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        update(e, a, f);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        update(e, a, f);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        update(e, a, f);
+    }
+
+    private void update(DocumentEvent e, Shape a, ViewFactory f) {
+        if (!settingsValid) {
+            return;
+        }
+        Element root = getElement();
+        long heightBefore = totalHeight;
+        DocumentEvent.ElementChange change = e.getChange(root);
+        if (change != null) {
+            for (Element gone : change.getChildrenRemoved()) {
+                GridLineView view = views.remove(gone);
+                if (view != null) {
+                    view.setParent(null);
+                }
+            }
+            replaceLines(change.getIndex(), change.getChildrenRemoved().length, change.getChildrenAdded().length);
+        }
+
+        // The lines edited in place
+        int from = root.getElementIndex(e.getOffset());
+        int to = e.getType() == DocumentEvent.EventType.REMOVE ? from
+                : root.getElementIndex(Math.min(e.getOffset() + e.getLength(), getDocument().getLength()));
+        boolean viewless = false;
+        for (int line = from; line <= to && !viewless; line++) {
+            viewless = line - from > capacity || !views.containsKey(root.getElement(line));
+        }
+        if (viewless && change == null) {
+            remeasure(from, to);
+        }
+        List<GridLineView> edited = new ArrayList<>();
+        for (GridLineView view : views.values()) {
+            int line = root.getElementIndex(view.getStartOffset());
+            if (line >= from && line <= to) {
+                edited.add(view);
+            }
+        }
+        for (GridLineView view : edited) {
+            if (e.getType() == DocumentEvent.EventType.INSERT) {
+                view.insertUpdate(e, null, f);
+            } else if (e.getType() == DocumentEvent.EventType.REMOVE) {
+                view.removeUpdate(e, null, f);
+            } else {
+                view.changedUpdate(e, null, f);
+            }
+        }
+
+        Container host = getContainer();
+        if (host != null && a != null) {
+            // Only the edited lines, unless what follows them has moved
+            Rectangle alloc = a.getBounds();
+            long top = lineTop(from);
+            long bottom = change == null && totalHeight == heightBefore && to + 1 < lineCount
+                    ? lineTop(to + 1) : alloc.height;
+            if (top < alloc.height) {
+                host.repaint(alloc.x, (int) (alloc.y + top), alloc.width, (int) (Math.min(bottom, alloc.height) - top));
+            }
+        }
+        preferenceChanged(null, true, true);
+    }
+
+    /** Replace {@code removed} lines from {@code index} on with {@code added} new ones. */
+    private void replaceLines(int index, int removed, int added) {
+        long[] where = new long[2];
+        int b = blockOf(index, where);
+        Block block = blocks.get(b);
+        int at = index - (int) where[0];
+        List<Block> touched = new ArrayList<>();
+        touched.add(block);
+        for (int left = removed, i = b; left > 0 && i < blocks.size(); i++, at = 0) {
+            Block from = blocks.get(i);
+            int take = Math.min(left, from.lines - at);
+            from.lines -= take;
+            left -= take;
+            touched.add(from);
+        }
+        block.lines += added;
+        lineCount += added - removed;
+
+        // Keep the blocks near their usual size
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            Block each = blocks.get(i);
+            if (each.lines == 0 && blocks.size() > 1) {
+                blocks.remove(i);
+                recentlyMeasured.remove(each);
+            } else if (each.lines > 2 * BLOCK_LINES) {
+                int keep = BLOCK_LINES;
+                int rest = each.lines - keep;
+                each.lines = keep;
+                for (int insert = i + 1; rest > 0; insert++) {
+                    Block split = new Block();
+                    split.lines = Math.min(BLOCK_LINES, rest);
+                    rest -= split.lines;
+                    blocks.add(insert, split);
+                    touched.add(split);
+                }
+            }
+        }
+
+        // Measure what changed now when it's small, and leave the rest to the timer
+        boolean measureNow = added + removed <= 2 * BLOCK_LINES;
+        int first = 0;
+        for (Block each : blocks) {
+            if (touched.contains(each)) {
+                estimate(each, first);
+                if (measureNow) {
+                    measure(each, first, false);
+                }
+            }
+            first += each.lines;
+        }
+        totals();
+        refineLater();
+    }
+
+    /** Measure again the blocks holding lines {@code from} to {@code to}, edited without views to follow. */
+    private void remeasure(int from, int to) {
+        int first = 0;
+        boolean now = to - from <= 2 * BLOCK_LINES;
+        for (Block block : blocks) {
+            if (first + block.lines > from && first <= to) {
+                estimate(block, first);
+                if (now) {
+                    measure(block, first, false);
+                }
+            }
+            first += block.lines;
+        }
+        totals();
+        refineLater();
+    }
+
+    // --- Model and view ---
+
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        sync();
+        boolean backward = b == Position.Bias.Backward;
+        int testPos = backward ? Math.max(0, pos - 1) : pos;
+        if (testPos < 0 || testPos > getDocument().getLength() + 1) {
+            throw new BadLocationException("Position not in the document", pos);
+        }
+        int line = getElement().getElementIndex(testPos);
+        Rectangle alloc = a.getBounds();
+        long top = lineTop(line);
+        GridLineView view = viewFor(line);
+        Rectangle lineAlloc = new Rectangle(alloc.x, (int) (alloc.y + top), alloc.width,
+                (int) view.getPreferredSpan(Y_AXIS));
+        return view.modelToView(pos, lineAlloc, b);
+    }
+
+    @Override
+    public int viewToModel(float x, float y, Shape a, Position.Bias[] biasReturn) {
+        sync();
+        Rectangle alloc = a.getBounds();
+        long[] top = new long[1];
+        int line = lineAt((long) y - alloc.y, top);
+        GridLineView view = viewFor(line);
+        Rectangle lineAlloc = new Rectangle(alloc.x, (int) (alloc.y + top[0]), alloc.width,
+                (int) view.getPreferredSpan(Y_AXIS));
+        return view.viewToModel(x, y, lineAlloc, biasReturn);
+    }
+
+    @Override
+    public void paint(Graphics g, Shape a) {
+        sync();
+        Rectangle alloc = a.getBounds();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = alloc;
+        }
+        long[] top = new long[1];
+        int line = lineAt((long) clip.y - alloc.y, top);
+        long y = alloc.y + top[0];
+        int painted = 0;
+        Rectangle lineAlloc = new Rectangle();
+        while (line < lineCount && y < clip.y + clip.height) {
+            GridLineView view = viewFor(line);
+            int height = (int) view.getPreferredSpan(Y_AXIS);
+            lineAlloc.setBounds(alloc.x, (int) y, alloc.width, height);
+            view.paint(g, lineAlloc);
+            y += height;
+            line++;
+            painted++;
+        }
+        // Keep views for a few screens' worth of lines
+        capacity = Math.max(capacity, Math.max(MIN_VIEWS, painted * 3));
+    }
+}